@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import java.nio.IntBuffer;
+
+/**
+ * Operations on "dirty" rects stored as sequences of four integers: x, y, width, height.
+ * Rects are accessed either in an array, or in a buffer (when array is null), so that
+ * the same code serves both and nothing is allocated.
+ */
+final class DirtyRects {
+
+    private DirtyRects() {}
+
+    /**
+     * @see NativeRasterLoader#coalesceDirtyRects(int[], int, int)
+     */
+    static int coalesce(int[] array, IntBuffer buffer, int offset, int count, int rectCost) {
+        if (count < 0) throw new IllegalArgumentException("Negative rects count: " + count);
+        if (rectCost < 0) throw new IllegalArgumentException("Negative rect cost: " + rectCost);
+        int length = array != null ? array.length : buffer.limit();
+        if (offset < 0 || offset > length || count > (length - offset) / 4) {
+            throw new IndexOutOfBoundsException("Rects count " + count + " is out of bounds");
+        }
+
+        // Drop empty rects.
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int r = offset + i * 4;
+            if (get(array, buffer, r + 2) > 0 && get(array, buffer, r + 3) > 0) {
+                if (i != n) copy(array, buffer, r, offset + n * 4);
+                n++;
+            }
+        }
+
+        // Replace pairs of rects with their bounding rect while it's not more expensive to upload.
+        boolean merged;
+        do {
+            merged = false;
+            for (int i = 0; i < n; i++) {
+                int a = offset + i * 4;
+                int ax = get(array, buffer, a), ay = get(array, buffer, a + 1),
+                    aw = get(array, buffer, a + 2), ah = get(array, buffer, a + 3);
+                for (int j = i + 1; j < n; j++) {
+                    int b = offset + j * 4;
+                    int bx = get(array, buffer, b), by = get(array, buffer, b + 1),
+                        bw = get(array, buffer, b + 2), bh = get(array, buffer, b + 3);
+                    long x0 = Math.min(ax, bx), y0 = Math.min(ay, by),
+                         x1 = Math.max((long) ax + aw, (long) bx + bw), y1 = Math.max((long) ay + ah, (long) by + bh);
+                    if ((x1 - x0) * (y1 - y0) <= (long) aw * ah + (long) bw * bh + rectCost) {
+                        ax = (int) x0;
+                        ay = (int) y0;
+                        aw = (int) (x1 - x0);
+                        ah = (int) (y1 - y0);
+                        set(array, buffer, a, ax, ay, aw, ah);
+                        n--;
+                        if (j != n) copy(array, buffer, offset + n * 4, b);
+                        j = i; // Grown rect may now be merged with already visited ones.
+                        merged = true;
+                    }
+                }
+            }
+        } while (merged);
+
+        // Use single bounding rect if it's cheaper than uploading all of them.
+        if (n > 1) {
+            long x0 = Long.MAX_VALUE, y0 = Long.MAX_VALUE, x1 = Long.MIN_VALUE, y1 = Long.MIN_VALUE, cost = 0;
+            for (int i = 0; i < n; i++) {
+                int r = offset + i * 4;
+                int x = get(array, buffer, r), y = get(array, buffer, r + 1),
+                    w = get(array, buffer, r + 2), h = get(array, buffer, r + 3);
+                x0 = Math.min(x0, x);
+                y0 = Math.min(y0, y);
+                x1 = Math.max(x1, (long) x + w);
+                y1 = Math.max(y1, (long) y + h);
+                cost += (long) w * h + rectCost;
+            }
+            if ((x1 - x0) * (y1 - y0) + rectCost <= cost) {
+                set(array, buffer, offset, (int) x0, (int) y0, (int) (x1 - x0), (int) (y1 - y0));
+                n = 1;
+            }
+        }
+        return n;
+    }
+
+    static int get(int[] array, IntBuffer buffer, int index) {
+        return array != null ? array[index] : buffer.get(index);
+    }
+
+    static void set(int[] array, IntBuffer buffer, int index, int x, int y, int w, int h) {
+        if (array != null) {
+            array[index] = x;
+            array[index + 1] = y;
+            array[index + 2] = w;
+            array[index + 3] = h;
+        } else {
+            buffer.put(index, x).put(index + 1, y).put(index + 2, w).put(index + 3, h);
+        }
+    }
+
+    private static void copy(int[] array, IntBuffer buffer, int from, int to) {
+        set(array, buffer, to, get(array, buffer, from), get(array, buffer, from + 1),
+                get(array, buffer, from + 2), get(array, buffer, from + 3));
+    }
+}
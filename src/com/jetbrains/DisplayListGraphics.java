@@ -0,0 +1,695 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import com.jetbrains.GraphicsUtils.DisplayList;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RectangularShape;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.text.AttributedString;
+import java.util.Map;
+
+import static com.jetbrains.GraphicsUtils.DisplayList.*;
+
+/**
+ * Graphics recording into {@link DisplayList}. It tracks its own state, so that
+ * getters work as usual, while every state change and drawing operation is appended to the display list.
+ * Transform and clip are tracked relative to the constrained origin, like in {@code SunGraphics2D}.
+ */
+final class DisplayListGraphics extends Graphics2D implements GraphicsUtils.ConstrainableGraphics2D {
+
+    private final DisplayList list;
+    private final int context;
+    private final GraphicsConfiguration configuration;
+    private Graphics2D scratch;
+    private AffineTransform transform = new AffineTransform();
+    // Permanent constraint relative to the root, its shape is created only when needed.
+    private final GraphicsUtils.ConstraintStack constraints = new GraphicsUtils.ConstraintStack();
+    // Clips are in device space relative to the constrained origin, null means no clip.
+    private Shape clip, constraint;
+    private boolean constrained, constraintStale, clipIsConstraint;
+    private Color color, background;
+    private Paint paint;
+    private Font font;
+    private Stroke stroke;
+    private Composite composite;
+    private RenderingHints hints = new RenderingHints(null);
+    private boolean disposed;
+
+    DisplayListGraphics(DisplayList list, Graphics2D prototype) {
+        this(list, prototype, prototype.getDeviceConfiguration());
+    }
+
+    DisplayListGraphics(DisplayList list, Graphics2D prototype, GraphicsConfiguration configuration) {
+        this.list = list;
+        context = list.createContext(-1);
+        this.configuration = configuration;
+        // Record initial attributes, so that replay doesn't depend on attributes of the target.
+        setColor(prototype.getColor());
+        setPaint(prototype.getPaint());
+        setBackground(prototype.getBackground());
+        setFont(prototype.getFont());
+        setStroke(prototype.getStroke());
+        setComposite(prototype.getComposite());
+        setRenderingHints(prototype.getRenderingHints());
+    }
+
+    private DisplayListGraphics(DisplayListGraphics parent) {
+        list = parent.list;
+        context = list.createContext(parent.context);
+        configuration = parent.configuration;
+        transform = new AffineTransform(parent.transform);
+        constraints.reset(parent.constraints);
+        clip = parent.clip;
+        constraint = parent.constraint;
+        constrained = parent.constrained;
+        constraintStale = parent.constraintStale;
+        clipIsConstraint = parent.clipIsConstraint;
+        color = parent.color;
+        background = parent.background;
+        paint = parent.paint;
+        font = parent.font;
+        stroke = parent.stroke;
+        composite = parent.composite;
+        hints = (RenderingHints) parent.hints.clone();
+        disposed = parent.disposed;
+    }
+
+    private boolean record(int opcode) {
+        if (disposed) return false;
+        list.op(context, opcode);
+        return true;
+    }
+
+    private static Shape copy(Shape shape) {
+        if (shape instanceof RectangularShape) return (Shape) ((RectangularShape) shape).clone();
+        if (shape instanceof Line2D) return (Shape) ((Line2D) shape).clone();
+        return new Path2D.Double(shape);
+    }
+
+    private static AffineTransform copy(AffineTransform transform) {
+        return transform == null ? new AffineTransform() : new AffineTransform(transform);
+    }
+
+    private Graphics2D scratch() {
+        if (scratch == null) scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        scratch.setTransform(transform);
+        scratch.setRenderingHints(hints);
+        scratch.setFont(font);
+        return scratch;
+    }
+
+    @Override
+    public Object getDestination() {
+        return list;
+    }
+
+    private Shape constraint() {
+        if (constraintStale) {
+            constraint = constraints.getClip();
+            constraintStale = false;
+        }
+        return constraint;
+    }
+
+    private Shape clip() {
+        if (clipIsConstraint) {
+            clip = constraint();
+            clipIsConstraint = false;
+        }
+        return clip;
+    }
+
+    private void setClipToConstraint() {
+        clip = null;
+        clipIsConstraint = constrained;
+    }
+
+    @Override
+    public void constrain(Rectangle2D region) {
+        constraints.push(region);
+        constrained(region.getX(), region.getY(), region.getWidth(), region.getHeight());
+    }
+
+    @Override
+    public void constrain(int x, int y, int w, int h) {
+        // Integer constraints are intersected by the stack without creating shapes.
+        constraints.push(x, y, w, h);
+        constrained(x, y, w, h);
+    }
+
+    private void constrained(double x, double y, double w, double h) {
+        constraints.flatten();
+        constrained = constraintStale = true;
+        constraint = null;
+        setClipToConstraint();
+        transform.setToIdentity();
+        if (record(CONSTRAIN)) {
+            list.arg(x);
+            list.arg(y);
+            list.arg(w);
+            list.arg(h);
+        }
+    }
+
+    @Override
+    public Graphics create() {
+        return new DisplayListGraphics(this);
+    }
+
+    @Override
+    public void dispose() {
+        if (!disposed) {
+            list.disposeContext(context);
+            disposed = true;
+        }
+        if (scratch != null) {
+            scratch.dispose();
+            scratch = null;
+        }
+    }
+
+    @Override
+    public Color getColor() {
+        return color;
+    }
+
+    @Override
+    public void setColor(Color c) {
+        if (c == null) return;
+        color = c;
+        paint = c;
+        if (record(SET_COLOR)) list.arg(c);
+    }
+
+    @Override
+    public Paint getPaint() {
+        return paint;
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        if (paint instanceof Color) setColor((Color) paint);
+        else if (paint != null) {
+            this.paint = paint;
+            if (record(SET_PAINT)) list.arg(paint);
+        }
+    }
+
+    @Override
+    public void setPaintMode() {
+        composite = AlphaComposite.SrcOver;
+        record(SET_PAINT_MODE);
+    }
+
+    @Override
+    public void setXORMode(Color c) {
+        // Take the XOR composite from real graphics, so that getComposite() reports what the target will have.
+        Graphics2D g = scratch();
+        g.setXORMode(c);
+        composite = g.getComposite();
+        g.setPaintMode();
+        if (record(SET_XOR_MODE)) list.arg(c);
+    }
+
+    @Override
+    public Color getBackground() {
+        return background;
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        background = color;
+        if (record(SET_BACKGROUND)) list.arg(color);
+    }
+
+    @Override
+    public Font getFont() {
+        return font;
+    }
+
+    @Override
+    public void setFont(Font font) {
+        if (font == null) return;
+        this.font = font;
+        if (record(SET_FONT)) list.arg(font);
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        return scratch().getFontMetrics(f);
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        return scratch().getFontRenderContext();
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return stroke;
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        if (s == null) throw new IllegalArgumentException("null Stroke");
+        stroke = s;
+        if (record(SET_STROKE)) list.arg(s);
+    }
+
+    @Override
+    public Composite getComposite() {
+        return composite;
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        if (comp == null) throw new IllegalArgumentException("null Composite");
+        composite = comp;
+        if (record(SET_COMPOSITE)) list.arg(comp);
+    }
+
+    @Override
+    public void setRenderingHint(RenderingHints.Key hintKey, Object hintValue) {
+        hints.put(hintKey, hintValue);
+        if (record(SET_HINT)) {
+            list.arg(hintKey);
+            list.arg(hintValue);
+        }
+    }
+
+    @Override
+    public Object getRenderingHint(RenderingHints.Key hintKey) {
+        return hints.get(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        this.hints = new RenderingHints(null);
+        this.hints.putAll(hints);
+        if (record(SET_HINTS)) list.arg(this.hints.clone());
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        this.hints.putAll(hints);
+        if (record(ADD_HINTS)) {
+            RenderingHints added = new RenderingHints(null);
+            added.putAll(hints);
+            list.arg(added);
+        }
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return (RenderingHints) hints.clone();
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        transform.translate(x, y);
+        if (record(TRANSLATE_INT)) {
+            list.arg(x);
+            list.arg(y);
+        }
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        transform.translate(tx, ty);
+        if (record(TRANSLATE)) {
+            list.arg(tx);
+            list.arg(ty);
+        }
+    }
+
+    @Override
+    public void rotate(double theta) {
+        transform.rotate(theta);
+        if (record(ROTATE)) list.arg(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        transform.rotate(theta, x, y);
+        if (record(ROTATE_AROUND)) {
+            list.arg(theta);
+            list.arg(x);
+            list.arg(y);
+        }
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        transform.scale(sx, sy);
+        if (record(SCALE)) {
+            list.arg(sx);
+            list.arg(sy);
+        }
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        transform.shear(shx, shy);
+        if (record(SHEAR)) {
+            list.arg(shx);
+            list.arg(shy);
+        }
+    }
+
+    @Override
+    public void transform(AffineTransform tx) {
+        transform.concatenate(tx);
+        if (record(TRANSFORM)) list.arg(copy(tx));
+    }
+
+    @Override
+    public void setTransform(AffineTransform tx) {
+        transform = copy(tx);
+        if (record(SET_TRANSFORM)) list.arg(copy(tx));
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return new AffineTransform(transform);
+    }
+
+    @Override
+    public Shape getClip() {
+        Shape clip = clip();
+        if (clip == null) return null;
+        try {
+            return DisplayList.transform(transform.createInverse(), clip);
+        } catch (NoninvertibleTransformException e) {
+            return new Rectangle();
+        }
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        Shape c = getClip();
+        return c == null ? null : c.getBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        clip = intersect(clip(), DisplayList.transform(transform, new Rectangle(x, y, width, height)));
+        if (record(CLIP_RECT)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        clip = intersect(constraint(), DisplayList.transform(transform, new Rectangle(x, y, width, height)));
+        clipIsConstraint = false;
+        if (record(SET_CLIP_RECT)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        if (clip == null) setClipToConstraint();
+        else {
+            this.clip = intersect(constraint(), DisplayList.transform(transform, clip));
+            clipIsConstraint = false;
+        }
+        if (record(SET_CLIP)) list.arg(clip == null ? null : copy(clip));
+    }
+
+    @Override
+    public void clip(Shape s) {
+        if (s == null) setClipToConstraint();
+        else clip = intersect(clip(), DisplayList.transform(transform, s));
+        if (record(CLIP)) list.arg(s == null ? null : copy(s));
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        if (onStroke) s = stroke.createStrokedShape(s);
+        return transform.createTransformedShape(s).intersects(rect);
+    }
+
+    private void recordInts(int a, int b, int c, int d) {
+        list.arg(a);
+        list.arg(b);
+        list.arg(c);
+        list.arg(d);
+    }
+
+    private void recordInts(int a, int b, int c, int d, int e, int f) {
+        recordInts(a, b, c, d);
+        list.arg(e);
+        list.arg(f);
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+        if (record(COPY_AREA)) recordInts(x, y, width, height, dx, dy);
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        if (record(DRAW_LINE)) recordInts(x1, y1, x2, y2);
+    }
+
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        if (record(FILL_RECT)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void drawRect(int x, int y, int width, int height) {
+        if (record(DRAW_RECT)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        if (record(CLEAR_RECT)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        if (record(DRAW_ROUND_RECT)) recordInts(x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        if (record(FILL_ROUND_RECT)) recordInts(x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        if (record(DRAW_OVAL)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        if (record(FILL_OVAL)) recordInts(x, y, width, height);
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        if (record(DRAW_ARC)) recordInts(x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        if (record(FILL_ARC)) recordInts(x, y, width, height, startAngle, arcAngle);
+    }
+
+    private void recordPoly(int opcode, int[] xPoints, int[] yPoints, int nPoints) {
+        if (nPoints <= 0 || !record(opcode)) return;
+        list.arg(nPoints);
+        list.args(xPoints, nPoints);
+        list.args(yPoints, nPoints);
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        recordPoly(DRAW_POLYLINE, xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        recordPoly(DRAW_POLYGON, xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        recordPoly(FILL_POLYGON, xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void draw(Shape s) {
+        Shape shape = copy(s);
+        if (record(DRAW)) list.arg(shape);
+    }
+
+    @Override
+    public void fill(Shape s) {
+        Shape shape = copy(s);
+        if (record(FILL)) list.arg(shape);
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        if (str == null) throw new NullPointerException("String is null");
+        if (record(DRAW_STRING)) {
+            list.arg(str);
+            list.arg(x);
+            list.arg(y);
+        }
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        if (str == null) throw new NullPointerException("String is null");
+        if (record(DRAW_STRING_FLOAT)) {
+            list.arg(str);
+            list.arg((double) x);
+            list.arg((double) y);
+        }
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+        if (iterator == null) throw new NullPointerException("AttributedCharacterIterator is null");
+        if (record(DRAW_ITERATOR)) {
+            list.arg(new AttributedString(iterator));
+            list.arg(x);
+            list.arg(y);
+        }
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+        if (iterator == null) throw new NullPointerException("AttributedCharacterIterator is null");
+        if (record(DRAW_ITERATOR_FLOAT)) {
+            list.arg(new AttributedString(iterator));
+            list.arg((double) x);
+            list.arg((double) y);
+        }
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector g, float x, float y) {
+        if (g == null) throw new NullPointerException("GlyphVector is null");
+        if (record(DRAW_GLYPHS)) {
+            list.arg(g);
+            list.arg((double) x);
+            list.arg((double) y);
+        }
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        return drawImage(img, x, y, null, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+        if (img != null && record(DRAW_IMAGE)) {
+            list.arg(img);
+            list.arg(bgcolor);
+            list.arg(x);
+            list.arg(y);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+        return drawImage(img, x, y, width, height, null, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor, ImageObserver observer) {
+        if (img != null && record(DRAW_IMAGE_SCALED)) {
+            list.arg(img);
+            list.arg(bgcolor);
+            recordInts(x, y, width, height);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2, ImageObserver observer) {
+        return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2, Color bgcolor, ImageObserver observer) {
+        if (img != null && record(DRAW_IMAGE_REGION)) {
+            list.arg(img);
+            list.arg(bgcolor);
+            recordInts(dx1, dy1, dx2, dy2);
+            recordInts(sx1, sy1, sx2, sy2);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+        if (img != null && record(DRAW_IMAGE_TRANSFORM)) {
+            list.arg(img);
+            list.arg(copy(xform));
+        }
+        return true;
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+        if (img != null && record(DRAW_IMAGE_OP)) {
+            list.arg(img);
+            list.arg(op);
+            list.arg(x);
+            list.arg(y);
+        }
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        if (img != null && record(DRAW_RENDERED_IMAGE)) {
+            list.arg(img);
+            list.arg(copy(xform));
+        }
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+        if (img != null && record(DRAW_RENDERABLE_IMAGE)) {
+            list.arg(img);
+            list.arg(copy(xform));
+        }
+    }
+}
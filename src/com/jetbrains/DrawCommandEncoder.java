@@ -0,0 +1,736 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import com.jetbrains.GraphicsUtils.DisplayList;
+
+import java.awt.*;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.AttributedString;
+import java.text.CharacterIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Encodes operations recorded into a {@link DisplayList} into a binary command stream,
+ * see {@link ProjectorUtils.RecordingGraphicsEnvironment} for the format.
+ * Objects are interned by their encoded contents, so equal shapes, texts and images recorded in different
+ * frames share a single definition, and an image whose pixels changed is defined again. Object table of
+ * the client is bounded in bytes and evicted explicitly in least recently used order, together with cached
+ * fragments referencing evicted objects. Objects used by the current frame are never evicted.
+ * Immutable objects, as well as buffered images, are encoded once and then looked up by the object itself,
+ * so only objects like shapes and transforms are encoded every frame. Buffered images are assumed unchanged
+ * until reported with {@link #imageChanged(Image)}.
+ * <p>
+ * Sub-trees of graphics, recorded from creation to disposal of a graphics context, are cached by their
+ * contents with contexts numbered in order of their creation inside the sub-tree and objects referenced
+ * by their content-based ids, so that repainting of unchanged
+ * components is sent as a reference to the cached fragment. Client keeps the same cache, it is bounded
+ * in bytes and evicted explicitly by the encoder in least recently used order.
+ */
+final class DrawCommandEncoder {
+
+    static final int FORMAT_VERSION = 1;
+    static final int UNDEFINE = 122, END = 123, EVICT = 124, REPLAY = 125, FRAGMENT = 126, DEFINE = 127;
+    static final int TYPE_OBJECT = 0, TYPE_COLOR = 1, TYPE_STRING = 2, TYPE_FONT = 3, TYPE_STROKE = 4,
+            TYPE_COMPOSITE = 5, TYPE_TRANSFORM = 6, TYPE_SHAPE = 7, TYPE_IMAGE = 8, TYPE_GRADIENT = 9,
+            TYPE_LINEAR_GRADIENT = 10, TYPE_RADIAL_GRADIENT = 11, TYPE_TEXTURE = 12, TYPE_HINTS = 13,
+            TYPE_GLYPHS = 14;
+
+    // Fragments smaller than this are cheaper to send as is.
+    private static final int MIN_FRAGMENT_SIZE = 16;
+    // Objects must be defined even when fragments are disabled, so their table is never smaller than this.
+    static final int MIN_OBJECT_CACHE_SIZE = 1 << 20;
+
+    // Arguments of each opcode: I - int, D - double, O - object reference, P - polygon, C - context.
+    private static final String[] ARGS = {
+            "C", "CC", "", "DDDD", // SELECT, CREATE, DISPOSE, CONSTRAIN
+            "O", "O", "O", "O", "O", // SET_COLOR, SET_PAINT, SET_FONT, SET_STROKE, SET_COMPOSITE
+            "", "O", "O", // SET_PAINT_MODE, SET_XOR_MODE, SET_BACKGROUND
+            "OO", "O", "O", // SET_HINT, SET_HINTS, ADD_HINTS
+            "II", "DD", "D", "DDD", "DD", "DD", // TRANSLATE_INT, TRANSLATE, ROTATE, ROTATE_AROUND, SCALE, SHEAR
+            "O", "O", "IIII", "IIII", "O", "O", // TRANSFORM, SET_TRANSFORM, CLIP_RECT, SET_CLIP_RECT, SET_CLIP, CLIP
+            "IIIIII", "IIII", "IIII", "IIII", "IIII", // COPY_AREA, DRAW_LINE, FILL_RECT, DRAW_RECT, CLEAR_RECT
+            "IIIIII", "IIIIII", "IIII", "IIII", "IIIIII", "IIIIII", // round rects, ovals, arcs
+            "P", "P", "P", // DRAW_POLYLINE, DRAW_POLYGON, FILL_POLYGON
+            "OII", "ODD", "OII", "ODD", "ODD", // strings, iterators, glyphs
+            "OOII", "OOIIII", "OOIIIIIIII", "OO", // DRAW_IMAGE, DRAW_IMAGE_SCALED, DRAW_IMAGE_REGION, DRAW_IMAGE_TRANSFORM
+            "OOII", "OO", "OO", // DRAW_IMAGE_OP, DRAW_RENDERED_IMAGE, DRAW_RENDERABLE_IMAGE
+            "O", "O" // DRAW, FILL
+    };
+
+    private final DisplayList list;
+    private final int cacheLimit, objectLimit;
+    private final Map<Fragment, Fragment> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private int[] freeSlots = new int[16];
+    private int freeSlotsSize, nextSlot, cachedBytes;
+    private final Map<StreamObject, StreamObject> objects = new LinkedHashMap<>(16, 0.75f, true);
+    private StreamObject[] objectsById = new StreamObject[16];
+    private int[] freeIds = new int[16];
+    private int freeIdsSize, nextId = 1, objectBytes, frame, mark;
+    // Stream object ids of display list pool entries of the current frame.
+    private int[] poolIds = new int[16];
+    private StreamObject[] scratchObjects = new StreamObject[16], scratchKeys = new StreamObject[16];
+    // Defined objects by the immutable objects they were encoded from, compared by value where defined.
+    private final Map<Object, StreamObject> encodedObjects = new WeakHashMap<>();
+    private final Set<Image> changedImages = Collections.newSetFromMap(new WeakHashMap<>());
+    private final StreamObject probe = new StreamObject(null, 0, 0);
+    // Numbers of contexts created inside the outermost fragment being written, in order of creation.
+    private int[] localIds = new int[16];
+    private boolean inFragment;
+    private int nextLocal;
+    // Contexts created inside the sub-tree being checked by findFragmentEnd.
+    private int[] contextMarks = new int[16];
+    private int contextMark;
+    private byte[] out = new byte[4096];
+    private int size;
+    private int[] code;
+    private double[] numbers;
+    private int ip, np;
+
+    /**
+     * @param list display list to encode operations from
+     * @param cacheLimit maximum total size of cached fragments in bytes, 0 disables caching
+     */
+    DrawCommandEncoder(DisplayList list, int cacheLimit) {
+        this.list = list;
+        this.cacheLimit = cacheLimit;
+        objectLimit = Math.max(cacheLimit, MIN_OBJECT_CACHE_SIZE);
+    }
+
+    /**
+     * Makes the image encoded again when it is used next time, can be called from any thread.
+     */
+    void imageChanged(Image image) {
+        synchronized (changedImages) {
+            changedImages.add(image);
+        }
+    }
+
+    /**
+     * Encodes operations recorded since the previous call and discards them from the display list.
+     * @return read-only view of the internal buffer, valid until the next call
+     */
+    ByteBuffer encode() {
+        size = 0;
+        writeByte(FORMAT_VERSION);
+        frame++;
+        defineObjects();
+        code = list.code();
+        numbers = list.numbers();
+        ip = np = 0;
+        writeRange(list.codeSize(), 0);
+        list.discardOperations();
+        return ByteBuffer.wrap(out, 0, size).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes operations up to given position. Outside fragments context ids are written as is,
+     * inside fragments their numbers are written relative to the base.
+     */
+    private void writeRange(int end, int base) {
+        while (ip < end) {
+            int fragmentEnd = cacheLimit > 0 && code[ip] == DisplayList.CREATE ? findFragmentEnd(end) : -1;
+            if (fragmentEnd != -1) writeFragment(fragmentEnd, base);
+            else writeOp(base);
+        }
+    }
+
+    private void writeOp(int base) {
+        int op = code[ip++];
+        if (op == DisplayList.CREATE && inFragment) assignLocal(code[ip + 1]);
+        writeByte(op);
+        String args = ARGS[op];
+        for (int i = 0; i < args.length(); i++) {
+            switch (args.charAt(i)) {
+                case 'I': writeInt(code[ip++]); break;
+                case 'C': writeInt(context(code[ip++], base)); break;
+                case 'D': writeDouble(numbers[np++]); break;
+                // Null is encoded as 0, so that all references are non-negative.
+                case 'O': {
+                    int index = code[ip++];
+                    writeVarint(index == -1 ? 0 : poolIds[index]);
+                    break;
+                }
+                case 'P': {
+                    int n = code[ip++];
+                    writeVarint(n);
+                    for (int j = 0; j < n * 2; j++) writeInt(code[ip++]);
+                    break;
+                }
+            }
+        }
+    }
+
+    private int context(int context, int base) {
+        if (context == -1) return -1;
+        return (inFragment ? localIds[context] : context) - base;
+    }
+
+    private void assignLocal(int context) {
+        if (context >= localIds.length) localIds = Arrays.copyOf(localIds, Math.max(context + 1, localIds.length * 2));
+        localIds[context] = nextLocal++;
+    }
+
+    private static int nextOp(int[] code, int ip) {
+        String args = ARGS[code[ip++]];
+        for (int i = 0; i < args.length(); i++) {
+            char arg = args.charAt(i);
+            if (arg == 'P') ip += code[ip] * 2 + 1;
+            else if (arg != 'D') ip++;
+        }
+        return ip;
+    }
+
+    /**
+     * Finds the end of the sub-tree starting with CREATE at the current position, which is the disposal
+     * of its root context. Sub-tree must only touch contexts created inside it, and all of them must be
+     * disposed by its end. Context ids are reused after disposal, so they are tracked explicitly.
+     * @return position after the end of the sub-tree, or -1 if it is not self-contained or not finished yet
+     */
+    private int findFragmentEnd(int end) {
+        int root = code[ip + 2], current = -1, live = 1, mark = ++contextMark;
+        markContext(root, mark);
+        for (int i = ip + 3; i < end; i = nextOp(code, i)) {
+            switch (code[i]) {
+                case DisplayList.SELECT:
+                    current = code[i + 1];
+                    if (!isMarked(current, mark)) return -1;
+                    break;
+                case DisplayList.CREATE:
+                    if (!isMarked(code[i + 1], mark)) return -1;
+                    markContext(code[i + 2], mark);
+                    live++;
+                    break;
+                case DisplayList.DISPOSE:
+                    if (!isMarked(current, mark)) return -1;
+                    if (current == root) return live == 1 ? nextOp(code, i) : -1;
+                    contextMarks[current] = 0;
+                    live--;
+                    break;
+                default:
+                    // Operation on a context selected before the sub-tree started.
+                    if (!isMarked(current, mark)) return -1;
+            }
+        }
+        return -1;
+    }
+
+    private void markContext(int context, int mark) {
+        if (context >= contextMarks.length) contextMarks = Arrays.copyOf(contextMarks, Math.max(context + 1, contextMarks.length * 2));
+        contextMarks[context] = mark;
+    }
+
+    private boolean isMarked(int context, int mark) {
+        return context >= 0 && context < contextMarks.length && contextMarks[context] == mark;
+    }
+
+    private void writeFragment(int end, int base) {
+        int start = ip, parent = code[ip + 1], root = code[ip + 2], numbersStart = np;
+        boolean outermost = !inFragment;
+        // Parent and root are outside of the outermost fragment.
+        int parentArg = context(parent, base), rootArg = outermost ? root - base : nextLocal - base;
+        if (outermost) {
+            inFragment = true;
+            nextLocal = 0;
+        }
+        int rootLocal = nextLocal;
+        // Canonical form of the sub-tree is its plain encoding relative to the root.
+        int outStart = size;
+        assignLocal(root);
+        ip += 3;
+        while (ip < end) writeOp(rootLocal);
+        Fragment key = new Fragment(Arrays.copyOfRange(out, outStart, size));
+        size = outStart;
+        Fragment fragment = cache.get(key);
+        if (fragment != null) {
+            writeByte(REPLAY);
+            writeVarint(fragment.slot);
+            writeInt(parentArg);
+            writeInt(rootArg);
+            if (outermost) inFragment = false;
+            return;
+        }
+        ip = start;
+        np = numbersStart;
+        nextLocal = rootLocal;
+        int length = key.bytes.length;
+        if (length < MIN_FRAGMENT_SIZE || length > cacheLimit / 4) {
+            // Not worth caching as a whole, but its own sub-trees may still be cached.
+            if (outermost) inFragment = false;
+            writeOp(base);
+            writeRange(end, base);
+            return;
+        }
+        evict(length);
+        key.slot = freeSlotsSize > 0 ? freeSlots[--freeSlotsSize] : nextSlot++;
+        key.objects = collectObjects(start, end);
+        for (StreamObject o : key.objects) o.fragments.add(key);
+        // Fragment being written must survive evictions caused by its own sub-trees.
+        key.pinned = true;
+        cache.put(key, key);
+        cachedBytes += length;
+        writeByte(FRAGMENT);
+        writeVarint(key.slot);
+        writeInt(parentArg);
+        writeInt(rootArg);
+        assignLocal(root);
+        ip += 3;
+        writeRange(end, rootLocal);
+        writeByte(END);
+        key.pinned = false;
+        if (outermost) inFragment = false;
+    }
+
+    private void evict(int length) {
+        for (Iterator<Fragment> iterator = cache.keySet().iterator();
+             iterator.hasNext() && cachedBytes + length > cacheLimit; ) {
+            Fragment fragment = iterator.next();
+            if (fragment.pinned) continue;
+            iterator.remove();
+            released(fragment);
+        }
+    }
+
+    private void released(Fragment fragment) {
+        cachedBytes -= fragment.bytes.length;
+        if (freeSlotsSize == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotsSize * 2);
+        freeSlots[freeSlotsSize++] = fragment.slot;
+        for (StreamObject o : fragment.objects) o.fragments.remove(fragment);
+        writeByte(EVICT);
+        writeVarint(fragment.slot);
+    }
+
+    /**
+     * Objects referenced by operations in given range, without duplicates.
+     */
+    private StreamObject[] collectObjects(int start, int end) {
+        int count = 0;
+        mark++;
+        for (int i = start; i < end; ) {
+            String args = ARGS[code[i++]];
+            for (int j = 0; j < args.length(); j++) {
+                switch (args.charAt(j)) {
+                    case 'D': break;
+                    case 'P': i += code[i] * 2 + 1; break;
+                    case 'O': {
+                        int index = code[i++];
+                        StreamObject o = index == -1 ? null : objectsById[poolIds[index]];
+                        if (o != null && o.mark != mark) {
+                            o.mark = mark;
+                            if (count == scratchObjects.length) scratchObjects = Arrays.copyOf(scratchObjects, count * 2);
+                            scratchObjects[count++] = o;
+                        }
+                        break;
+                    }
+                    default: i++;
+                }
+            }
+        }
+        return Arrays.copyOf(scratchObjects, count);
+    }
+
+    /**
+     * Assigns stream ids to objects of the display list pool, defining new objects and evicting
+     * least recently used ones when the object table is full. Pool is cleared with discarded operations,
+     * so it only holds objects of the current frame.
+     */
+    private void defineObjects() {
+        synchronized (changedImages) {
+            for (Image image : changedImages) encodedObjects.remove(image);
+            changedImages.clear();
+        }
+        int poolSize = list.poolSize();
+        if (poolIds.length < poolSize) poolIds = new int[Math.max(poolSize, poolIds.length * 2)];
+        if (scratchKeys.length < poolSize) scratchKeys = new StreamObject[Math.max(poolSize, scratchKeys.length * 2)];
+        StreamObject[] keys = scratchKeys;
+        // Find known objects first, so that they are not evicted to make room for new ones.
+        for (int i = 0; i < poolSize; i++) {
+            Object value = list.poolObject(i);
+            boolean immutable = isImmutable(value);
+            StreamObject existing = immutable ? encodedObjects.get(value) : null;
+            if (existing != null) {
+                // Touch it, so that it is evicted last.
+                objects.get(existing);
+            } else {
+                // Encoded bytes are looked up in place and copied only when they define a new object.
+                int start = size;
+                writeObject(value);
+                probe.set(out, start, size - start);
+                existing = objects.get(probe);
+                if (existing == null) keys[i] = new StreamObject(Arrays.copyOfRange(out, start, size), 0, size - start);
+                else if (immutable) encodedObjects.put(value, existing);
+                size = start;
+            }
+            if (existing != null) {
+                existing.frame = frame;
+                poolIds[i] = existing.id;
+            }
+        }
+        for (int i = 0; i < poolSize; i++) {
+            StreamObject key = keys[i];
+            if (key == null) continue;
+            keys[i] = null;
+            StreamObject existing = objects.get(key);
+            if (existing == null) {
+                existing = key;
+                define(key);
+            } else existing.frame = frame;
+            Object value = list.poolObject(i);
+            if (isImmutable(value)) encodedObjects.put(value, existing);
+            poolIds[i] = existing.id;
+        }
+    }
+
+    /**
+     * Whether the object always has the same encoding, so that it can be encoded only once.
+     */
+    private static boolean isImmutable(Object o) {
+        return o instanceof Color || o instanceof String || o instanceof Font || o instanceof BasicStroke ||
+                o instanceof AlphaComposite || o instanceof GradientPaint || o instanceof MultipleGradientPaint ||
+                o instanceof BufferedImage;
+    }
+
+    private void define(StreamObject o) {
+        int length = o.length;
+        boolean evictedAny = false;
+        for (Iterator<StreamObject> iterator = objects.keySet().iterator();
+             iterator.hasNext() && objectBytes + length > objectLimit; ) {
+            StreamObject evicted = iterator.next();
+            if (evicted.frame == frame) continue;
+            iterator.remove();
+            evictedAny = true;
+            // Fragments can't be replayed without their objects.
+            for (Fragment fragment : evicted.fragments.toArray(new Fragment[0])) {
+                cache.remove(fragment);
+                released(fragment);
+            }
+            objectBytes -= evicted.length;
+            objectsById[evicted.id] = null;
+            if (freeIdsSize == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeIdsSize * 2);
+            freeIds[freeIdsSize++] = evicted.id;
+            writeByte(UNDEFINE);
+            writeVarint(evicted.id);
+            evicted.id = 0;
+        }
+        // Evicted objects are encoded again when used, don't keep their bytes.
+        if (evictedAny) encodedObjects.values().removeIf(e -> e.id == 0);
+        o.frame = frame;
+        o.id = freeIdsSize > 0 ? freeIds[--freeIdsSize] : nextId++;
+        if (o.id >= objectsById.length) objectsById = Arrays.copyOf(objectsById, o.id * 2);
+        objectsById[o.id] = o;
+        objects.put(o, o);
+        objectBytes += length;
+        writeByte(DEFINE);
+        writeVarint(o.id);
+        ensure(length);
+        System.arraycopy(o.bytes, o.offset, out, size, length);
+        size += length;
+    }
+
+    private void writeObject(Object o) {
+        if (o instanceof Color) {
+            writeByte(TYPE_COLOR);
+            writeFixedInt(((Color) o).getRGB());
+        } else if (o instanceof String) {
+            writeByte(TYPE_STRING);
+            writeString((String) o);
+        } else if (o instanceof AttributedString) {
+            // Only the text is kept, attributes are not encoded.
+            writeByte(TYPE_STRING);
+            StringBuilder text = new StringBuilder();
+            CharacterIterator iterator = ((AttributedString) o).getIterator();
+            for (char c = iterator.first(); c != CharacterIterator.DONE; c = iterator.next()) text.append(c);
+            writeString(text.toString());
+        } else if (o instanceof Font) {
+            writeByte(TYPE_FONT);
+            writeFont((Font) o);
+        } else if (o instanceof BasicStroke) {
+            BasicStroke stroke = (BasicStroke) o;
+            writeByte(TYPE_STROKE);
+            writeDouble(stroke.getLineWidth());
+            writeVarint(stroke.getEndCap());
+            writeVarint(stroke.getLineJoin());
+            writeDouble(stroke.getMiterLimit());
+            float[] dash = stroke.getDashArray();
+            writeVarint(dash == null ? 0 : dash.length);
+            if (dash != null) for (float d : dash) writeDouble(d);
+            writeDouble(stroke.getDashPhase());
+        } else if (o instanceof AlphaComposite) {
+            writeByte(TYPE_COMPOSITE);
+            writeVarint(((AlphaComposite) o).getRule());
+            writeDouble(((AlphaComposite) o).getAlpha());
+        } else if (o instanceof AffineTransform) {
+            writeByte(TYPE_TRANSFORM);
+            writeTransform((AffineTransform) o);
+        } else if (o instanceof Shape) {
+            writeByte(TYPE_SHAPE);
+            writeShape((Shape) o);
+        } else if (o instanceof Image) {
+            writeByte(TYPE_IMAGE);
+            writeImage((Image) o);
+        } else if (o instanceof GradientPaint) {
+            GradientPaint paint = (GradientPaint) o;
+            writeByte(TYPE_GRADIENT);
+            writePoint(paint.getPoint1());
+            writeFixedInt(paint.getColor1().getRGB());
+            writePoint(paint.getPoint2());
+            writeFixedInt(paint.getColor2().getRGB());
+            writeByte(paint.isCyclic() ? 1 : 0);
+        } else if (o instanceof LinearGradientPaint) {
+            LinearGradientPaint paint = (LinearGradientPaint) o;
+            writeByte(TYPE_LINEAR_GRADIENT);
+            writePoint(paint.getStartPoint());
+            writePoint(paint.getEndPoint());
+            writeGradient(paint);
+        } else if (o instanceof RadialGradientPaint) {
+            RadialGradientPaint paint = (RadialGradientPaint) o;
+            writeByte(TYPE_RADIAL_GRADIENT);
+            writePoint(paint.getCenterPoint());
+            writeDouble(paint.getRadius());
+            writePoint(paint.getFocusPoint());
+            writeGradient(paint);
+        } else if (o instanceof TexturePaint) {
+            TexturePaint paint = (TexturePaint) o;
+            writeByte(TYPE_TEXTURE);
+            writeImage(paint.getImage());
+            Rectangle2D anchor = paint.getAnchorRect();
+            writeDouble(anchor.getX());
+            writeDouble(anchor.getY());
+            writeDouble(anchor.getWidth());
+            writeDouble(anchor.getHeight());
+        } else if (o instanceof RenderingHints) {
+            writeByte(TYPE_HINTS);
+            Map<?, ?> hints = (Map<?, ?>) o;
+            writeVarint(hints.size());
+            for (Map.Entry<?, ?> e : hints.entrySet()) {
+                writeString(String.valueOf(e.getKey()));
+                writeString(String.valueOf(e.getValue()));
+            }
+        } else if (o instanceof GlyphVector) {
+            GlyphVector glyphs = (GlyphVector) o;
+            int n = glyphs.getNumGlyphs();
+            writeByte(TYPE_GLYPHS);
+            writeFont(glyphs.getFont());
+            writeVarint(n);
+            for (int code : glyphs.getGlyphCodes(0, n, null)) writeVarint(code);
+            for (float p : glyphs.getGlyphPositions(0, n, null)) writeDouble(p);
+        } else {
+            // Rendering hint keys and values, as well as objects which can't be encoded.
+            writeByte(TYPE_OBJECT);
+            writeString(o.getClass().getName());
+            writeString(String.valueOf(o));
+        }
+    }
+
+    private void writeGradient(MultipleGradientPaint paint) {
+        float[] fractions = paint.getFractions();
+        Color[] colors = paint.getColors();
+        writeVarint(fractions.length);
+        for (int i = 0; i < fractions.length; i++) {
+            writeDouble(fractions[i]);
+            writeFixedInt(colors[i].getRGB());
+        }
+        writeVarint(paint.getCycleMethod().ordinal());
+        writeVarint(paint.getColorSpace().ordinal());
+        writeTransform(paint.getTransform());
+    }
+
+    private void writeFont(Font font) {
+        writeString(font.getName());
+        writeVarint(font.getStyle());
+        writeDouble(font.getSize2D());
+    }
+
+    private void writePoint(Point2D point) {
+        writeDouble(point.getX());
+        writeDouble(point.getY());
+    }
+
+    private void writeTransform(AffineTransform transform) {
+        writeDouble(transform.getScaleX());
+        writeDouble(transform.getShearY());
+        writeDouble(transform.getShearX());
+        writeDouble(transform.getScaleY());
+        writeDouble(transform.getTranslateX());
+        writeDouble(transform.getTranslateY());
+    }
+
+    private void writeShape(Shape shape) {
+        PathIterator iterator = shape.getPathIterator(null);
+        double[] coords = new double[6];
+        writeByte(iterator.getWindingRule());
+        for (; !iterator.isDone(); iterator.next()) {
+            int type = iterator.currentSegment(coords);
+            writeByte(type);
+            int n = type == PathIterator.SEG_CLOSE ? 0 : type == PathIterator.SEG_QUADTO ? 4 : type == PathIterator.SEG_CUBICTO ? 6 : 2;
+            for (int i = 0; i < n; i++) writeDouble(coords[i]);
+        }
+        // Segment types are 0-4, so this marks the end of the path.
+        writeByte(0xFF);
+    }
+
+    private void writeImage(Image image) {
+        BufferedImage buffered;
+        if (image instanceof BufferedImage) buffered = (BufferedImage) image;
+        else if (image instanceof VolatileImage) buffered = ((VolatileImage) image).getSnapshot();
+        else {
+            int width = image.getWidth(null), height = image.getHeight(null);
+            if (width <= 0 || height <= 0) {
+                // Image is not loaded yet.
+                writeVarint(0);
+                writeVarint(0);
+                return;
+            }
+            buffered = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = buffered.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+        }
+        int width = buffered.getWidth(), height = buffered.getHeight();
+        writeVarint(width);
+        writeVarint(height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            buffered.getRGB(0, y, width, 1, row, 0, width);
+            for (int p : row) writeFixedInt(p);
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > out.length) out = Arrays.copyOf(out, Math.max(size + bytes, out.length * 2));
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        out[size++] = (byte) b;
+    }
+
+    private void writeVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            out[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[size++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        // Zigzag encoding keeps small negative values short.
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    private void writeFixedInt(int value) {
+        ensure(4);
+        out[size++] = (byte) (value >>> 24);
+        out[size++] = (byte) (value >>> 16);
+        out[size++] = (byte) (value >>> 8);
+        out[size++] = (byte) value;
+    }
+
+    private void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        writeFixedInt((int) (bits >>> 32));
+        writeFixedInt((int) bits);
+    }
+
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, out, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private static final class Fragment {
+        private final byte[] bytes;
+        private final int hash;
+        private int slot;
+        private boolean pinned;
+        private StreamObject[] objects;
+
+        private Fragment(byte[] bytes) {
+            this.bytes = bytes;
+            hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fragment && Arrays.equals(bytes, ((Fragment) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Object definition keyed by its encoded type and payload, which is a range of the byte array.
+     */
+    private static final class StreamObject {
+        private byte[] bytes;
+        private int offset, length, hash;
+        private final List<Fragment> fragments = new ArrayList<>(0);
+        private int id, frame, mark;
+
+        private StreamObject(byte[] bytes, int offset, int length) {
+            set(bytes, offset, length);
+        }
+
+        private void set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) h = 31 * h + bytes[i];
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof StreamObject)) return false;
+            StreamObject other = (StreamObject) o;
+            if (length != other.length || hash != other.hash) return false;
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != other.bytes[other.offset + i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -22,4 +22,40 @@ package com.jetbrains;
  * @see JBR#isExtensionSupported(Extensions)
  */
 public enum Extensions {
+
+    /**
+     * Asynchronous uploads of native rasters into volatile images.
+     * @see NativeRasterLoader#loadNativeRasterAsync(java.awt.image.VolatileImage, long, int, int, long, int)
+     */
+    ASYNC_RASTER_LOADING,
+
+    /**
+     * Loading of native rasters in formats other than premultiplied ARGB.
+     * @see NativeRasterLoader#loadNativeRaster(java.awt.image.VolatileImage, long, int, int, int, long, int)
+     */
+    RASTER_FORMATS,
+
+    /**
+     * Allocation-free access to characters produced by key events.
+     * @see Keyboard#getKeyEventCodePoint(java.awt.event.KeyEvent)
+     */
+    KEY_EVENT_CODE_POINTS,
+
+    /**
+     * Notifications about keyboard layout changes.
+     * @see Keyboard#setKeyboardLayoutListener(Keyboard.LayoutListener)
+     */
+    KEYBOARD_LAYOUT_LISTENER,
+
+    /**
+     * Precomputed key translation tables of keyboard layouts.
+     * @see Keyboard#getKeyboardLayoutTable(int)
+     */
+    KEYBOARD_LAYOUT_TABLES,
+
+    /**
+     * Timestamps of native arrival of key events.
+     * @see Keyboard#getKeyEventArrivalTime(java.awt.event.KeyEvent)
+     */
+    KEY_EVENT_ARRIVAL_TIME,
 }
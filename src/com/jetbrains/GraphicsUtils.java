@@ -17,7 +17,21 @@
 package com.jetbrains;
 
 import java.awt.*;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Graphics2D utilities.
@@ -72,4 +86,712 @@ public interface GraphicsUtils {
          */
         void constrain(int x, int y, int w, int h);
     }
+
+    /**
+     * Stack of constraints for implementations of {@link ConstrainableGraphics2D}, which need to push and pop
+     * constraints of nested components. Each constraint moves the origin by (x, y) and intersects the clip
+     * with (x, y, w, h), both relative to the previous origin, like
+     * {@link ConstrainableGraphics2D#constrain(int, int, int, int)} does.
+     * <p>
+     * Levels are cached in preallocated arrays, so pushing and popping doesn't allocate once the stack has
+     * grown to its maximum depth. Integer constraints are intersected with integer arithmetic,
+     * floating-point one is used only below constraints with fractional coordinates.
+     */
+    final class ConstraintStack {
+        // Origin x, y and clip x1, y1, x2, y2 per level, all in the coordinates of the root.
+        private static final int LEVEL = 6;
+
+        private int[] ints = new int[LEVEL * 8];
+        private double[] doubles = new double[LEVEL * 8];
+        private boolean[] integral = new boolean[8];
+        private int size;
+
+        /**
+         * Creates empty stack, which has origin at (0, 0) and no clip.
+         */
+        public ConstraintStack() {
+            clear();
+        }
+
+        /**
+         * Pushes integer constraint.
+         * @param x x coordinate of the constraint rectangle, relative to the current origin
+         * @param y y coordinate of the constraint rectangle, relative to the current origin
+         * @param w width of the constraint rectangle
+         * @param h height of the constraint rectangle
+         */
+        public void push(int x, int y, int w, int h) {
+            int p = grow();
+            if (!integral[size - 1]) {
+                pushDouble(p, x, y, w, h);
+                return;
+            }
+            int ox = add(ints[p], x), oy = add(ints[p + 1], y), n = p + LEVEL;
+            ints[n] = ox;
+            ints[n + 1] = oy;
+            ints[n + 2] = Math.max(ints[p + 2], ox);
+            ints[n + 3] = Math.max(ints[p + 3], oy);
+            ints[n + 4] = Math.min(ints[p + 4], add(ox, Math.max(w, 0)));
+            ints[n + 5] = Math.min(ints[p + 5], add(oy, Math.max(h, 0)));
+            integral[size++] = true;
+        }
+
+        /**
+         * Pushes floating-point constraint, integer path is taken when all coordinates are whole numbers.
+         * @param region constraint rectangle, relative to the current origin
+         */
+        public void push(Rectangle2D region) {
+            double x = region.getX(), y = region.getY(), w = region.getWidth(), h = region.getHeight();
+            if (x == (int) x && y == (int) y && w == (int) w && h == (int) h) push((int) x, (int) y, (int) w, (int) h);
+            else pushDouble(grow(), x, y, w, h);
+        }
+
+        /**
+         * Pops the last pushed constraint.
+         * @throws IllegalStateException if the stack is empty
+         */
+        public void pop() {
+            if (size == 1) throw new IllegalStateException("Constraint stack is empty");
+            size--;
+        }
+
+        /**
+         * Removes all constraints.
+         */
+        public void clear() {
+            size = 1;
+            integral[0] = true;
+            ints[0] = ints[1] = 0;
+            ints[2] = ints[3] = Integer.MIN_VALUE;
+            ints[4] = ints[5] = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Number of constraints on the stack.
+         * @return number of pushed and not yet popped constraints
+         */
+        public int size() {
+            return size - 1;
+        }
+
+        /**
+         * Checks whether current constraint is integer, meaning that its origin and clip have integer coordinates.
+         * @return true if current origin and clip are integer
+         */
+        public boolean isIntegral() {
+            return integral[size - 1];
+        }
+
+        /**
+         * Current origin.
+         * @return x coordinate of the current origin, relative to the root
+         */
+        public double getOriginX() {
+            return get(size - 1, 0);
+        }
+
+        /**
+         * Current origin.
+         * @return y coordinate of the current origin, relative to the root
+         */
+        public double getOriginY() {
+            return get(size - 1, 1);
+        }
+
+        /**
+         * Checks whether current clip is empty, so nothing can be painted.
+         * @return true if the clip is empty
+         */
+        public boolean isClipEmpty() {
+            int l = size - 1;
+            return get(l, 2) >= get(l, 4) || get(l, 3) >= get(l, 5);
+        }
+
+        /**
+         * Checks whether a rectangle intersects current clip, so that painting outside of it can be skipped.
+         * @param x x coordinate of the rectangle, relative to the current origin
+         * @param y y coordinate of the rectangle, relative to the current origin
+         * @param w width of the rectangle
+         * @param h height of the rectangle
+         * @return true if the rectangle intersects current clip
+         */
+        public boolean intersects(int x, int y, int w, int h) {
+            int l = size - 1, p = l * LEVEL;
+            if (w <= 0 || h <= 0) return false;
+            if (integral[l]) {
+                int x1 = add(ints[p], x), y1 = add(ints[p + 1], y);
+                return x1 < ints[p + 4] && y1 < ints[p + 5] && add(x1, w) > ints[p + 2] && add(y1, h) > ints[p + 3];
+            }
+            double x1 = doubles[p] + x, y1 = doubles[p + 1] + y;
+            return x1 < doubles[p + 4] && y1 < doubles[p + 5] && x1 + w > doubles[p + 2] && y1 + h > doubles[p + 3];
+        }
+
+        /**
+         * Current clip bounds relative to the current origin, rounded outwards to integers.
+         * Unbounded sides of the clip are reported as extending to {@code Integer.MIN_VALUE} or {@code Integer.MAX_VALUE}.
+         * @param dst rectangle to store the result into
+         * @return {@code dst}
+         */
+        public Rectangle getClipBounds(Rectangle dst) {
+            int l = size - 1, p = l * LEVEL;
+            if (integral[l]) {
+                int x1 = ints[p + 2], y1 = ints[p + 3];
+                dst.setBounds(x1 == Integer.MIN_VALUE ? x1 : x1 - ints[p], y1 == Integer.MIN_VALUE ? y1 : y1 - ints[p + 1],
+                        (int) Math.max(Math.min((long) ints[p + 4] - x1, Integer.MAX_VALUE), 0),
+                        (int) Math.max(Math.min((long) ints[p + 5] - y1, Integer.MAX_VALUE), 0));
+            } else {
+                double x1 = Math.floor(doubles[p + 2] - doubles[p]), y1 = Math.floor(doubles[p + 3] - doubles[p + 1]);
+                double x2 = Math.ceil(doubles[p + 4] - doubles[p]), y2 = Math.ceil(doubles[p + 5] - doubles[p + 1]);
+                dst.setBounds((int) x1, (int) y1, (int) Math.max(Math.min(x2 - x1, Integer.MAX_VALUE), 0),
+                        (int) Math.max(Math.min(y2 - y1, Integer.MAX_VALUE), 0));
+            }
+            return dst;
+        }
+
+        /**
+         * Replaces all constraints with the current constraint of another stack, which becomes the root.
+         */
+        void reset(ConstraintStack other) {
+            copyLevel(other, other.size - 1);
+            size = 1;
+        }
+
+        /**
+         * Makes the current constraint the root, so that permanent constraints don't grow the stack.
+         */
+        void flatten() {
+            copyLevel(this, size - 1);
+            size = 1;
+        }
+
+        /**
+         * Exact current clip relative to the current origin.
+         */
+        Rectangle2D getClip() {
+            int l = size - 1;
+            if (integral[l]) return getClipBounds(new Rectangle());
+            double x1 = get(l, 2), y1 = get(l, 3);
+            return new Rectangle2D.Double(x1 - get(l, 0), y1 - get(l, 1),
+                    Math.max(get(l, 4) - x1, 0), Math.max(get(l, 5) - y1, 0));
+        }
+
+        private void copyLevel(ConstraintStack src, int level) {
+            System.arraycopy(src.ints, level * LEVEL, ints, 0, LEVEL);
+            System.arraycopy(src.doubles, level * LEVEL, doubles, 0, LEVEL);
+            integral[0] = src.integral[level];
+        }
+
+        private int grow() {
+            if (size == integral.length) {
+                integral = Arrays.copyOf(integral, size * 2);
+                ints = Arrays.copyOf(ints, size * 2 * LEVEL);
+                doubles = Arrays.copyOf(doubles, size * 2 * LEVEL);
+            }
+            return (size - 1) * LEVEL;
+        }
+
+        private void pushDouble(int p, double x, double y, double w, double h) {
+            int l = size - 1, n = p + LEVEL;
+            double ox = get(l, 0) + x, oy = get(l, 1) + y;
+            doubles[n] = ox;
+            doubles[n + 1] = oy;
+            doubles[n + 2] = Math.max(get(l, 2), ox);
+            doubles[n + 3] = Math.max(get(l, 3), oy);
+            doubles[n + 4] = Math.min(get(l, 4), ox + Math.max(w, 0));
+            doubles[n + 5] = Math.min(get(l, 5), oy + Math.max(h, 0));
+            integral[size++] = false;
+        }
+
+        private double get(int level, int index) {
+            int i = level * LEVEL + index;
+            if (!integral[level]) return doubles[i];
+            int value = ints[i];
+            if (index >= 2) {
+                // Unbounded clip sides.
+                if (value == Integer.MIN_VALUE) return Double.NEGATIVE_INFINITY;
+                if (value == Integer.MAX_VALUE) return Double.POSITIVE_INFINITY;
+            }
+            return value;
+        }
+
+        private static int add(int a, int b) {
+            long sum = (long) a + b;
+            return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : sum < Integer.MIN_VALUE ? Integer.MIN_VALUE : (int) sum;
+        }
+    }
+
+    /**
+     * Accumulator of repaint requests, which collects invalidated rects from many components during a frame
+     * and then paints each of merged regions only once. Bursts of small repaints this way don't turn into
+     * as many paint traversals.
+     * <p>
+     * Rects are merged with their bounding rect while it's not more expensive to paint, given the estimated
+     * cost of a single paint traversal, like {@link NativeRasterLoader#coalesceDirtyRects(int[], int, int)} does.
+     * Rects can be added from any thread, including painting callback, in which case they go to the next frame.
+     */
+    final class DirtyRegion {
+        // Coalesce eagerly when that many rects were added, so that the number of rects stays bounded.
+        private static final int COALESCE_THRESHOLD = 64;
+
+        private final Object lock = new Object();
+        private final int paintCost;
+        private int[] rects = new int[COALESCE_THRESHOLD * 4], painting = new int[0];
+        private int count, threshold = COALESCE_THRESHOLD;
+
+        /**
+         * Creates empty dirty region.
+         * @param paintCost estimated overhead of a single paint traversal, expressed in pixels
+         * @throws IllegalArgumentException if paint cost is negative
+         */
+        public DirtyRegion(int paintCost) {
+            if (paintCost < 0) throw new IllegalArgumentException("Negative paint cost");
+            this.paintCost = paintCost;
+        }
+
+        /**
+         * Adds invalidated rect, empty rects are ignored.
+         * @param x x coordinate of the rect
+         * @param y y coordinate of the rect
+         * @param w width of the rect
+         * @param h height of the rect
+         */
+        public void add(int x, int y, int w, int h) {
+            if (w <= 0 || h <= 0) return;
+            synchronized (lock) {
+                if (count == threshold) {
+                    count = DirtyRects.coalesce(rects, null, 0, count, paintCost);
+                    threshold = Math.max(COALESCE_THRESHOLD, count * 2);
+                    if (threshold * 4 > rects.length) rects = Arrays.copyOf(rects, threshold * 4);
+                }
+                int r = count++ * 4;
+                rects[r] = x;
+                rects[r + 1] = y;
+                rects[r + 2] = w;
+                rects[r + 3] = h;
+            }
+        }
+
+        /**
+         * Checks whether there is anything to paint.
+         * @return true if no rects were added since the last paint
+         */
+        public boolean isEmpty() {
+            synchronized (lock) {
+                return count == 0;
+            }
+        }
+
+        /**
+         * Removes all accumulated rects.
+         */
+        public void clear() {
+            synchronized (lock) {
+                count = 0;
+            }
+        }
+
+        /**
+         * Merges accumulated rects and calls the painter once per merged region, then clears the accumulated rects.
+         * Painter gets a copy of the given graphics, which is permanently constrained to the region via
+         * {@link ConstrainableGraphics2D#constrain(int, int, int, int)} when the graphics supports it and
+         * is only translated by whole pixels, or clipped to the region otherwise.
+         * In both cases rects and painter use the user space of the given graphics.
+         * <p>
+         * Painting must not be called from multiple threads at the same time.
+         * @param g graphics to paint into
+         * @param painter painting callback
+         * @return number of painted regions
+         */
+        public int paint(Graphics2D g, Consumer<Graphics2D> painter) {
+            int n;
+            synchronized (lock) {
+                n = DirtyRects.coalesce(rects, null, 0, count, paintCost);
+                if (painting.length < n * 4) painting = new int[rects.length];
+                System.arraycopy(rects, 0, painting, 0, n * 4);
+                count = 0;
+            }
+            for (int i = 0; i < n; i++) {
+                int x = painting[i * 4], y = painting[i * 4 + 1], w = painting[i * 4 + 2], h = painting[i * 4 + 3];
+                Graphics2D region = (Graphics2D) g.create();
+                try {
+                    AffineTransform transform = region.getTransform();
+                    double tx = transform.getTranslateX(), ty = transform.getTranslateY();
+                    // Constraints are in device space, so take this path only when it differs from user space by an integer offset.
+                    if (region instanceof ConstrainableGraphics2D && tx == (int) tx && ty == (int) ty &&
+                        (transform.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0) {
+                        ((ConstrainableGraphics2D) region).constrain(x + (int) tx, y + (int) ty, w, h);
+                        region.translate(-x, -y);
+                    } else {
+                        region.clipRect(x, y, w, h);
+                    }
+                    painter.accept(region);
+                } finally {
+                    region.dispose();
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Compact recording of drawing operations, which can be replayed into any {@link Graphics2D}.
+     * Static pieces of UI can be recorded once and then replayed every frame instead of being repainted.
+     * <p>
+     * Operations are encoded as integer opcodes followed by their primitive arguments, while objects
+     * like colors, fonts and shapes are stored once in a shared pool and referenced by index.
+     * Mutable arguments like shapes and transforms are copied, but images and glyph vectors are
+     * referenced and must not be changed afterwards.
+     * <p>
+     * Recording graphics is also a {@link ConstrainableGraphics2D}, whose destination is the display list.
+     * Transforms, clips and constraints are replayed relative to the transform and clip of the target graphics.
+     * Display list is not thread-safe, but once recorded it can be replayed from multiple threads.
+     */
+    final class DisplayList {
+        static final int SELECT = 0, CREATE = 1, DISPOSE = 2, CONSTRAIN = 3,
+                SET_COLOR = 4, SET_PAINT = 5, SET_FONT = 6, SET_STROKE = 7, SET_COMPOSITE = 8,
+                SET_PAINT_MODE = 9, SET_XOR_MODE = 10, SET_BACKGROUND = 11,
+                SET_HINT = 12, SET_HINTS = 13, ADD_HINTS = 14,
+                TRANSLATE_INT = 15, TRANSLATE = 16, ROTATE = 17, ROTATE_AROUND = 18, SCALE = 19, SHEAR = 20,
+                TRANSFORM = 21, SET_TRANSFORM = 22, CLIP_RECT = 23, SET_CLIP_RECT = 24, SET_CLIP = 25, CLIP = 26,
+                COPY_AREA = 27, DRAW_LINE = 28, FILL_RECT = 29, DRAW_RECT = 30, CLEAR_RECT = 31,
+                DRAW_ROUND_RECT = 32, FILL_ROUND_RECT = 33, DRAW_OVAL = 34, FILL_OVAL = 35, DRAW_ARC = 36, FILL_ARC = 37,
+                DRAW_POLYLINE = 38, DRAW_POLYGON = 39, FILL_POLYGON = 40,
+                DRAW_STRING = 41, DRAW_STRING_FLOAT = 42, DRAW_ITERATOR = 43, DRAW_ITERATOR_FLOAT = 44, DRAW_GLYPHS = 45,
+                DRAW_IMAGE = 46, DRAW_IMAGE_SCALED = 47, DRAW_IMAGE_REGION = 48, DRAW_IMAGE_TRANSFORM = 49,
+                DRAW_IMAGE_OP = 50, DRAW_RENDERED_IMAGE = 51, DRAW_RENDERABLE_IMAGE = 52, DRAW = 53, FILL = 54;
+
+        private int[] code = new int[64];
+        private int codeSize;
+        private double[] numbers = new double[16];
+        private int numbersSize;
+        private final List<Object> pool = new ArrayList<>();
+        private final Map<Object, Integer> poolIndex = new HashMap<>();
+        private int contexts, current = -1;
+        // Ids of disposed contexts, reused by new ones, so that ids and replay buffers are bounded by the
+        // maximum number of contexts alive at the same time.
+        private int[] freeContexts = new int[16];
+        private int freeContextsSize;
+        // Scratch buffers of the last finished replay, taken by the next one, so that replay doesn't allocate.
+        private final Object replayLock = new Object();
+        private ReplayBuffers spareBuffers;
+
+        private static final class ReplayBuffers {
+            Graphics2D[] graphics = new Graphics2D[0];
+            AffineTransform[] bases = new AffineTransform[0];
+            Shape[] baseClips = new Shape[0];
+            int[] x = new int[0], y = new int[0];
+        }
+
+        /**
+         * Creates empty display list.
+         */
+        public DisplayList() {}
+
+        /**
+         * Creates graphics recording into this display list. Initially it has identity transform and no clip,
+         * which on replay correspond to the transform and clip of the target graphics. Other attributes
+         * like color and font are copied from the prototype and recorded, so they don't depend on the target.
+         * @param prototype graphics to take initial attributes and device configuration from
+         * @return recording graphics
+         */
+        public Graphics2D createGraphics(Graphics2D prototype) {
+            return new DisplayListGraphics(this, prototype);
+        }
+
+        /**
+         * Checks whether anything was recorded.
+         * @return true if no graphics were created for this display list
+         */
+        public boolean isEmpty() {
+            return codeSize == 0;
+        }
+
+        /**
+         * Replays recorded operations into given graphics, which itself is left unchanged.
+         * @param g target graphics
+         */
+        public void replay(Graphics2D g) {
+            ReplayBuffers buffers;
+            synchronized (replayLock) {
+                buffers = spareBuffers;
+                spareBuffers = null;
+            }
+            if (buffers == null) buffers = new ReplayBuffers();
+            if (buffers.graphics.length < contexts) {
+                buffers.graphics = new Graphics2D[contexts];
+                buffers.bases = new AffineTransform[contexts];
+                buffers.baseClips = new Shape[contexts];
+            }
+            Graphics2D[] graphics = buffers.graphics;
+            AffineTransform[] bases = buffers.bases;
+            Shape[] baseClips = buffers.baseClips;
+            Graphics2D t = null;
+            int c = 0, ip = 0, np = 0;
+            try {
+                while (ip < codeSize) {
+                    switch (code[ip++]) {
+                        case SELECT:
+                            c = code[ip++];
+                            t = graphics[c];
+                            break;
+                        case CREATE: {
+                            int parent = code[ip++], child = code[ip++];
+                            if (parent == -1) {
+                                graphics[child] = (Graphics2D) g.create();
+                                bases[child] = g.getTransform();
+                                Shape clip = g.getClip();
+                                baseClips[child] = clip == null ? null : transform(bases[child], clip);
+                            } else {
+                                graphics[child] = (Graphics2D) graphics[parent].create();
+                                bases[child] = bases[parent];
+                                baseClips[child] = baseClips[parent];
+                            }
+                            break;
+                        }
+                        case DISPOSE:
+                            t.dispose();
+                            graphics[c] = t = null;
+                            break;
+                        case CONSTRAIN: {
+                            double x = numbers[np++], y = numbers[np++], w = numbers[np++], h = numbers[np++];
+                            AffineTransform base = new AffineTransform(bases[c]);
+                            base.translate(x, y);
+                            bases[c] = base;
+                            baseClips[c] = intersect(baseClips[c], transform(base, new Rectangle2D.Double(0, 0, w, h)));
+                            t.setTransform(base);
+                            resetClip(t, baseClips[c]);
+                            break;
+                        }
+                        case SET_COLOR: t.setColor((Color) get(code[ip++])); break;
+                        case SET_PAINT: t.setPaint((Paint) get(code[ip++])); break;
+                        case SET_FONT: t.setFont((Font) get(code[ip++])); break;
+                        case SET_STROKE: t.setStroke((Stroke) get(code[ip++])); break;
+                        case SET_COMPOSITE: t.setComposite((Composite) get(code[ip++])); break;
+                        case SET_PAINT_MODE: t.setPaintMode(); break;
+                        case SET_XOR_MODE: t.setXORMode((Color) get(code[ip++])); break;
+                        case SET_BACKGROUND: t.setBackground((Color) get(code[ip++])); break;
+                        case SET_HINT: t.setRenderingHint((RenderingHints.Key) get(code[ip++]), get(code[ip++])); break;
+                        case SET_HINTS: t.setRenderingHints((Map<?, ?>) get(code[ip++])); break;
+                        case ADD_HINTS: t.addRenderingHints((Map<?, ?>) get(code[ip++])); break;
+                        case TRANSLATE_INT: t.translate(code[ip++], code[ip++]); break;
+                        case TRANSLATE: t.translate(numbers[np++], numbers[np++]); break;
+                        case ROTATE: t.rotate(numbers[np++]); break;
+                        case ROTATE_AROUND: t.rotate(numbers[np++], numbers[np++], numbers[np++]); break;
+                        case SCALE: t.scale(numbers[np++], numbers[np++]); break;
+                        case SHEAR: t.shear(numbers[np++], numbers[np++]); break;
+                        case TRANSFORM: t.transform((AffineTransform) get(code[ip++])); break;
+                        case SET_TRANSFORM: {
+                            AffineTransform transform = new AffineTransform(bases[c]);
+                            transform.concatenate((AffineTransform) get(code[ip++]));
+                            t.setTransform(transform);
+                            break;
+                        }
+                        case CLIP_RECT: t.clipRect(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case SET_CLIP_RECT:
+                            resetClip(t, baseClips[c]);
+                            t.clipRect(code[ip++], code[ip++], code[ip++], code[ip++]);
+                            break;
+                        case SET_CLIP: {
+                            int shape = code[ip++];
+                            resetClip(t, baseClips[c]);
+                            if (shape != -1) t.clip((Shape) pool.get(shape));
+                            break;
+                        }
+                        case CLIP: {
+                            int shape = code[ip++];
+                            if (shape != -1) t.clip((Shape) pool.get(shape));
+                            else resetClip(t, baseClips[c]);
+                            break;
+                        }
+                        case COPY_AREA: t.copyArea(code[ip++], code[ip++], code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case DRAW_LINE: t.drawLine(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case FILL_RECT: t.fillRect(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case DRAW_RECT: t.drawRect(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case CLEAR_RECT: t.clearRect(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case DRAW_ROUND_RECT: t.drawRoundRect(code[ip++], code[ip++], code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case FILL_ROUND_RECT: t.fillRoundRect(code[ip++], code[ip++], code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case DRAW_OVAL: t.drawOval(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case FILL_OVAL: t.fillOval(code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case DRAW_ARC: t.drawArc(code[ip++], code[ip++], code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case FILL_ARC: t.fillArc(code[ip++], code[ip++], code[ip++], code[ip++], code[ip++], code[ip++]); break;
+                        case DRAW_POLYLINE:
+                        case DRAW_POLYGON:
+                        case FILL_POLYGON: {
+                            int op = code[ip - 1], n = code[ip++];
+                            if (buffers.x.length < n) {
+                                buffers.x = new int[n];
+                                buffers.y = new int[n];
+                            }
+                            int[] x = buffers.x, y = buffers.y;
+                            System.arraycopy(code, ip, x, 0, n);
+                            System.arraycopy(code, ip + n, y, 0, n);
+                            ip += n * 2;
+                            if (op == DRAW_POLYLINE) t.drawPolyline(x, y, n);
+                            else if (op == DRAW_POLYGON) t.drawPolygon(x, y, n);
+                            else t.fillPolygon(x, y, n);
+                            break;
+                        }
+                        case DRAW_STRING: t.drawString((String) get(code[ip++]), code[ip++], code[ip++]); break;
+                        case DRAW_STRING_FLOAT: t.drawString((String) get(code[ip++]), (float) numbers[np++], (float) numbers[np++]); break;
+                        case DRAW_ITERATOR: t.drawString(((AttributedString) get(code[ip++])).getIterator(), code[ip++], code[ip++]); break;
+                        case DRAW_ITERATOR_FLOAT:
+                            t.drawString(((AttributedString) get(code[ip++])).getIterator(), (float) numbers[np++], (float) numbers[np++]);
+                            break;
+                        case DRAW_GLYPHS: t.drawGlyphVector((GlyphVector) get(code[ip++]), (float) numbers[np++], (float) numbers[np++]); break;
+                        case DRAW_IMAGE: {
+                            Image image = (Image) get(code[ip++]);
+                            Color bg = (Color) get(code[ip++]);
+                            t.drawImage(image, code[ip++], code[ip++], bg, null);
+                            break;
+                        }
+                        case DRAW_IMAGE_SCALED: {
+                            Image image = (Image) get(code[ip++]);
+                            Color bg = (Color) get(code[ip++]);
+                            t.drawImage(image, code[ip++], code[ip++], code[ip++], code[ip++], bg, null);
+                            break;
+                        }
+                        case DRAW_IMAGE_REGION: {
+                            Image image = (Image) get(code[ip++]);
+                            Color bg = (Color) get(code[ip++]);
+                            t.drawImage(image, code[ip++], code[ip++], code[ip++], code[ip++],
+                                    code[ip++], code[ip++], code[ip++], code[ip++], bg, null);
+                            break;
+                        }
+                        case DRAW_IMAGE_TRANSFORM: t.drawImage((Image) get(code[ip++]), (AffineTransform) get(code[ip++]), null); break;
+                        case DRAW_IMAGE_OP:
+                            t.drawImage((BufferedImage) get(code[ip++]), (BufferedImageOp) get(code[ip++]), code[ip++], code[ip++]);
+                            break;
+                        case DRAW_RENDERED_IMAGE:
+                            t.drawRenderedImage((RenderedImage) get(code[ip++]), (AffineTransform) get(code[ip++]));
+                            break;
+                        case DRAW_RENDERABLE_IMAGE:
+                            t.drawRenderableImage((RenderableImage) get(code[ip++]), (AffineTransform) get(code[ip++]));
+                            break;
+                        case DRAW: t.draw((Shape) get(code[ip++])); break;
+                        case FILL: t.fill((Shape) get(code[ip++])); break;
+                        default: throw new IllegalStateException("Corrupted display list");
+                    }
+                }
+            } finally {
+                for (int i = 0; i < graphics.length; i++) {
+                    if (graphics[i] != null) graphics[i].dispose();
+                    graphics[i] = null;
+                    bases[i] = null;
+                    baseClips[i] = null;
+                }
+                synchronized (replayLock) {
+                    spareBuffers = buffers;
+                }
+            }
+        }
+
+        int[] code() { return code; }
+        int codeSize() { return codeSize; }
+        double[] numbers() { return numbers; }
+        int poolSize() { return pool.size(); }
+        Object poolObject(int index) { return pool.get(index); }
+
+        /**
+         * Drops recorded operations and pooled objects referenced by them, but keeps contexts, so that recording
+         * can continue as if nothing happened. Used for streaming, when operations were already consumed.
+         */
+        void discardOperations() {
+            codeSize = 0;
+            numbersSize = 0;
+            pool.clear();
+            poolIndex.clear();
+        }
+
+        private Object get(int index) {
+            return index == -1 ? null : pool.get(index);
+        }
+
+        private static void resetClip(Graphics2D g, Shape deviceClip) {
+            AffineTransform transform = g.getTransform();
+            g.setTransform(new AffineTransform());
+            g.setClip(deviceClip);
+            g.setTransform(transform);
+        }
+
+        static Shape transform(AffineTransform transform, Shape shape) {
+            if (shape instanceof Rectangle2D && (transform.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0) {
+                Rectangle2D r = (Rectangle2D) shape;
+                return new Rectangle2D.Double(r.getX() + transform.getTranslateX(), r.getY() + transform.getTranslateY(),
+                        r.getWidth(), r.getHeight());
+            }
+            return transform.createTransformedShape(shape);
+        }
+
+        static Shape intersect(Shape a, Shape b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a instanceof Rectangle2D && b instanceof Rectangle2D) {
+                return ((Rectangle2D) a).createIntersection((Rectangle2D) b);
+            }
+            Area area = new Area(a);
+            area.intersect(new Area(b));
+            return area;
+        }
+
+        int createContext(int parent) {
+            int context = freeContextsSize > 0 ? freeContexts[--freeContextsSize] : contexts++;
+            ensureCode(3);
+            code[codeSize++] = CREATE;
+            code[codeSize++] = parent;
+            code[codeSize++] = context;
+            return context;
+        }
+
+        void disposeContext(int context) {
+            op(context, DISPOSE);
+            // Replay forgets disposed context, so the next one with the same id must be selected explicitly.
+            current = -1;
+            if (freeContextsSize == freeContexts.length) freeContexts = Arrays.copyOf(freeContexts, freeContextsSize * 2);
+            freeContexts[freeContextsSize++] = context;
+        }
+
+        void op(int context, int opcode) {
+            ensureCode(4);
+            if (context != current) {
+                code[codeSize++] = SELECT;
+                code[codeSize++] = context;
+                current = context;
+            }
+            code[codeSize++] = opcode;
+        }
+
+        void arg(int value) {
+            ensureCode(1);
+            code[codeSize++] = value;
+        }
+
+        void args(int[] values, int count) {
+            ensureCode(count);
+            System.arraycopy(values, 0, code, codeSize, count);
+            codeSize += count;
+        }
+
+        void arg(double value) {
+            if (numbersSize == numbers.length) numbers = Arrays.copyOf(numbers, numbersSize * 2);
+            numbers[numbersSize++] = value;
+        }
+
+        void arg(Object value) {
+            int index = -1;
+            if (value != null) {
+                Integer existing = poolIndex.get(value);
+                if (existing != null) index = existing;
+                else {
+                    index = pool.size();
+                    pool.add(value);
+                    poolIndex.put(value, index);
+                }
+            }
+            arg(index);
+        }
+
+        private void ensureCode(int size) {
+            if (codeSize + size > code.length) code = Arrays.copyOf(code, Math.max(codeSize + size, code.length * 2));
+        }
+    }
 }
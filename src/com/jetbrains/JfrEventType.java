@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Optional JFR event type. Event types are defined at runtime with {@code jdk.jfr.EventFactory}, which is
+ * looked up reflectively, so that JBR API doesn't depend on {@code jdk.jfr} module, which is only available
+ * since Java 11. When it's not available, events are not emitted and cost a single null check.
+ */
+final class JfrEventType {
+    // Content types of fields.
+    static final int PLAIN = 0, TIMESPAN = 1, DATA_AMOUNT = 2;
+
+    private static final MethodHandle NEW_EVENT, IS_ENABLED, BEGIN, SET, COMMIT;
+    static {
+        MethodHandle newEvent, isEnabled = null, begin = null, set = null, commit = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory"), event = Class.forName("jdk.jfr.Event"),
+                    type = Class.forName("jdk.jfr.EventType");
+            // Erase jdk.jfr types, so that invokeExact call sites don't need to mention them.
+            newEvent = lookup.findVirtual(factory, "newEvent", methodType(event)).asType(methodType(Object.class, Object.class));
+            isEnabled = lookup.findVirtual(type, "isEnabled", methodType(boolean.class)).asType(methodType(boolean.class, Object.class));
+            begin = lookup.findVirtual(event, "begin", methodType(void.class)).asType(methodType(void.class, Object.class));
+            set = lookup.findVirtual(event, "set", methodType(void.class, int.class, Object.class))
+                    .asType(methodType(void.class, Object.class, int.class, Object.class));
+            commit = lookup.findVirtual(event, "commit", methodType(void.class)).asType(methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            // jdk.jfr module is not available.
+            newEvent = null;
+        }
+        NEW_EVENT = newEvent;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private final Object factory, eventType;
+
+    private JfrEventType(Object factory, Object eventType) {
+        this.factory = factory;
+        this.eventType = eventType;
+    }
+
+    /**
+     * Defines event type, which is never enabled when JFR is not available.
+     * @param name event name, like {@code jetbrains.Upload}
+     * @param label human-readable event name
+     * @param description event description
+     * @param fieldNames names of event fields, which are also their labels
+     * @param fieldTypes types of event fields, primitive types or {@link String}
+     * @param contentTypes content types of event fields, {@link #PLAIN}, {@link #TIMESPAN} in nanoseconds,
+     *                     or {@link #DATA_AMOUNT} in bytes
+     * @return event type
+     */
+    static JfrEventType define(String name, String label, String description,
+                            String[] fieldNames, Class<?>[] fieldTypes, int[] contentTypes) {
+        if (NEW_EVENT == null) return new JfrEventType(null, null);
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+            List<Object> annotations = Arrays.asList(
+                    newAnnotation.newInstance(annotation("Name"), name),
+                    newAnnotation.newInstance(annotation("Label"), label),
+                    newAnnotation.newInstance(annotation("Description"), description),
+                    newAnnotation.newInstance(annotation("Category"), new String[] {"JetBrains Runtime"}));
+            List<Object> fields = new ArrayList<>();
+            for (int i = 0; i < fieldNames.length; i++) {
+                List<Object> fieldAnnotations = new ArrayList<>();
+                fieldAnnotations.add(newAnnotation.newInstance(annotation("Label"), fieldNames[i]));
+                if (contentTypes[i] == TIMESPAN) {
+                    fieldAnnotations.add(newAnnotation.newInstance(annotation("Timespan"), "NANOSECONDS"));
+                } else if (contentTypes[i] == DATA_AMOUNT) {
+                    fieldAnnotations.add(newAnnotation.newInstance(annotation("DataAmount"), "BYTES"));
+                }
+                fields.add(newField.newInstance(fieldTypes[i], fieldNames[i], fieldAnnotations));
+            }
+            Object factory = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+                    .invoke(null, annotations, fields);
+            Object eventType = factory.getClass().getMethod("getEventType").invoke(factory);
+            return new JfrEventType(factory, eventType);
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            return new JfrEventType(null, null);
+        }
+    }
+
+    private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+        return Class.forName("jdk.jfr." + name).asSubclass(Annotation.class);
+    }
+
+    /**
+     * Checks whether events of this type are recorded by any running recording.
+     * @return true if events are recorded
+     */
+    boolean isEnabled() {
+        if (eventType == null) return false;
+        try {
+            return (boolean) IS_ENABLED.invokeExact(eventType);
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    /**
+     * Starts timing an event, if events of this type are recorded.
+     * @return started event, or null if events are not recorded
+     */
+    Object begin() {
+        if (!isEnabled()) return null;
+        try {
+            Object event = (Object) NEW_EVENT.invokeExact(factory);
+            BEGIN.invokeExact(event);
+            return event;
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    /**
+     * Ends timing of the event and commits it with given field values.
+     * @param event event returned by {@link #begin()}, nothing is done if it's null
+     * @param values values of all fields in order of their definition
+     */
+    static void commit(Object event, Object... values) {
+        if (event == null) return;
+        try {
+            for (int i = 0; i < values.length; i++) SET.invokeExact(event, i, values[i]);
+            COMMIT.invokeExact(event);
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new IllegalStateException(e);
+    }
+}
@@ -16,6 +16,28 @@
 
 package com.jetbrains;
 
+import java.awt.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -39,6 +61,1255 @@ public interface Jstack {
      *                     included into jstack's output. If {@code null},
      *                     then the previously registered supplier is removed
      *                     (if any) and no extra info will be included.
+     * @see InfoSuppliers
      */
     void includeInfoFrom(Supplier<String> infoSupplier);
+
+    /**
+     * Combines multiple named suppliers into one, which can be passed to {@link #includeInfoFrom(Supplier)}.
+     * Suppliers are evaluated in parallel on daemon threads, so that a slow one doesn't delay the others,
+     * and their output is included in the order of registration. Each supplier has a deadline and the whole
+     * evaluation has a deadline too, which bounds the time added to the thread dump. When a supplier misses
+     * its deadline or throws, a line with its name and the reason is included instead of its output.
+     * Supplier which is still running since a previous dump is not invoked again until it completes.
+     * <p>
+     * Besides plain suppliers, sections can be written with {@link InfoWriter}, which streams text and
+     * structured records into a buffer limited in size, instead of building the whole section as a string.
+     * In {@link #FORMAT_JSON_LINES} format all output, including plain text and failures, is made of
+     * JSON objects, one per line, each with a {@code "section"} field holding the name of its supplier.
+     */
+    final class InfoSuppliers implements Supplier<String> {
+        /**
+         * Plain text format, records are written as space-separated {@code key=value} pairs.
+         */
+        public static final int FORMAT_TEXT = 0;
+        /**
+         * JSON lines format. Records are written as JSON objects, plain text is written as one
+         * {@code {"section": ..., "text": ...}} object per line, failures as {@code {"section": ..., "error": ...}}
+         * and truncated sections are terminated with {@code {"section": ..., "truncated": true}}.
+         */
+        public static final int FORMAT_JSON_LINES = 1;
+
+        private final Object lock = new Object();
+        private final long supplierTimeoutNanos, totalTimeoutNanos;
+        private final int format, maxSectionLength;
+        private final List<Entry> entries = new ArrayList<>();
+        private ExecutorService executor;
+
+        /**
+         * Creates empty combined supplier with plain text output and no limit on section size.
+         * @param supplierTimeout maximum time to wait for each supplier
+         * @param totalTimeout maximum time to wait for all suppliers together
+         * @param unit unit of the timeouts
+         */
+        public InfoSuppliers(long supplierTimeout, long totalTimeout, TimeUnit unit) {
+            this(supplierTimeout, totalTimeout, unit, FORMAT_TEXT, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Creates empty combined supplier.
+         * @param supplierTimeout maximum time to wait for each supplier
+         * @param totalTimeout maximum time to wait for all suppliers together
+         * @param unit unit of the timeouts
+         * @param format {@link #FORMAT_TEXT} or {@link #FORMAT_JSON_LINES}
+         * @param maxSectionLength maximum number of characters of each section, longer sections are truncated
+         */
+        public InfoSuppliers(long supplierTimeout, long totalTimeout, TimeUnit unit, int format, int maxSectionLength) {
+            if (format != FORMAT_TEXT && format != FORMAT_JSON_LINES) throw new IllegalArgumentException("Unknown format");
+            supplierTimeoutNanos = unit.toNanos(supplierTimeout);
+            totalTimeoutNanos = unit.toNanos(totalTimeout);
+            this.format = format;
+            this.maxSectionLength = maxSectionLength;
+        }
+
+        /**
+         * Registers a supplier, replacing the previous one with the same name.
+         * @param name name of the supplier used for reporting its failures
+         * @param supplier supplier of the text to be included
+         */
+        public void add(String name, Supplier<String> supplier) {
+            addWriter(name, writer -> {
+                String info = supplier.get();
+                if (info != null) writer.append(info);
+            });
+        }
+
+        /**
+         * Registers a section writer, replacing the previous supplier with the same name.
+         * @param name name of the section
+         * @param writer function writing the section
+         */
+        public void addWriter(String name, Consumer<InfoWriter> writer) {
+            synchronized (lock) {
+                remove(name);
+                entries.add(new Entry(name, writer));
+            }
+        }
+
+        /**
+         * Unregisters a supplier.
+         * @param name name of the supplier
+         */
+        public void remove(String name) {
+            synchronized (lock) {
+                entries.removeIf(e -> e.name.equals(name));
+            }
+        }
+
+        /**
+         * Evaluates all suppliers and joins their output with line breaks.
+         * @return combined output
+         */
+        @Override
+        public String get() {
+            long start = System.nanoTime(), deadline = start + totalTimeoutNanos;
+            Entry[] snapshot;
+            List<Future<String>> futures = new ArrayList<>();
+            synchronized (lock) {
+                snapshot = entries.toArray(new Entry[0]);
+                if (snapshot.length > 0 && executor == null) {
+                    executor = Executors.newCachedThreadPool(r -> {
+                        Thread thread = new Thread(r, "Jstack info supplier");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                for (Entry e : snapshot) {
+                    if (e.pending != null && !e.pending.isDone()) futures.add(null);
+                    else futures.add(e.pending = executor.submit(() -> {
+                        InfoWriter writer = new InfoWriter(format, e.name, maxSectionLength);
+                        e.writer.accept(writer);
+                        return writer.finish();
+                    }));
+                }
+            }
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < snapshot.length; i++) {
+                String name = snapshot[i].name, info;
+                Future<String> future = futures.get(i);
+                if (future == null) info = error(name, "still running since previous dump");
+                else {
+                    try {
+                        long timeout = Math.min(start + supplierTimeoutNanos, deadline) - System.nanoTime();
+                        info = future.get(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        info = error(name, new StringBuilder("timed out after ")
+                                .append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).append(" ms").toString());
+                    } catch (ExecutionException e) {
+                        info = error(name, new StringBuilder("failed with ").append(e.getCause()).toString());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        info = error(name, "interrupted");
+                    }
+                }
+                if (info.isEmpty()) continue;
+                if (result.length() > 0) result.append('\n');
+                result.append(info);
+            }
+            return result.toString();
+        }
+
+        private String error(String name, String message) {
+            if (format == FORMAT_JSON_LINES) {
+                return new InfoWriter(format, name, Integer.MAX_VALUE).field("error", message).endRecord().finish();
+            }
+            return new StringBuilder(name).append(": ").append(message).toString();
+        }
+
+        private static final class Entry {
+            private final String name;
+            private final Consumer<InfoWriter> writer;
+            private Future<String> pending;
+
+            private Entry(String name, Consumer<InfoWriter> writer) {
+                this.name = name;
+                this.writer = writer;
+            }
+        }
+    }
+
+    /**
+     * Writer of a section of {@link InfoSuppliers} output, which accepts both plain text and structured records.
+     * Output beyond the maximum length is dropped and the section is marked as truncated. In JSON lines
+     * format output is truncated at the last complete line, so that every line remains a valid JSON object.
+     * Writer is not thread-safe.
+     */
+    final class InfoWriter implements Appendable {
+        private final StringBuilder out = new StringBuilder();
+        private final boolean json;
+        private final String section;
+        private final int maxLength;
+        private int lineStart;
+        private boolean textLine, record, truncated;
+
+        /**
+         * Creates empty writer.
+         * @param format {@link InfoSuppliers#FORMAT_TEXT} or {@link InfoSuppliers#FORMAT_JSON_LINES}
+         * @param section name of the section
+         * @param maxLength maximum number of characters to write
+         */
+        public InfoWriter(int format, String section, int maxLength) {
+            json = format == InfoSuppliers.FORMAT_JSON_LINES;
+            this.section = section;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * Returns format of the output.
+         * @return {@link InfoSuppliers#FORMAT_TEXT} or {@link InfoSuppliers#FORMAT_JSON_LINES}
+         */
+        public int getFormat() {
+            return json ? InfoSuppliers.FORMAT_JSON_LINES : InfoSuppliers.FORMAT_TEXT;
+        }
+
+        /**
+         * Writes plain text, which in JSON lines format is written as a separate object per line.
+         * @param csq text to write
+         * @return this writer
+         */
+        @Override
+        public InfoWriter append(CharSequence csq) {
+            if (csq == null) csq = "null";
+            return append(csq, 0, csq.length());
+        }
+
+        /**
+         * Writes a part of plain text, see {@link #append(CharSequence)}.
+         * @param csq text to write
+         * @param start index of the first character to write
+         * @param end index after the last character to write
+         * @return this writer
+         */
+        @Override
+        public InfoWriter append(CharSequence csq, int start, int end) {
+            if (csq == null) csq = "null";
+            for (int i = start; i < end && !truncated; i++) append(csq.charAt(i));
+            return this;
+        }
+
+        /**
+         * Writes a character of plain text, see {@link #append(CharSequence)}.
+         * @param c character to write
+         * @return this writer
+         */
+        @Override
+        public InfoWriter append(char c) {
+            if (truncated) return this;
+            if (!json) out.append(c);
+            else {
+                endRecord();
+                if (!textLine) {
+                    begin();
+                    out.append(",\"text\":\"");
+                    textLine = true;
+                }
+                if (c != '\n') escape(c);
+                else {
+                    out.append("\"}\n");
+                    textLine = false;
+                    lineStart = out.length();
+                }
+            }
+            checkLength();
+            return this;
+        }
+
+        /**
+         * Adds a field to the current record, starting a new record if needed.
+         * Numbers and booleans are written to JSON as is, other values as strings.
+         * @param key name of the field
+         * @param value value of the field
+         * @return this writer
+         */
+        public InfoWriter field(String key, Object value) {
+            if (truncated) return this;
+            if (json) {
+                endTextLine();
+                if (!record) begin();
+                out.append(",\"");
+                escape(key);
+                out.append("\":");
+                if (value == null || value instanceof Boolean ||
+                        (value instanceof Number && Double.isFinite(((Number) value).doubleValue()))) {
+                    out.append(value);
+                } else {
+                    out.append('"');
+                    escape(String.valueOf(value));
+                    out.append('"');
+                }
+            } else {
+                if (record) out.append(' ');
+                out.append(key).append('=').append(value);
+            }
+            record = true;
+            checkLength();
+            return this;
+        }
+
+        /**
+         * Completes the current record, if any.
+         * @return this writer
+         */
+        public InfoWriter endRecord() {
+            if (!record || truncated) return this;
+            out.append(json ? "}\n" : "\n");
+            record = false;
+            lineStart = out.length();
+            checkLength();
+            return this;
+        }
+
+        String finish() {
+            if (json) {
+                endTextLine();
+                endRecord();
+            } else if (record) {
+                endRecord();
+            }
+            if (truncated) {
+                if (json) {
+                    begin();
+                    out.append(",\"truncated\":true}\n");
+                } else {
+                    if (out.length() > 0 && out.charAt(out.length() - 1) != '\n') out.append('\n');
+                    out.append("... truncated\n");
+                }
+            }
+            if (out.length() > 0 && out.charAt(out.length() - 1) == '\n') out.setLength(out.length() - 1);
+            return out.toString();
+        }
+
+        private void begin() {
+            out.append("{\"section\":\"");
+            escape(section);
+            out.append('"');
+        }
+
+        private void endTextLine() {
+            if (textLine) {
+                out.append("\"}\n");
+                textLine = false;
+                lineStart = out.length();
+            }
+        }
+
+        private void checkLength() {
+            if (out.length() <= maxLength) return;
+            out.setLength(json ? lineStart : maxLength);
+            truncated = true;
+            textLine = record = false;
+        }
+
+        private void escape(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) escape(s.charAt(i));
+        }
+
+        private void escape(char c) {
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c >= 0x20) out.append(c);
+                    else out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            }
+        }
+    }
+
+    /**
+     * Continuous sampler of stacks of selected threads, like the event dispatch thread and named pools,
+     * which helps to find intermittent freezes that a single thread dump rarely catches.
+     * Stacks are interned, each sample is stored as a timestamp and a stack id in a fixed-size ring buffer
+     * outside the Java heap. When intern tables are full, they are rebuilt from the stacks still present
+     * in the ring buffer, so memory used by the sampler doesn't grow over time. Stacks which don't fit
+     * even after that are counted as {@code [other stacks]}.
+     * <p>
+     * Summary of samples taken during the last seconds is written in collapsed stacks format, one line
+     * per distinct stack with frames separated by semicolons from the thread name to the innermost frame,
+     * followed by the number of samples, which can be fed to flame graph tools directly. Register it with
+     * {@link InfoSuppliers#addWriter(String, Consumer)} to append it to thread dumps.
+     * <p>
+     * Samples are taken with {@link Thread#getStackTrace()}, so they are biased towards safepoints.
+     */
+    final class StackSampler {
+        private static final int SAMPLE_SIZE = 12, MAX_DEPTH = 128, MAX_STACKS = 8192, MAX_FRAMES = 65536;
+        private static final long THREAD_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final Object lock = new Object();
+        private final long intervalNanos;
+        private final String[] threadNamePrefixes;
+        private final ByteBuffer samples;
+        private final int capacity;
+        private final Map<StackTraceElement, Integer> elementIds = new HashMap<>();
+        private final Map<String, Integer> frameIds = new HashMap<>();
+        private final List<String> frames = new ArrayList<>();
+        private final Map<Stack, Integer> stackIds = new HashMap<>();
+        private final List<Stack> stacks = new ArrayList<>();
+        private long totalSamples, compactedSamples;
+        private Thread sampler;
+        private Thread[] threads = new Thread[0];
+        private long threadsRefreshTime;
+
+        /**
+         * Creates sampler, which must be started with {@link #start()}.
+         * @param interval time between samples
+         * @param unit unit of the interval
+         * @param capacity maximum number of stored samples, older samples are overwritten
+         * @param threadNamePrefixes prefixes of names of sampled threads, e.g. {@code "AWT-EventQueue"}
+         */
+        public StackSampler(long interval, TimeUnit unit, int capacity, String... threadNamePrefixes) {
+            if (interval <= 0 || capacity <= 0) throw new IllegalArgumentException("Interval and capacity must be positive");
+            intervalNanos = unit.toNanos(interval);
+            this.capacity = capacity;
+            this.threadNamePrefixes = threadNamePrefixes.clone();
+            samples = ByteBuffer.allocateDirect(Math.multiplyExact(capacity, SAMPLE_SIZE));
+            clearTables();
+        }
+
+        /**
+         * Starts sampling on a daemon thread, does nothing if already started.
+         */
+        public void start() {
+            synchronized (lock) {
+                if (sampler != null) return;
+                sampler = new Thread(this::run, "Jstack stack sampler");
+                sampler.setDaemon(true);
+                sampler.start();
+            }
+        }
+
+        /**
+         * Stops sampling, collected samples are kept.
+         */
+        public void stop() {
+            synchronized (lock) {
+                if (sampler == null) return;
+                sampler.interrupt();
+                sampler = null;
+            }
+        }
+
+        /**
+         * Number of samples taken since creation, including overwritten ones.
+         * @return number of samples
+         */
+        public long getTotalSamples() {
+            synchronized (lock) {
+                return totalSamples;
+            }
+        }
+
+        /**
+         * Creates section writer with summary of recent samples, see {@link #writeSummary(InfoWriter, long, TimeUnit)}.
+         * @param window time period to summarize, ending at the moment of writing
+         * @param unit unit of the period
+         * @return section writer
+         */
+        public Consumer<InfoWriter> summary(long window, TimeUnit unit) {
+            return writer -> writeSummary(writer, window, unit);
+        }
+
+        /**
+         * Writes summary of samples taken during the given period, ending now, most frequent stacks first.
+         * In plain text each stack is written as a collapsed stack line, otherwise as a record
+         * with {@code stack} and {@code samples} fields.
+         * @param writer writer of the section
+         * @param window time period to summarize
+         * @param unit unit of the period
+         */
+        public void writeSummary(InfoWriter writer, long window, TimeUnit unit) {
+            Map<Integer, int[]> counts = new HashMap<>();
+            String[] frameNames;
+            Stack[] stackFrames;
+            synchronized (lock) {
+                long since = System.nanoTime() - unit.toNanos(window);
+                long n = Math.min(totalSamples, capacity);
+                for (long i = totalSamples - n; i < totalSamples; i++) {
+                    int offset = (int) (i % capacity) * SAMPLE_SIZE;
+                    if (samples.getLong(offset) - since < 0) continue;
+                    counts.computeIfAbsent(samples.getInt(offset + 8), id -> new int[1])[0]++;
+                }
+                frameNames = frames.toArray(new String[0]);
+                stackFrames = stacks.toArray(new Stack[0]);
+            }
+            List<Map.Entry<Integer, int[]>> sorted = new ArrayList<>(counts.entrySet());
+            sorted.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+            StringBuilder line = new StringBuilder();
+            for (Map.Entry<Integer, int[]> e : sorted) {
+                line.setLength(0);
+                int[] ids = stackFrames[e.getKey()].frames;
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0) line.append(';');
+                    line.append(frameNames[ids[i]]);
+                }
+                if (writer.getFormat() == InfoSuppliers.FORMAT_TEXT) {
+                    writer.append(line).append(' ').append(Integer.toString(e.getValue()[0])).append('\n');
+                } else {
+                    writer.field("stack", line).field("samples", e.getValue()[0]).endRecord();
+                }
+            }
+        }
+
+        private void run() {
+            long next = System.nanoTime();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    sample();
+                    next += intervalNanos;
+                    long delay = next - System.nanoTime();
+                    // Don't try to catch up after a pause, like a long GC.
+                    if (delay < 0) next -= delay;
+                    else TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            } catch (InterruptedException ignore) {}
+        }
+
+        private void sample() {
+            long now = System.nanoTime();
+            if (now - threadsRefreshTime >= THREAD_REFRESH_NANOS || threadsRefreshTime == 0) {
+                threads = findThreads();
+                threadsRefreshTime = now;
+            }
+            for (Thread thread : threads) {
+                if (!thread.isAlive()) continue;
+                StackTraceElement[] trace = thread.getStackTrace();
+                if (trace.length == 0) continue;
+                record(now, thread.getName(), trace);
+            }
+        }
+
+        private void record(long time, String threadName, StackTraceElement[] trace) {
+            synchronized (lock) {
+                int id = intern(threadName, trace);
+                int offset = (int) (totalSamples++ % capacity) * SAMPLE_SIZE;
+                samples.putLong(offset, time);
+                samples.putInt(offset + 8, id);
+            }
+        }
+
+        private Thread[] findThreads() {
+            ThreadGroup root = Thread.currentThread().getThreadGroup();
+            while (root.getParent() != null) root = root.getParent();
+            Thread[] all = new Thread[root.activeCount() * 2 + 16];
+            int count = root.enumerate(all, true);
+            List<Thread> result = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                for (String prefix : threadNamePrefixes) {
+                    if (all[i].getName().startsWith(prefix)) {
+                        result.add(all[i]);
+                        break;
+                    }
+                }
+            }
+            return result.toArray(new Thread[0]);
+        }
+
+        private int intern(String threadName, StackTraceElement[] trace) {
+            // Rebuilding tables costs a pass over the ring buffer, so it is done at most once per
+            // as many samples as fit into the buffer or the tables, whichever is less.
+            if (isFull() && totalSamples - compactedSamples >= Math.min(capacity, MAX_STACKS)) compact();
+            // When tables are still full, only known stacks are looked up, so that tables don't grow.
+            boolean add = !isFull();
+            int depth = Math.min(trace.length, MAX_DEPTH);
+            int[] ids = new int[depth + 1];
+            if ((ids[0] = internFrame(threadName, add)) < 0) return 0;
+            // Stack trace starts with the innermost frame, collapsed stack starts with the outermost.
+            for (int i = 0; i < depth; i++) {
+                if ((ids[depth - i] = internFrame(trace[i], add)) < 0) return 0;
+            }
+            Stack stack = new Stack(ids);
+            Integer id = stackIds.get(stack);
+            if (id != null) return id;
+            if (!add) return 0;
+            stackIds.put(stack, stacks.size());
+            stacks.add(stack);
+            return stacks.size() - 1;
+        }
+
+        private boolean isFull() {
+            return stacks.size() >= MAX_STACKS || frames.size() >= MAX_FRAMES || elementIds.size() >= MAX_FRAMES;
+        }
+
+        private void clearTables() {
+            elementIds.clear();
+            frameIds.clear();
+            frames.clear();
+            stackIds.clear();
+            stacks.clear();
+            stacks.add(new Stack(new int[] {internFrame("[other stacks]", true)}));
+        }
+
+        // Rebuilds intern tables from the stacks referenced by the ring buffer and renumbers them in the buffer.
+        private void compact() {
+            compactedSamples = totalSamples;
+            Stack[] oldStacks = stacks.toArray(new Stack[0]);
+            String[] oldFrames = frames.toArray(new String[0]);
+            clearTables();
+            int[] newIds = new int[oldStacks.length];
+            int n = (int) Math.min(totalSamples, capacity);
+            for (int i = 0; i < n; i++) {
+                int offset = i * SAMPLE_SIZE + 8;
+                int id = samples.getInt(offset);
+                if (id != 0 && newIds[id] == 0) {
+                    int[] ids = oldStacks[id].frames.clone();
+                    for (int j = 0; j < ids.length; j++) ids[j] = internFrame(oldFrames[ids[j]], true);
+                    newIds[id] = stacks.size();
+                    Stack stack = new Stack(ids);
+                    stackIds.put(stack, newIds[id]);
+                    stacks.add(stack);
+                }
+                samples.putInt(offset, newIds[id]);
+            }
+        }
+
+        private int internFrame(StackTraceElement element, boolean add) {
+            Integer id = elementIds.get(element);
+            if (id == null) {
+                // Frames are identified by method, so that stacks differing only in line numbers are merged.
+                id = internFrame(new StringBuilder(element.getClassName()).append('.').append(element.getMethodName()).toString(), add);
+                if (id >= 0 && add) elementIds.put(element, id);
+            }
+            return id;
+        }
+
+        private int internFrame(String name, boolean add) {
+            Integer id = frameIds.get(name);
+            if (id == null) {
+                if (!add) return -1;
+                id = frames.size();
+                frames.add(name);
+                frameIds.put(name, id);
+            }
+            return id;
+        }
+
+        private static final class Stack {
+            private final int[] frames;
+            private final int hash;
+
+            private Stack(int[] frames) {
+                this.frames = frames;
+                hash = Arrays.hashCode(frames);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Stack && Arrays.equals(frames, ((Stack) o).frames);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+        }
+    }
+
+    /**
+     * Watchdog detecting freezes of the event dispatch thread, that is events taking longer than a threshold
+     * to dispatch. During a freeze it captures stacks of the event dispatch thread at increasing intervals:
+     * when the threshold is reached, then after twice the threshold, four times and so on, together with
+     * the lock the thread is blocked on and the stack of its owner. Last freezes are kept in memory.
+     * <p>
+     * Dispatch is timestamped either by an event queue pushed with {@link #install()}, or by calls to
+     * {@link #dispatchStarted(AWTEvent)} and {@link #dispatchFinished()} from an application event queue.
+     * It costs two {@link System#nanoTime()} calls and a few field writes per event, and the watchdog thread
+     * wakes up a few times per threshold, so the watchdog can be left enabled in production.
+     * Duration of freezes is measured with the precision of a quarter of the threshold.
+     */
+    final class FreezeWatchdog {
+        private static final int MAX_CAPTURES = 8, MAX_DEPTH = 256;
+
+        private final Object lock = new Object();
+        private final long thresholdNanos;
+        private final int maxFreezes;
+        private final ArrayDeque<Freeze.Builder> freezes = new ArrayDeque<>();
+        private volatile Thread dispatchThread;
+        private volatile long dispatchStart, dispatchCount;
+        private volatile AWTEvent dispatchEvent;
+        private int depth;
+        private long totalFreezes;
+        private Thread watchdog;
+
+        /**
+         * Creates watchdog, which must be started with {@link #start()}.
+         * @param threshold minimum duration of event dispatch considered a freeze
+         * @param unit unit of the threshold
+         * @param maxFreezes maximum number of freezes to keep, older ones are dropped
+         */
+        public FreezeWatchdog(long threshold, TimeUnit unit, int maxFreezes) {
+            if (threshold <= 0 || maxFreezes <= 0) throw new IllegalArgumentException("Threshold and history size must be positive");
+            thresholdNanos = unit.toNanos(threshold);
+            this.maxFreezes = maxFreezes;
+        }
+
+        /**
+         * Pushes event queue, which timestamps dispatch of all events.
+         * Don't use it together with explicit {@link #dispatchStarted(AWTEvent)} calls.
+         */
+        public void install() {
+            Toolkit.getDefaultToolkit().getSystemEventQueue().push(new EventQueue() {
+                @Override
+                protected void dispatchEvent(AWTEvent event) {
+                    dispatchStarted(event);
+                    try {
+                        super.dispatchEvent(event);
+                    } finally {
+                        dispatchFinished();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Marks start of event dispatch, must be called on the event dispatch thread.
+         * Nested dispatch, e.g. by a modal dialog, is supported.
+         * @param event event being dispatched
+         */
+        public void dispatchStarted(AWTEvent event) {
+            if (dispatchThread != Thread.currentThread()) dispatchThread = Thread.currentThread();
+            depth++;
+            dispatchEvent = event;
+            dispatchCount++;
+            dispatchStart = System.nanoTime();
+        }
+
+        /**
+         * Marks end of event dispatch, must be called on the event dispatch thread.
+         */
+        public void dispatchFinished() {
+            // When nested dispatch ends, the outer event resumes, so it is timed from now on.
+            dispatchStart = --depth > 0 ? System.nanoTime() : 0;
+            dispatchEvent = null;
+            dispatchCount++;
+        }
+
+        /**
+         * Starts watchdog daemon thread, does nothing if already started.
+         */
+        public void start() {
+            synchronized (lock) {
+                if (watchdog != null) return;
+                watchdog = new Thread(this::run, "Jstack freeze watchdog");
+                watchdog.setDaemon(true);
+                watchdog.start();
+            }
+        }
+
+        /**
+         * Stops watchdog thread, collected freezes are kept.
+         */
+        public void stop() {
+            synchronized (lock) {
+                if (watchdog == null) return;
+                watchdog.interrupt();
+                watchdog = null;
+            }
+        }
+
+        /**
+         * Number of freezes detected since creation, including dropped ones.
+         * @return number of freezes
+         */
+        public long getTotalFreezes() {
+            synchronized (lock) {
+                return totalFreezes;
+            }
+        }
+
+        /**
+         * Returns last freezes, oldest first. The last one may be still in progress.
+         * @return list of freezes
+         */
+        public List<Freeze> getFreezes() {
+            synchronized (lock) {
+                List<Freeze> result = new ArrayList<>(freezes.size());
+                for (Freeze.Builder freeze : freezes) result.add(freeze.build());
+                return result;
+            }
+        }
+
+        /**
+         * Creates section writer with last freezes, see {@link #writeFreezes(InfoWriter)}.
+         * @return section writer
+         */
+        public Consumer<InfoWriter> history() {
+            return this::writeFreezes;
+        }
+
+        /**
+         * Writes last freezes. In plain text each freeze is written as a header followed by its captured stacks,
+         * otherwise each capture is written as a record with fields describing the freeze and the capture,
+         * stacks are written as frames separated by semicolons, starting with the innermost frame.
+         * @param writer writer of the section
+         */
+        public void writeFreezes(InfoWriter writer) {
+            boolean text = writer.getFormat() == InfoSuppliers.FORMAT_TEXT;
+            StringBuilder line = new StringBuilder();
+            for (Freeze freeze : getFreezes()) {
+                if (text) {
+                    writer.append("EDT freeze of ").append(Long.toString(freeze.getDurationMillis()))
+                            .append(freeze.isFinished() ? " ms" : " ms, in progress").append(", started at ")
+                            .append(Long.toString(freeze.getStartTimeMillis())).append(" ms, dispatching ")
+                            .append(freeze.getEvent()).append('\n');
+                }
+                for (Freeze.Capture capture : freeze.getCaptures()) {
+                    if (text) {
+                        writer.append("  after ").append(Long.toString(capture.getTimeMillis())).append(" ms");
+                        if (capture.getLockName() != null) writer.append(", blocked on ").append(capture.getLockName());
+                        if (capture.getLockOwnerName() != null) writer.append(" owned by \"").append(capture.getLockOwnerName()).append('"');
+                        writer.append('\n');
+                        for (StackTraceElement frame : capture.getStackTrace()) writer.append("\tat ").append(frame.toString()).append('\n');
+                        if (capture.getLockOwnerStackTrace().length > 0) {
+                            writer.append("  lock owner:\n");
+                            for (StackTraceElement frame : capture.getLockOwnerStackTrace()) writer.append("\tat ").append(frame.toString()).append('\n');
+                        }
+                    } else {
+                        writer.field("start", freeze.getStartTimeMillis()).field("duration", freeze.getDurationMillis())
+                                .field("finished", freeze.isFinished()).field("event", freeze.getEvent())
+                                .field("after", capture.getTimeMillis()).field("lock", capture.getLockName())
+                                .field("owner", capture.getLockOwnerName())
+                                .field("stack", join(line, capture.getStackTrace()))
+                                .field("ownerStack", join(line, capture.getLockOwnerStackTrace())).endRecord();
+                    }
+                }
+            }
+        }
+
+        private static String join(StringBuilder line, StackTraceElement[] stack) {
+            line.setLength(0);
+            for (StackTraceElement frame : stack) {
+                if (line.length() > 0) line.append(';');
+                line.append(frame);
+            }
+            return line.toString();
+        }
+
+        private void run() {
+            long checkInterval = Math.max(thresholdNanos / 4, TimeUnit.MILLISECONDS.toNanos(1));
+            Freeze.Builder freeze = null;
+            long freezeCount = 0, captureInterval = 0, nextCapture = 0;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    TimeUnit.NANOSECONDS.sleep(checkInterval);
+                    long count = dispatchCount, start = dispatchStart, now = System.nanoTime();
+                    if (freeze != null && count != freezeCount) {
+                        synchronized (lock) {
+                            freeze.finished = true;
+                        }
+                        freeze = null;
+                    }
+                    if (start == 0 || now - start < thresholdNanos || count != dispatchCount) continue;
+                    synchronized (lock) {
+                        if (freeze == null) {
+                            AWTEvent event = dispatchEvent;
+                            freeze = new Freeze.Builder(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(now - start),
+                                    event == null ? "unknown event" : event.getClass().getName());
+                            freezeCount = count;
+                            captureInterval = thresholdNanos;
+                            nextCapture = now;
+                            totalFreezes++;
+                            if (freezes.size() == maxFreezes) freezes.removeFirst();
+                            freezes.addLast(freeze);
+                        }
+                        freeze.durationNanos = now - start;
+                    }
+                    if (now - nextCapture >= 0 && freeze.captures.size() < MAX_CAPTURES) {
+                        Freeze.Capture capture = capture(dispatchThread, now - start);
+                        // Stack captured after the event was dispatched would be misleading.
+                        if (count != dispatchCount) continue;
+                        synchronized (lock) {
+                            freeze.captures.add(capture);
+                        }
+                        nextCapture = now + captureInterval;
+                        captureInterval *= 2;
+                    }
+                }
+            } catch (InterruptedException ignore) {}
+        }
+
+        private static Freeze.Capture capture(Thread thread, long timeNanos) {
+            long time = TimeUnit.NANOSECONDS.toMillis(timeNanos);
+            try {
+                ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                ThreadInfo info = threads.getThreadInfo(thread.getId(), MAX_DEPTH);
+                if (info != null) {
+                    ThreadInfo owner = info.getLockOwnerId() == -1 ? null : threads.getThreadInfo(info.getLockOwnerId(), MAX_DEPTH);
+                    return new Freeze.Capture(time, info.getStackTrace(), info.getLockName(), info.getLockOwnerName(),
+                            owner == null ? new StackTraceElement[0] : owner.getStackTrace());
+                }
+            } catch (LinkageError ignore) {
+                // java.management module is not available.
+            }
+            StackTraceElement[] stack = thread.getStackTrace();
+            if (stack.length > MAX_DEPTH) stack = Arrays.copyOf(stack, MAX_DEPTH);
+            return new Freeze.Capture(time, stack, null, null, new StackTraceElement[0]);
+        }
+    }
+
+    /**
+     * Sampler of lock contention, which periodically looks for threads blocked on monitors or waiting for
+     * {@code java.util.concurrent} locks owned by other threads. Threads waiting for a condition or
+     * in {@link Object#wait()} are not counted. Its report lists the most contended locks since the previous
+     * report with estimated total wait time, owners and stacks of waiters, register it with
+     * {@link InfoSuppliers#addWriter(String, Consumer)} to include it into every thread dump.
+     * <p>
+     * Wait time is estimated as the number of samples a thread was found waiting multiplied by the interval,
+     * so short waits are only seen statistically. Each sample first reads states of all threads without
+     * stacks, and only stacks of waiting threads and lock owners are captured, which keeps the overhead
+     * low enough to leave the sampler on. Memory is bounded too: at most {@code maxLocks * 4} locks are
+     * tracked per period, evicting the least contended one, and new waiter and owner stacks are not recorded
+     * once {@code maxLocks * 32} distinct stacks were seen in the period. Requires {@code java.management} module.
+     */
+    final class ContentionSampler {
+        private static final int MAX_DEPTH = 16, MAX_THREADS_PER_LOCK = 8, TRACKED_LOCKS_PER_REPORTED = 4;
+
+        private final Object lock = new Object();
+        private final long intervalNanos;
+        private final int maxLocks, maxTrackedLocks, maxStacks;
+        private final Map<String, Contention> contentions = new HashMap<>();
+        private final Map<List<StackTraceElement>, Integer> stackIds = new HashMap<>();
+        private final List<List<StackTraceElement>> stacks = new ArrayList<>();
+        private long samples, periodStart = System.nanoTime();
+        private Thread sampler;
+
+        /**
+         * Creates sampler, which must be started with {@link #start()}.
+         * @param interval time between samples
+         * @param unit unit of the interval
+         * @param maxLocks maximum number of locks in the report
+         */
+        public ContentionSampler(long interval, TimeUnit unit, int maxLocks) {
+            if (interval <= 0 || maxLocks <= 0) throw new IllegalArgumentException("Interval and number of locks must be positive");
+            intervalNanos = unit.toNanos(interval);
+            this.maxLocks = maxLocks;
+            maxTrackedLocks = (int) Math.min(Integer.MAX_VALUE, (long) maxLocks * TRACKED_LOCKS_PER_REPORTED);
+            maxStacks = (int) Math.min(Integer.MAX_VALUE, (long) maxTrackedLocks * MAX_THREADS_PER_LOCK);
+        }
+
+        /**
+         * Starts sampling on a daemon thread, does nothing if already started.
+         */
+        public void start() {
+            synchronized (lock) {
+                if (sampler != null) return;
+                sampler = new Thread(this::run, "Jstack contention sampler");
+                sampler.setDaemon(true);
+                sampler.start();
+            }
+        }
+
+        /**
+         * Stops sampling, collected samples are kept until the next report.
+         */
+        public void stop() {
+            synchronized (lock) {
+                if (sampler == null) return;
+                sampler.interrupt();
+                sampler = null;
+            }
+        }
+
+        /**
+         * Creates section writer with the contention report, see {@link #writeReport(InfoWriter)}.
+         * @return section writer
+         */
+        public Consumer<InfoWriter> report() {
+            return this::writeReport;
+        }
+
+        /**
+         * Writes report of locks contended since the previous report, most contended first, and starts
+         * a new period. Waiter and owner stacks are referenced by ids and written after the locks.
+         * In JSON lines format each lock is written as a record with {@code lock}, {@code kind},
+         * {@code waitMillis}, {@code samples}, {@code maxWaiters}, {@code owners} and {@code waiterStacks} fields,
+         * and each stack as a record with {@code stack} and {@code frames} fields.
+         * @param writer writer of the section
+         */
+        public void writeReport(InfoWriter writer) {
+            List<Contention> sorted;
+            List<List<StackTraceElement>> stackList;
+            long period, sampleCount;
+            synchronized (lock) {
+                sorted = new ArrayList<>(contentions.values());
+                stackList = new ArrayList<>(stacks);
+                sampleCount = samples;
+                long now = System.nanoTime();
+                period = TimeUnit.NANOSECONDS.toMillis(now - periodStart);
+                contentions.clear();
+                stackIds.clear();
+                stacks.clear();
+                samples = 0;
+                periodStart = now;
+            }
+            sorted.sort((a, b) -> Long.compare(b.samples, a.samples));
+            if (sorted.size() > maxLocks) sorted = sorted.subList(0, maxLocks);
+            boolean text = writer.getFormat() == InfoSuppliers.FORMAT_TEXT;
+            long intervalMillis = TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+            if (text) {
+                writer.append("Lock contention in last ").append(Long.toString(period)).append(" ms, ")
+                        .append(Long.toString(sampleCount)).append(" samples every ")
+                        .append(Long.toString(intervalMillis)).append(" ms\n");
+            }
+            Set<Integer> usedStacks = new LinkedHashSet<>();
+            StringBuilder line = new StringBuilder();
+            for (Contention c : sorted) {
+                usedStacks.addAll(c.waiters);
+                usedStacks.addAll(c.owners.values());
+                long waitMillis = c.samples * intervalMillis;
+                line.setLength(0);
+                for (Map.Entry<String, Integer> owner : c.owners.entrySet()) {
+                    if (line.length() > 0) line.append(text ? ", " : ";");
+                    if (text) line.append('"').append(owner.getKey()).append("\" stack ").append(owner.getValue());
+                    else line.append(owner.getKey()).append(':').append(owner.getValue());
+                }
+                String owners = line.toString();
+                line.setLength(0);
+                for (Integer waiter : c.waiters) {
+                    if (line.length() > 0) line.append(text ? ", " : ";");
+                    line.append(waiter);
+                }
+                if (text) {
+                    writer.append(c.lock).append(" (").append(c.kind).append("): ~").append(Long.toString(waitMillis))
+                            .append(" ms waited, max ").append(Integer.toString(c.maxWaiters)).append(" waiters\n")
+                            .append("  owners: ").append(owners).append('\n')
+                            .append("  waiter stacks: ").append(line).append('\n');
+                } else {
+                    writer.field("lock", c.lock).field("kind", c.kind).field("waitMillis", waitMillis)
+                            .field("samples", c.samples).field("maxWaiters", c.maxWaiters)
+                            .field("owners", owners).field("waiterStacks", line).endRecord();
+                }
+            }
+            for (Integer id : usedStacks) {
+                if (text) {
+                    writer.append("stack ").append(Integer.toString(id)).append(":\n");
+                    for (StackTraceElement frame : stackList.get(id)) writer.append("\tat ").append(frame.toString()).append('\n');
+                } else {
+                    line.setLength(0);
+                    for (StackTraceElement frame : stackList.get(id)) {
+                        if (line.length() > 0) line.append(';');
+                        line.append(frame);
+                    }
+                    writer.field("stack", id).field("frames", line).endRecord();
+                }
+            }
+        }
+
+        private void run() {
+            long next = System.nanoTime();
+            try {
+                ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                while (!Thread.currentThread().isInterrupted()) {
+                    sample(threads);
+                    next += intervalNanos;
+                    long delay = next - System.nanoTime();
+                    if (delay < 0) next -= delay;
+                    else TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            } catch (InterruptedException | LinkageError ignore) {
+                // Interrupted or java.management module is not available.
+            }
+        }
+
+        private void sample(ThreadMXBean threads) {
+            ThreadInfo[] states = threads.getThreadInfo(threads.getAllThreadIds(), 0);
+            List<ThreadInfo> waiters = new ArrayList<>();
+            Set<Long> ids = new LinkedHashSet<>();
+            for (ThreadInfo info : states) {
+                if (info == null || info.getLockOwnerId() == -1 || info.getLockName() == null) continue;
+                waiters.add(info);
+                ids.add(info.getThreadId());
+                ids.add(info.getLockOwnerId());
+            }
+            Map<Long, ThreadInfo> infos = new HashMap<>();
+            if (!ids.isEmpty()) {
+                long[] array = new long[ids.size()];
+                int i = 0;
+                for (Long id : ids) array[i++] = id;
+                for (ThreadInfo info : threads.getThreadInfo(array, MAX_DEPTH)) {
+                    if (info != null) infos.put(info.getThreadId(), info);
+                }
+            }
+            synchronized (lock) {
+                samples++;
+                Map<String, int[]> waitersPerLock = new HashMap<>();
+                for (ThreadInfo waiter : waiters) {
+                    ThreadInfo stack = infos.get(waiter.getThreadId()), owner = infos.get(waiter.getLockOwnerId());
+                    // Thread may have acquired the lock between the two calls.
+                    if (stack == null || !waiter.getLockName().equals(stack.getLockName())) continue;
+                    int lockWaiters = ++waitersPerLock.computeIfAbsent(waiter.getLockName(), name -> new int[1])[0];
+                    record(waiter.getLockName(), waiter.getThreadState() == Thread.State.BLOCKED ? "monitor" : "synchronizer",
+                            lockWaiters, stack.getStackTrace(), waiter.getLockOwnerName(), owner == null ? null : owner.getStackTrace());
+                }
+            }
+        }
+
+        private void record(String lockName, String kind, int lockWaiters, StackTraceElement[] waiterStack,
+                            String ownerName, StackTraceElement[] ownerStack) {
+            Contention c = contentions.get(lockName);
+            if (c == null) {
+                if (contentions.size() >= maxTrackedLocks) evictLeastContended();
+                c = new Contention(lockName, kind);
+                contentions.put(lockName, c);
+            }
+            c.samples++;
+            c.maxWaiters = Math.max(c.maxWaiters, lockWaiters);
+            if (c.waiters.size() < MAX_THREADS_PER_LOCK) {
+                int id = internStack(waiterStack);
+                if (id != -1) c.waiters.add(id);
+            }
+            if (c.owners.size() < MAX_THREADS_PER_LOCK && ownerStack != null && !c.owners.containsKey(ownerName)) {
+                int id = internStack(ownerStack);
+                if (id != -1) c.owners.put(ownerName, id);
+            }
+        }
+
+        private void evictLeastContended() {
+            Contention least = null;
+            for (Contention c : contentions.values()) {
+                if (least == null || c.samples < least.samples) least = c;
+            }
+            if (least != null) contentions.remove(least.lock);
+        }
+
+        private int internStack(StackTraceElement[] trace) {
+            List<StackTraceElement> stack = Arrays.asList(trace);
+            Integer id = stackIds.get(stack);
+            if (id == null) {
+                if (stacks.size() >= maxStacks) return -1;
+                id = stacks.size();
+                stacks.add(stack);
+                stackIds.put(stack, id);
+            }
+            return id;
+        }
+
+        private static final class Contention {
+            private final String lock, kind;
+            private final Set<Integer> waiters = new LinkedHashSet<>();
+            private final Map<String, Integer> owners = new LinkedHashMap<>();
+            private long samples;
+            private int maxWaiters;
+
+            private Contention(String lock, String kind) {
+                this.lock = lock;
+                this.kind = kind;
+            }
+        }
+    }
+
+    /**
+     * Freeze of the event dispatch thread detected by {@link FreezeWatchdog}.
+     */
+    final class Freeze {
+        private final long startTimeMillis, durationMillis;
+        private final boolean finished;
+        private final String event;
+        private final List<Capture> captures;
+
+        Freeze(long startTimeMillis, long durationMillis, boolean finished, String event, List<Capture> captures) {
+            this.startTimeMillis = startTimeMillis;
+            this.durationMillis = durationMillis;
+            this.finished = finished;
+            this.event = event;
+            this.captures = captures;
+        }
+
+        /**
+         * Start time of the freeze.
+         * @return start time in milliseconds since the epoch
+         */
+        public long getStartTimeMillis() { return startTimeMillis; }
+
+        /**
+         * Duration of the freeze, for a freeze in progress the duration so far.
+         * @return duration in milliseconds
+         */
+        public long getDurationMillis() { return durationMillis; }
+
+        /**
+         * Checks whether the freeze is over.
+         * @return true if dispatch of the event completed
+         */
+        public boolean isFinished() { return finished; }
+
+        /**
+         * Event, whose dispatch caused the freeze.
+         * @return class name of the event
+         */
+        public String getEvent() { return event; }
+
+        /**
+         * Stacks captured during the freeze.
+         * @return captures in chronological order
+         */
+        public List<Capture> getCaptures() { return captures; }
+
+        /**
+         * Stack of the event dispatch thread captured during a freeze.
+         */
+        public static final class Capture {
+            private final long timeMillis;
+            private final StackTraceElement[] stackTrace, lockOwnerStackTrace;
+            private final String lockName, lockOwnerName;
+
+            Capture(long timeMillis, StackTraceElement[] stackTrace, String lockName, String lockOwnerName,
+                    StackTraceElement[] lockOwnerStackTrace) {
+                this.timeMillis = timeMillis;
+                this.stackTrace = stackTrace;
+                this.lockName = lockName;
+                this.lockOwnerName = lockOwnerName;
+                this.lockOwnerStackTrace = lockOwnerStackTrace;
+            }
+
+            /**
+             * Time since the start of the freeze.
+             * @return time in milliseconds
+             */
+            public long getTimeMillis() { return timeMillis; }
+
+            /**
+             * Stack of the event dispatch thread.
+             * @return stack trace, starting with the innermost frame
+             */
+            public StackTraceElement[] getStackTrace() { return stackTrace.clone(); }
+
+            /**
+             * Lock the event dispatch thread is blocked on or waiting for.
+             * @return string representation of the lock, or null
+             */
+            public String getLockName() { return lockName; }
+
+            /**
+             * Thread owning the lock the event dispatch thread is blocked on.
+             * @return name of the owner thread, or null
+             */
+            public String getLockOwnerName() { return lockOwnerName; }
+
+            /**
+             * Stack of the thread owning the lock the event dispatch thread is blocked on.
+             * @return stack trace, starting with the innermost frame, empty if there is no owner
+             */
+            public StackTraceElement[] getLockOwnerStackTrace() { return lockOwnerStackTrace.clone(); }
+        }
+
+        static final class Builder {
+            private final long startTimeMillis;
+            private final String event;
+            private final List<Capture> captures = new ArrayList<>();
+            private long durationNanos;
+            private boolean finished;
+
+            private Builder(long startTimeMillis, String event) {
+                this.startTimeMillis = startTimeMillis;
+                this.event = event;
+            }
+
+            private Freeze build() {
+                return new Freeze(startTimeMillis, TimeUnit.NANOSECONDS.toMillis(durationNanos), finished, event,
+                        Collections.unmodifiableList(new ArrayList<>(captures)));
+            }
+        }
+    }
 }
@@ -16,8 +16,16 @@
 
 package com.jetbrains;
 
+import java.awt.AWTEvent;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * JBR API to inspect additional properties of AWT key events and keyboards.
@@ -25,6 +33,32 @@ import java.util.List;
 @Service
 @Provided
 public interface Keyboard {
+    /**
+     * Returned by {@link #getKeyEventCodePoint(KeyEvent)} when the event produced no characters.
+     */
+    int CODE_POINT_NONE = -1;
+    /**
+     * Returned by {@link #getKeyEventCodePoint(KeyEvent)} when the event produced more than one code point.
+     */
+    int CODE_POINT_MULTIPLE = -2;
+
+    /**
+     * Table of {@link #getKeyboardLayoutTable(int)} mapping scan codes to key codes on the standard QWERTY layout,
+     * see {@link #getKeyEventUSKeyCode(KeyEvent)}.
+     */
+    int LAYOUT_TABLE_US_KEY_CODES = 0;
+    /**
+     * Table of {@link #getKeyboardLayoutTable(int)} mapping scan codes to dead key codes,
+     * see {@link #getKeyEventDeadKeyCode(KeyEvent)}.
+     */
+    int LAYOUT_TABLE_DEAD_KEY_CODES = 1;
+    /**
+     * Table of {@link #getKeyboardLayoutTable(int)} mapping scan codes and modifiers to dead keystroke codes,
+     * see {@link #getKeyEventDeadKeyStroke(KeyEvent)}. It has {@link LayoutTables#LEVELS} entries per scan code,
+     * the entry for a keystroke is at {@code scanCode * LEVELS + LayoutTables.level(modifiersEx)}.
+     */
+    int LAYOUT_TABLE_DEAD_KEY_STROKES = 2;
+
     /**
      * Inspect, which physical key was pressed on the keyboard, regardless of the active logical keyboard layout.
      * The list of virtual key codes is found in {@link KeyEvent}.
@@ -98,6 +132,109 @@ public interface Keyboard {
      */
     String getKeyEventCharacters(KeyEvent event);
 
+    /**
+     * Get the character this key event has produced, like {@link #getKeyEventCharacters(KeyEvent)} does,
+     * but without allocating, for the common case of a single character.
+     * When the event produced more than one code point, use {@link #getKeyEventCharacters(KeyEvent, char[], int)}
+     * or {@link #getKeyEventCharacters(KeyEvent, StringBuilder)}.
+     *
+     * @param event                                 JBR-generated event to inspect.
+     *
+     * @return                                      The code point this event generated, {@link #CODE_POINT_NONE}
+     *                                              if it generated no characters, or {@link #CODE_POINT_MULTIPLE}
+     *                                              if it generated more than one code point
+     *
+     * @throws UnsupportedOperationException        Inspecting this property is not supported on the current platform,
+     *                                              or the event was not generated by JBR
+     */
+    @Extension(Extensions.KEY_EVENT_CODE_POINTS)
+    int getKeyEventCodePoint(KeyEvent event);
+
+    /**
+     * Get the characters that this key event has produced, like {@link #getKeyEventCharacters(KeyEvent)} does,
+     * writing them into the given array instead of allocating a string.
+     * If the characters don't fit into the array, nothing is written, and the returned length
+     * can be used to allocate a larger array.
+     *
+     * @param event                                 JBR-generated event to inspect.
+     * @param dst                                   Array to write the characters to
+     * @param offset                                Index of the array to start writing at
+     *
+     * @return                                      Number of characters this event generated
+     *
+     * @throws UnsupportedOperationException        Inspecting this property is not supported on the current platform,
+     *                                              or the event was not generated by JBR
+     * @throws IndexOutOfBoundsException            Offset is negative or greater than length of the array
+     */
+    @Extension(Extensions.KEY_EVENT_CODE_POINTS)
+    int getKeyEventCharacters(KeyEvent event, char[] dst, int offset);
+
+    /**
+     * Get the characters that this key event has produced, like {@link #getKeyEventCharacters(KeyEvent)} does,
+     * appending them to the given builder instead of allocating a string.
+     * Builder only allocates when its capacity is exceeded.
+     *
+     * @param event                                 JBR-generated event to inspect.
+     * @param dst                                   Builder to append the characters to
+     *
+     * @return                                      Number of characters appended
+     *
+     * @throws UnsupportedOperationException        Inspecting this property is not supported on the current platform,
+     *                                              or the event was not generated by JBR
+     */
+    @Extension(Extensions.KEY_EVENT_CODE_POINTS)
+    int getKeyEventCharacters(KeyEvent event, StringBuilder dst);
+
+    /**
+     * Get platform-dependent scan code of the physical key, which is an index into the tables
+     * returned by {@link #getKeyboardLayoutTable(int)}. Unlike other methods inspecting key events,
+     * this one doesn't call into native code.
+     *
+     * @param event                                 JBR-generated event to inspect.
+     *                                              This must either be a {@link KeyEvent#KEY_PRESSED} or
+     *                                              a {@link KeyEvent#KEY_RELEASED} event
+     *
+     * @return                                      Scan code of the key
+     *
+     * @throws UnsupportedOperationException        Inspecting this property is not supported on the current platform,
+     *                                              or the event was not generated by JBR
+     * @throws IllegalArgumentException             Passed KeyEvent is not of a valid type
+     */
+    @Extension(Extensions.KEYBOARD_LAYOUT_TABLES)
+    int getKeyEventScanCode(KeyEvent event);
+
+    /**
+     * Get key translation table of the current keyboard layout, so that key events can be translated
+     * with array lookups instead of calls into native code for each event. Tables don't change
+     * until the layout changes, see {@link LayoutTables} and {@link LayoutCache#getLayoutTables()}.
+     * Entries for scan codes without a key are {@link KeyEvent#VK_UNDEFINED}.
+     *
+     * @param table                                 One of {@code LAYOUT_TABLE_*} constants,
+     *                                              e.g. {@link #LAYOUT_TABLE_US_KEY_CODES}
+     *
+     * @return                                      New array with the table
+     *
+     * @throws UnsupportedOperationException        This method is not supported on the current platform
+     * @throws IllegalArgumentException             The table is unknown
+     */
+    @Extension(Extensions.KEYBOARD_LAYOUT_TABLES)
+    int[] getKeyboardLayoutTable(int table);
+
+    /**
+     * Get the time at which the native event corresponding to the key event was received by JBR.
+     * Unlike {@link KeyEvent#getWhen()}, the time has nanosecond resolution and is comparable
+     * with {@link System#nanoTime()}, see {@link LatencyMonitor}.
+     *
+     * @param event                                 JBR-generated event to inspect
+     *
+     * @return                                      Arrival time in {@link System#nanoTime()} time base
+     *
+     * @throws UnsupportedOperationException        Inspecting this property is not supported on the current platform,
+     *                                              or the event was not generated by JBR
+     */
+    @Extension(Extensions.KEY_EVENT_ARRIVAL_TIME)
+    long getKeyEventArrivalTime(KeyEvent event);
+
     /**
      * Get platform-dependent logical keyboard layout identifier for the currently selected keyboard layout.
      *
@@ -146,4 +283,642 @@ public interface Keyboard {
      * @throws UnsupportedOperationException        This method is not supported on the current platform
      */
     void setConvertDeadKeyCodesToNormal(boolean value);
-}
\ No newline at end of file
+
+    /**
+     * Listener of keyboard layout changes.
+     */
+    @Provides
+    interface LayoutListener {
+        /**
+         * Called on the event dispatch thread when the current keyboard layout
+         * or the list of enabled keyboard layouts changes.
+         *
+         * @param currentLayout                     Identifier of the current keyboard layout,
+         *                                          same as returned by {@link #getCurrentKeyboardLayout()}
+         * @param enabledLayouts                    Identifiers of the enabled keyboard layouts,
+         *                                          same as returned by {@link #getEnabledKeyboardLayouts()}
+         */
+        void keyboardLayoutChanged(String currentLayout, List<String> enabledLayouts);
+    }
+
+    /**
+     * Sets the global listener of keyboard layout changes, replacing the previous one.
+     * Passing null will remove the listener.
+     * To have multiple listeners, use {@link LayoutCache}.
+     *
+     * @param listener                              Listener
+     *
+     * @throws UnsupportedOperationException        This method is not supported on the current platform
+     */
+    @Extension(Extensions.KEYBOARD_LAYOUT_LISTENER)
+    void setKeyboardLayoutListener(LayoutListener listener);
+
+    /**
+     * Java-side cache of the keyboard layouts, which is kept up to date by layout change notifications,
+     * so that reading the current layout, e.g. on every shortcut resolution, is just a field read
+     * instead of a call into native code. It becomes the global layout listener and forwards
+     * notifications to its own listeners.
+     */
+    final class LayoutCache implements LayoutListener {
+        private final Object lock = new Object();
+        private final Keyboard keyboard;
+        private final List<LayoutListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile String currentLayout;
+        private volatile List<String> enabledLayouts = Collections.emptyList();
+        private volatile LayoutTables layoutTables;
+        private boolean notified;
+
+        /**
+         * Creates cache, which is filled with the current keyboard layouts and registered as the global
+         * layout listener with {@link #setKeyboardLayoutListener(LayoutListener)}.
+         *
+         * @param keyboard                          Keyboard service
+         *
+         * @throws UnsupportedOperationException    Layout change notifications are not supported
+         */
+        public LayoutCache(Keyboard keyboard) {
+            this.keyboard = keyboard;
+            keyboard.setKeyboardLayoutListener(this);
+            // Query after registration, so that no change is missed, but don't overwrite newer notifications.
+            String current;
+            List<String> enabled;
+            try {
+                current = keyboard.getCurrentKeyboardLayout();
+                enabled = keyboard.getEnabledKeyboardLayouts();
+            } catch (UnsupportedOperationException e) {
+                return;
+            }
+            synchronized (lock) {
+                if (!notified) update(current, enabled);
+            }
+        }
+
+        /**
+         * Get the cached identifier of the current keyboard layout.
+         *
+         * @return                                  Keyboard layout identifier, or null if unknown
+         */
+        public String getCurrentLayout() {
+            return currentLayout;
+        }
+
+        /**
+         * Get the cached list of identifiers of enabled keyboard layouts.
+         *
+         * @return                                  Unmodifiable list of keyboard layout identifiers
+         */
+        public List<String> getEnabledLayouts() {
+            return enabledLayouts;
+        }
+
+        /**
+         * Get key translation tables of the current keyboard layout. They are built on first access
+         * after each layout change and then reused.
+         *
+         * @return                                  Key translation tables
+         *
+         * @throws UnsupportedOperationException    Key translation tables are not supported
+         */
+        public LayoutTables getLayoutTables() {
+            LayoutTables tables = layoutTables;
+            if (tables == null) {
+                tables = new LayoutTables(keyboard);
+                synchronized (lock) {
+                    // Layout might have changed while the tables were built.
+                    if (Objects.equals(tables.getLayout(), currentLayout)) layoutTables = tables;
+                }
+            }
+            return tables;
+        }
+
+        /**
+         * Adds a listener, which is notified after the cache is updated.
+         *
+         * @param listener                          Listener
+         */
+        public void addListener(LayoutListener listener) {
+            listeners.add(listener);
+        }
+
+        /**
+         * Removes a listener.
+         *
+         * @param listener                          Listener
+         */
+        public void removeListener(LayoutListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void keyboardLayoutChanged(String currentLayout, List<String> enabledLayouts) {
+            synchronized (lock) {
+                notified = true;
+                update(currentLayout, enabledLayouts);
+            }
+            List<String> enabled = this.enabledLayouts;
+            for (LayoutListener listener : listeners) listener.keyboardLayoutChanged(currentLayout, enabled);
+        }
+
+        private void update(String current, List<String> enabled) {
+            enabledLayouts = enabled == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(enabled));
+            currentLayout = current;
+            layoutTables = null;
+        }
+    }
+
+    /**
+     * Snapshot of key translation tables of a keyboard layout, see {@link #getKeyboardLayoutTable(int)}.
+     * Scan codes are obtained with {@link #getKeyEventScanCode(KeyEvent)}, and lookups with scan codes
+     * outside the tables return {@link KeyEvent#VK_UNDEFINED}. Tables are immutable and thread-safe.
+     */
+    final class LayoutTables {
+        /**
+         * Number of modifier levels in {@link #LAYOUT_TABLE_DEAD_KEY_STROKES} table.
+         * @see #level(int)
+         */
+        public static final int LEVELS = 4;
+
+        private static final int MAX_ATTEMPTS = 3;
+        private static final boolean MAC = isMac();
+
+        private final String layout;
+        private final int[] usKeyCodes, deadKeyCodes, deadKeyStrokes;
+
+        /**
+         * Takes snapshot of the tables of the current keyboard layout.
+         *
+         * @param keyboard                          Keyboard service
+         *
+         * @throws UnsupportedOperationException    Key translation tables are not supported
+         */
+        public LayoutTables(Keyboard keyboard) {
+            String layout;
+            int[] usKeyCodes, deadKeyCodes, deadKeyStrokes;
+            int attempts = 0;
+            // Retry if the layout changes while tables are being read, so that they are consistent.
+            do {
+                layout = currentLayout(keyboard);
+                usKeyCodes = keyboard.getKeyboardLayoutTable(LAYOUT_TABLE_US_KEY_CODES);
+                deadKeyCodes = keyboard.getKeyboardLayoutTable(LAYOUT_TABLE_DEAD_KEY_CODES);
+                deadKeyStrokes = keyboard.getKeyboardLayoutTable(LAYOUT_TABLE_DEAD_KEY_STROKES);
+            } while (++attempts < MAX_ATTEMPTS && layout != null && !layout.equals(currentLayout(keyboard)));
+            this.layout = layout;
+            this.usKeyCodes = usKeyCodes;
+            this.deadKeyCodes = deadKeyCodes;
+            this.deadKeyStrokes = deadKeyStrokes;
+        }
+
+        private static boolean isMac() {
+            try {
+                return System.getProperty("os.name", "").startsWith("Mac");
+            } catch (SecurityException e) {
+                return false;
+            }
+        }
+
+        private static String currentLayout(Keyboard keyboard) {
+            try {
+                return keyboard.getCurrentKeyboardLayout();
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Modifier level of a keystroke, which selects an entry of {@link #LAYOUT_TABLE_DEAD_KEY_STROKES} table.
+         * Bit 0 is set when Shift is down, bit 1 is set when the modifier selecting the third level
+         * of the layout is down: AltGraph, or Option ({@link KeyEvent#ALT_DOWN_MASK}) on macOS.
+         * On other platforms Alt selects shortcuts, not characters, so it doesn't change the level.
+         *
+         * @param modifiersEx                       Extended modifiers, see {@link KeyEvent#getModifiersEx()}
+         *
+         * @return                                  Modifier level from 0 to {@link #LEVELS} - 1
+         */
+        public static int level(int modifiersEx) {
+            int level = (modifiersEx & KeyEvent.SHIFT_DOWN_MASK) != 0 ? 1 : 0;
+            int thirdLevelMask = MAC ? KeyEvent.ALT_GRAPH_DOWN_MASK | KeyEvent.ALT_DOWN_MASK : KeyEvent.ALT_GRAPH_DOWN_MASK;
+            if ((modifiersEx & thirdLevelMask) != 0) level |= 2;
+            return level;
+        }
+
+        /**
+         * Get identifier of the keyboard layout of these tables.
+         *
+         * @return                                  Keyboard layout identifier, or null if unknown
+         */
+        public String getLayout() {
+            return layout;
+        }
+
+        /**
+         * Get the key code of the key on the standard QWERTY layout, like {@link #getKeyEventUSKeyCode(KeyEvent)}.
+         *
+         * @param scanCode                          Scan code of the key
+         *
+         * @return                                  The key code of the corresponding key on the standard QWERTY layout
+         */
+        public int getUSKeyCode(int scanCode) {
+            return scanCode >= 0 && scanCode < usKeyCodes.length ? usKeyCodes[scanCode] : KeyEvent.VK_UNDEFINED;
+        }
+
+        /**
+         * Get the dead key code of the key, like {@link #getKeyEventDeadKeyCode(KeyEvent)}.
+         *
+         * @param scanCode                          Scan code of the key
+         *
+         * @return                                  The dead key code if the key is dead,
+         *                                          or {@link KeyEvent#VK_UNDEFINED} otherwise
+         */
+        public int getDeadKeyCode(int scanCode) {
+            return scanCode >= 0 && scanCode < deadKeyCodes.length ? deadKeyCodes[scanCode] : KeyEvent.VK_UNDEFINED;
+        }
+
+        /**
+         * Get the dead keystroke code of the key with modifiers, like {@link #getKeyEventDeadKeyStroke(KeyEvent)}.
+         *
+         * @param scanCode                          Scan code of the key
+         * @param modifiersEx                       Extended modifiers, see {@link KeyEvent#getModifiersEx()}
+         *
+         * @return                                  The dead keystroke code if the keystroke is dead,
+         *                                          or {@link KeyEvent#VK_UNDEFINED} otherwise
+         */
+        public int getDeadKeyStroke(int scanCode, int modifiersEx) {
+            if (scanCode < 0 || scanCode >= deadKeyStrokes.length / LEVELS) return KeyEvent.VK_UNDEFINED;
+            return deadKeyStrokes[scanCode * LEVELS + level(modifiersEx)];
+        }
+    }
+
+    /**
+     * Measures typing latency: time from native arrival of key events to their dispatch,
+     * and to the first frame painted after them. Results are recorded into {@link LatencyHistogram}s.
+     * <p>
+     * Key presses are observed by {@link #install()}, or reported with {@link #keyEventDispatched(KeyEvent)}.
+     * The application reports completion of each frame with {@link #framePainted()}, e.g. after
+     * {@link java.awt.image.BufferStrategy#show()} or at the end of painting of a window.
+     * All key presses dispatched since the previous frame are considered to be presented by this frame.
+     * <p>
+     * Arrival time is taken from {@link #getKeyEventArrivalTime(KeyEvent)} when supported,
+     * otherwise it's estimated from {@link KeyEvent#getWhen()} with millisecond resolution.
+     * <p>
+     * When JFR is available (Java 11+), each painted key press is also recorded as a {@code jetbrains.TypingLatency}
+     * event with all three latencies, so typing latency regressions show up in standard flight recordings.
+     */
+    final class LatencyMonitor {
+        private static final int MAX_PENDING = 64;
+        private static final long MAX_LATENCY = 10_000_000_000L;
+        private static final int PRECISION_BITS = 7;
+        private static final JfrEventType TYPING_EVENT = JfrEventType.define("jetbrains.TypingLatency",
+                "Typing Latency", "Latency of a key press from its native arrival to the first frame painted after it",
+                new String[] {"dispatchLatency", "paintLatency", "totalLatency"}, new Class<?>[] {long.class, long.class, long.class},
+                new int[] {JfrEventType.TIMESPAN, JfrEventType.TIMESPAN, JfrEventType.TIMESPAN});
+
+        private final Object lock = new Object();
+        private final Keyboard keyboard;
+        private final long[] pendingArrivals = new long[MAX_PENDING], pendingDispatches = new long[MAX_PENDING];
+        private final LatencyHistogram dispatchLatency = new LatencyHistogram(MAX_LATENCY, PRECISION_BITS);
+        private final LatencyHistogram paintLatency = new LatencyHistogram(MAX_LATENCY, PRECISION_BITS);
+        private final LatencyHistogram totalLatency = new LatencyHistogram(MAX_LATENCY, PRECISION_BITS);
+        private final AWTEventListener listener = e -> {
+            if (e.getID() == KeyEvent.KEY_PRESSED) keyEventDispatched((KeyEvent) e);
+        };
+        private volatile boolean arrivalTimeSupported;
+        private int pending;
+        private boolean installed;
+
+        /**
+         * Creates monitor.
+         *
+         * @param keyboard                          Keyboard service used to get arrival time of key events,
+         *                                          or null to estimate it from {@link KeyEvent#getWhen()}
+         */
+        public LatencyMonitor(Keyboard keyboard) {
+            this.keyboard = keyboard;
+            arrivalTimeSupported = keyboard != null;
+        }
+
+        /**
+         * Starts observing key presses dispatched to any component.
+         */
+        public void install() {
+            synchronized (lock) {
+                if (installed) return;
+                installed = true;
+            }
+            Toolkit.getDefaultToolkit().addAWTEventListener(listener, AWTEvent.KEY_EVENT_MASK);
+        }
+
+        /**
+         * Stops observing key presses, see {@link #install()}.
+         */
+        public void uninstall() {
+            synchronized (lock) {
+                if (!installed) return;
+                installed = false;
+            }
+            Toolkit.getDefaultToolkit().removeAWTEventListener(listener);
+        }
+
+        /**
+         * Records dispatch of the key event, should be called while the event is being dispatched.
+         * Events dispatched after more than 64 key events without a frame are not awaiting a paint.
+         *
+         * @param event                             Key event being dispatched
+         */
+        public void keyEventDispatched(KeyEvent event) {
+            long now = System.nanoTime();
+            long arrival = arrivalTime(event, now);
+            synchronized (lock) {
+                dispatchLatency.record(now - arrival);
+                if (pending < MAX_PENDING) {
+                    pendingArrivals[pending] = arrival;
+                    pendingDispatches[pending] = now;
+                    pending++;
+                }
+            }
+        }
+
+        private long arrivalTime(KeyEvent event, long now) {
+            if (arrivalTimeSupported) {
+                try {
+                    return keyboard.getKeyEventArrivalTime(event);
+                } catch (UnsupportedOperationException e) {
+                    arrivalTimeSupported = false;
+                }
+            }
+            long age = System.currentTimeMillis() - event.getWhen();
+            return now - Math.max(age, 0) * 1_000_000L;
+        }
+
+        /**
+         * Records completion of a frame, which presents all key events dispatched since the previous frame.
+         */
+        public void framePainted() {
+            long now = System.nanoTime();
+            boolean events = TYPING_EVENT.isEnabled();
+            synchronized (lock) {
+                for (int i = 0; i < pending; i++) {
+                    paintLatency.record(now - pendingDispatches[i]);
+                    totalLatency.record(now - pendingArrivals[i]);
+                    if (events) {
+                        JfrEventType.commit(TYPING_EVENT.begin(), pendingDispatches[i] - pendingArrivals[i],
+                                now - pendingDispatches[i], now - pendingArrivals[i]);
+                    }
+                }
+                pending = 0;
+            }
+        }
+
+        /**
+         * Get histogram of time from native arrival of key events to their dispatch.
+         *
+         * @return                                  Live histogram in nanoseconds
+         */
+        public LatencyHistogram getDispatchLatency() {
+            return dispatchLatency;
+        }
+
+        /**
+         * Get histogram of time from dispatch of key events to the first frame painted after them.
+         *
+         * @return                                  Live histogram in nanoseconds
+         */
+        public LatencyHistogram getPaintLatency() {
+            return paintLatency;
+        }
+
+        /**
+         * Get histogram of time from native arrival of key events to the first frame painted after them.
+         *
+         * @return                                  Live histogram in nanoseconds
+         */
+        public LatencyHistogram getTotalLatency() {
+            return totalLatency;
+        }
+
+        /**
+         * Clears all histograms and forgets key events awaiting a paint.
+         */
+        public void reset() {
+            synchronized (lock) {
+                pending = 0;
+                dispatchLatency.reset();
+                paintLatency.reset();
+                totalLatency.reset();
+            }
+        }
+
+        /**
+         * Get summary of all histograms, suitable for logging or {@link Jstack.InfoSuppliers}.
+         *
+         * @return                                  Summary in milliseconds
+         */
+        @Override
+        public String toString() {
+            return new StringBuilder().append("dispatch: ").append(dispatchLatency)
+                    .append("\npaint: ").append(paintLatency)
+                    .append("\ntotal: ").append(totalLatency).toString();
+        }
+    }
+
+    /**
+     * Fixed-size histogram of non-negative values with bounded relative error.
+     * Values below {@code 2^precisionBits} are counted exactly, larger values are counted
+     * in buckets whose width is at most {@code 2^(1-precisionBits)} of their value.
+     * Values above the maximum are counted in the last bucket. Recording doesn't allocate.
+     * Histogram is thread-safe.
+     */
+    final class LatencyHistogram {
+        private final Object lock = new Object();
+        private final int subBuckets, halfSubBuckets;
+        private final long maxValue;
+        private final long[] counts;
+        private long totalCount, sum, min = Long.MAX_VALUE, max;
+
+        /**
+         * Creates histogram.
+         *
+         * @param maxValue                          Largest value counted in its own bucket
+         * @param precisionBits                     Number of significant bits kept for each value, from 2 to 20
+         *
+         * @throws IllegalArgumentException         Parameters are out of range
+         */
+        public LatencyHistogram(long maxValue, int precisionBits) {
+            if (maxValue <= 0) throw new IllegalArgumentException("Max value must be positive");
+            if (precisionBits < 2 || precisionBits > 20) throw new IllegalArgumentException("Precision bits must be from 2 to 20");
+            this.maxValue = maxValue;
+            subBuckets = 1 << precisionBits;
+            halfSubBuckets = subBuckets >> 1;
+            counts = new long[bucketIndex(maxValue) + 1];
+        }
+
+        private int bucketIndex(long value) {
+            if (value < subBuckets) return (int) value;
+            int shift = 64 - Long.numberOfLeadingZeros(value) - Integer.numberOfTrailingZeros(subBuckets);
+            return subBuckets + (shift - 1) * halfSubBuckets + (int) (value >>> shift) - halfSubBuckets;
+        }
+
+        private long bucketUpperBound(int index) {
+            if (index < subBuckets) return index;
+            int k = index - subBuckets, shift = k / halfSubBuckets + 1;
+            long m = k % halfSubBuckets + halfSubBuckets;
+            return ((m + 1) << shift) - 1;
+        }
+
+        /**
+         * Records a value, negative values are recorded as 0.
+         *
+         * @param value                             Value to record
+         */
+        public void record(long value) {
+            if (value < 0) value = 0;
+            int index = value > maxValue ? counts.length - 1 : bucketIndex(value);
+            synchronized (lock) {
+                counts[index]++;
+                totalCount++;
+                sum += value;
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+        }
+
+        /**
+         * Clears the histogram.
+         */
+        public void reset() {
+            synchronized (lock) {
+                Arrays.fill(counts, 0);
+                totalCount = sum = max = 0;
+                min = Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Get number of recorded values.
+         *
+         * @return                                  Number of values
+         */
+        public long getTotalCount() {
+            synchronized (lock) {
+                return totalCount;
+            }
+        }
+
+        /**
+         * Get the smallest recorded value.
+         *
+         * @return                                  Exact smallest value, or 0 if empty
+         */
+        public long getMin() {
+            synchronized (lock) {
+                return totalCount == 0 ? 0 : min;
+            }
+        }
+
+        /**
+         * Get the largest recorded value.
+         *
+         * @return                                  Exact largest value, or 0 if empty
+         */
+        public long getMax() {
+            synchronized (lock) {
+                return max;
+            }
+        }
+
+        /**
+         * Get the mean of recorded values.
+         *
+         * @return                                  Exact mean, or 0 if empty
+         */
+        public double getMean() {
+            synchronized (lock) {
+                return totalCount == 0 ? 0 : (double) sum / totalCount;
+            }
+        }
+
+        /**
+         * Get the value at the given percentile, which is the upper bound of the bucket containing it,
+         * but not more than {@link #getMax()}.
+         *
+         * @param percentile                        Percentile from 0 to 100
+         *
+         * @return                                  Value at the percentile, or 0 if empty
+         */
+        public long getValueAtPercentile(double percentile) {
+            synchronized (lock) {
+                if (totalCount == 0) return 0;
+                long rank = (long) Math.ceil(Math.max(0, Math.min(percentile, 100)) / 100 * totalCount);
+                if (rank < 1) rank = 1;
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return Math.min(Math.max(bucketUpperBound(i), min), max);
+                }
+                return max;
+            }
+        }
+
+        /**
+         * Copies bucket counts into the array, so that the distribution can be exported.
+         * Bucket {@code i} contains values up to {@link #getBucketUpperBound(int) getBucketUpperBound(i)}
+         * inclusive, and above the upper bound of the previous bucket.
+         *
+         * @param dst                               Destination array, at least {@link #getBucketCount()} long
+         *
+         * @throws IndexOutOfBoundsException        The array is too short
+         */
+        public void getCounts(long[] dst) {
+            if (dst.length < counts.length) throw new IndexOutOfBoundsException("Array is too short");
+            synchronized (lock) {
+                System.arraycopy(counts, 0, dst, 0, counts.length);
+            }
+        }
+
+        /**
+         * Get number of buckets.
+         *
+         * @return                                  Number of buckets
+         */
+        public int getBucketCount() {
+            return counts.length;
+        }
+
+        /**
+         * Get the largest value counted in the bucket. The last bucket also counts all values above the maximum.
+         *
+         * @param index                             Bucket index
+         *
+         * @return                                  Upper bound of the bucket
+         *
+         * @throws IndexOutOfBoundsException        Index is out of range
+         */
+        public long getBucketUpperBound(int index) {
+            if (index < 0 || index >= counts.length) throw new IndexOutOfBoundsException("Bucket index out of range");
+            return index == counts.length - 1 ? Long.MAX_VALUE : bucketUpperBound(index);
+        }
+
+        /**
+         * Get summary of the histogram, assuming it records nanoseconds.
+         *
+         * @return                                  Count and percentiles in milliseconds
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder().append("count=").append(getTotalCount());
+            appendMillis(sb.append(", p50="), getValueAtPercentile(50));
+            appendMillis(sb.append(", p90="), getValueAtPercentile(90));
+            appendMillis(sb.append(", p99="), getValueAtPercentile(99));
+            appendMillis(sb.append(", max="), getMax());
+            return sb.toString();
+        }
+
+        private static void appendMillis(StringBuilder sb, long nanos) {
+            long micros = nanos / 1000;
+            sb.append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) sb.append('0');
+            if (fraction < 10) sb.append('0');
+            sb.append(fraction).append("ms");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Native memory access for fallback implementations, which work with native pointers.
+ * It's backed by {@code sun.misc.Unsafe}, which is looked up reflectively, so that
+ * JBR API doesn't depend on {@code jdk.unsupported} module.
+ * Class initialization fails if native memory access is not available.
+ */
+final class NativeMemory {
+
+    private static final MethodHandle GET_BYTE, GET_INT, GET_LONG, COPY_MEMORY;
+    private static final long INT_ARRAY_OFFSET, SHORT_ARRAY_OFFSET;
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            GET_BYTE = unreflect(unsafe, "getByte", long.class);
+            GET_INT = unreflect(unsafe, "getInt", long.class);
+            GET_LONG = unreflect(unsafe, "getLong", long.class);
+            COPY_MEMORY = unreflect(unsafe, "copyMemory", Object.class, long.class, Object.class, long.class, long.class);
+            MethodHandle arrayBaseOffset = unreflect(unsafe, "arrayBaseOffset", Class.class);
+            INT_ARRAY_OFFSET = (int) arrayBaseOffset.invokeExact((Class<?>) int[].class);
+            SHORT_ARRAY_OFFSET = (int) arrayBaseOffset.invokeExact((Class<?>) short[].class);
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle unreflect(Object unsafe, String name, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        Method method = unsafe.getClass().getMethod(name, parameterTypes);
+        method.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflect(method).bindTo(unsafe);
+        // Erase receiver type, so that invokeExact call sites don't need to mention Unsafe.
+        return handle.asType(MethodType.methodType(method.getReturnType(), parameterTypes));
+    }
+
+    private NativeMemory() {}
+
+    /**
+     * Does nothing, but makes sure that native memory access is available.
+     */
+    static void ensureAvailable() {}
+
+    static byte getByte(long address) {
+        try {
+            return (byte) GET_BYTE.invokeExact(address);
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    static int getInt(long address) {
+        try {
+            return (int) GET_INT.invokeExact(address);
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    static long getLong(long address) {
+        try {
+            return (long) GET_LONG.invokeExact(address);
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    static void copy(long address, int[] dst, int offset, int length) {
+        copy(null, address, dst, INT_ARRAY_OFFSET + (long) offset * 4, (long) length * 4);
+    }
+
+    static void copy(long address, short[] dst, int offset, int length) {
+        copy(null, address, dst, SHORT_ARRAY_OFFSET + (long) offset * 2, (long) length * 2);
+    }
+
+    static void copy(int[] src, int offset, int length, long address) {
+        copy(src, INT_ARRAY_OFFSET + (long) offset * 4, null, address, (long) length * 4);
+    }
+
+    private static void copy(Object src, long srcOffset, Object dst, long dstOffset, long bytes) {
+        try {
+            COPY_MEMORY.invokeExact(src, srcOffset, dst, dstOffset, bytes);
+        } catch (Throwable e) {
+            throw unchecked(e);
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new IllegalStateException(e);
+    }
+}
@@ -16,14 +16,57 @@
 
 package com.jetbrains;
 
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.VolatileImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * Direct raster loading for VolatileImage.
  */
 @Service
 @Provided
+@Fallback(NativeRasterLoader_Fallback.class)
 public interface NativeRasterLoader {
+
+    /**
+     * 8-bit ARGB color components packed into integer pixels, premultiplied with alpha.
+     * This is the format accepted by {@link #loadNativeRaster(VolatileImage, long, int, int, long, int)}.
+     */
+    int FORMAT_INT_ARGB_PRE = 0;
+    /**
+     * 8-bit ARGB color components packed into integer pixels, not premultiplied with alpha.
+     */
+    int FORMAT_INT_ARGB = 1;
+    /**
+     * 8-bit ABGR color components packed into integer pixels, premultiplied with alpha.
+     * Compared to {@link #FORMAT_INT_ARGB_PRE}, red and blue components are swapped.
+     */
+    int FORMAT_INT_ABGR_PRE = 2;
+    /**
+     * 8-bit ABGR color components packed into integer pixels, not premultiplied with alpha.
+     * Compared to {@link #FORMAT_INT_ARGB}, red and blue components are swapped.
+     */
+    int FORMAT_INT_ABGR = 3;
+    /**
+     * 5-bit red, 6-bit green and 5-bit blue color components packed into 16-bit pixels, opaque.
+     */
+    int FORMAT_USHORT_565_RGB = 4;
+
     /**
      * Loads native image raster into VolatileImage.
      *
@@ -37,4 +80,787 @@ public interface NativeRasterLoader {
      * @param rectsCount count of "dirty" rects (if 0 then whole image used)
      */
     void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount);
-}
\ No newline at end of file
+
+    /**
+     * Queues loading of native image raster into VolatileImage and returns immediately,
+     * so that the caller can prepare the next frame while the current one is being uploaded.
+     * Parameters have the same meaning as in {@link #loadNativeRaster}.
+     * <p>
+     * Uploads into the same VolatileImage are performed in submission order, and a subsequent
+     * synchronous {@link #loadNativeRaster} call into that image waits for all queued uploads.
+     * Memory pointed to by {@code pRaster} and {@code pRects} is read asynchronously, so it must
+     * stay valid and must not be modified until the returned stage is completed. After that
+     * the caller is free to reuse or release it, and the uploaded pixels are visible to
+     * any rendering from the VolatileImage.
+     * <p>
+     * Dependent actions attached to the returned stage are executed on an unspecified
+     * thread that must not be left blocked for a long time.
+     *
+     * @param vi volatile image
+     * @param pRaster native pointer image raster with 8-bit RGBA color components packed into integer pixels.
+     * Note: The color data in this image is considered to be premultiplied with alpha.
+     * @param width width of image in pixels
+     * @param height height of image in pixels
+     * @param pRects native pointer to array of "dirty" rects, each rect is a sequence of four 32-bit integers: x, y, width, heigth
+     * Note: can be null (then whole image used)
+     * @param rectsCount count of "dirty" rects (if 0 then whole image used)
+     * @return fence which is completed when the source memory is no longer accessed, or
+     * completed exceptionally if the upload failed (e.g. when contents of the image were lost)
+     */
+    @Extension(Extensions.ASYNC_RASTER_LOADING)
+    CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount);
+
+    /**
+     * Loads native image raster of given format into VolatileImage.
+     * Only pixels inside "dirty" rects are converted, so passing rects is beneficial
+     * for any format other than {@link #FORMAT_INT_ARGB_PRE}.
+     *
+     * @param vi volatile image
+     * @param pRaster native pointer image raster, rows of {@code width} pixels follow each other without gaps
+     * @param width width of image in pixels
+     * @param height height of image in pixels
+     * @param format raster format, one of {@code FORMAT_*} constants, e.g. {@link #FORMAT_INT_ARGB_PRE}
+     * @param pRects native pointer to array of "dirty" rects, each rect is a sequence of four 32-bit integers: x, y, width, heigth
+     * Note: can be null (then whole image used)
+     * @param rectsCount count of "dirty" rects (if 0 then whole image used)
+     * @throws IllegalArgumentException if the format is unknown
+     * @see #loadNativeRaster(VolatileImage, long, int, int, long, int)
+     */
+    @Extension(Extensions.RASTER_FORMATS)
+    void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount);
+
+    /**
+     * Queues loading of native image raster of given format into VolatileImage and returns immediately.
+     * This is a combination of {@link #loadNativeRasterAsync(VolatileImage, long, int, int, long, int)}
+     * and {@link #loadNativeRaster(VolatileImage, long, int, int, int, long, int)}.
+     *
+     * @param vi volatile image
+     * @param pRaster native pointer image raster, rows of {@code width} pixels follow each other without gaps
+     * @param width width of image in pixels
+     * @param height height of image in pixels
+     * @param format raster format, one of {@code FORMAT_*} constants, e.g. {@link #FORMAT_INT_ARGB_PRE}
+     * @param pRects native pointer to array of "dirty" rects, each rect is a sequence of four 32-bit integers: x, y, width, heigth
+     * Note: can be null (then whole image used)
+     * @param rectsCount count of "dirty" rects (if 0 then whole image used)
+     * @return fence which is completed when the source memory is no longer accessed, or
+     * completed exceptionally if the upload failed (e.g. when contents of the image were lost)
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    @Extension(Extensions.RASTER_FORMATS)
+    CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount);
+
+    /**
+     * Coalesces "dirty" rects in place, reducing the number of rects to be loaded, see {@link #loadNativeRaster}.
+     * Empty rects are dropped, and any two rects are replaced with their bounding rect when it is not
+     * more expensive to load, which is always the case for adjacent rects of the same height (width)
+     * and for rects containing one another. When loading the bounding rect of all rects is
+     * cheaper than loading them separately, it's the only rect left.
+     * Cost of loading a rect is estimated as its area plus {@code rectCost}.
+     * <p>
+     * This method does not allocate, so it can be called every frame.
+     *
+     * @param rects array of rects, each rect is a sequence of four integers: x, y, width, heigth
+     * @param rectsCount count of rects in the array
+     * @param rectCost estimated overhead of loading a single rect, expressed in pixels
+     * @return new count of rects, which are stored at the beginning of the array
+     */
+    static int coalesceDirtyRects(int[] rects, int rectsCount, int rectCost) {
+        return DirtyRects.coalesce(rects, null, 0, rectsCount, rectCost);
+    }
+
+    /**
+     * Coalesces "dirty" rects in place, like {@link #coalesceDirtyRects(int[], int, int)} does.
+     * Rects are stored starting at the current position of the buffer, which is not changed.
+     * A direct buffer in native byte order can then be passed to {@link #loadNativeRaster} as {@code pRects}.
+     *
+     * @param rects buffer of rects, each rect is a sequence of four integers: x, y, width, heigth
+     * @param rectsCount count of rects in the buffer
+     * @param rectCost estimated overhead of loading a single rect, expressed in pixels
+     * @return new count of rects, which are stored starting at the current position of the buffer
+     */
+    static int coalesceDirtyRects(IntBuffer rects, int rectsCount, int rectCost) {
+        return DirtyRects.coalesce(null, rects, rects.position(), rectsCount, rectCost);
+    }
+
+    /**
+     * Detects which parts of a raster have changed since the previous frame and produces
+     * "dirty" rects for {@link #loadNativeRaster}, so that unchanged regions are never loaded again.
+     * <p>
+     * Raster is split into square tiles and a 64-bit hash of each tile is compared with the one
+     * from the previous frame. Horizontal runs of changed tiles become rects, which are then extended
+     * down through the following tile rows having a run of the same extent.
+     * Resulting rects can be further reduced with {@link #coalesceDirtyRects(IntBuffer, int, int)}.
+     * <p>
+     * Tile rows can be hashed in parallel in a {@link ForkJoinPool}. Without a pool detection is
+     * performed on the calling thread and does not allocate.
+     * Instances are not thread-safe.
+     */
+    final class ChangeDetector {
+        private static final long SEED = 0x27D4EB2F165667C5L;
+
+        private final int width, height, bytesPerPixel, tileSize, tilesX, tilesY;
+        private final ForkJoinPool pool;
+        private final long[] hashes;
+        private final boolean[] changed;
+        private int[] runs, previousRuns;
+        private boolean reset = true;
+
+        /**
+         * Creates change detector, which hashes tiles on the calling thread.
+         * @param width width of raster in pixels
+         * @param height height of raster in pixels
+         * @param format raster format, one of {@code FORMAT_*} constants
+         * @param tileSize width and height of tiles in pixels
+         * @throws IllegalArgumentException if the format is unknown, or any of the sizes is not positive
+         */
+        public ChangeDetector(int width, int height, int format, int tileSize) {
+            this(width, height, format, tileSize, null);
+        }
+
+        /**
+         * Creates change detector, which hashes tiles in parallel.
+         * @param width width of raster in pixels
+         * @param height height of raster in pixels
+         * @param format raster format, one of {@code FORMAT_*} constants
+         * @param tileSize width and height of tiles in pixels
+         * @param pool pool to hash tiles in, or {@code null} to do that on the calling thread
+         * @throws IllegalArgumentException if the format is unknown, or any of the sizes is not positive
+         */
+        public ChangeDetector(int width, int height, int format, int tileSize, ForkJoinPool pool) {
+            if (width <= 0 || height <= 0 || tileSize <= 0) {
+                throw new IllegalArgumentException("Raster and tile sizes must be positive");
+            }
+            this.width = width;
+            this.height = height;
+            this.bytesPerPixel = RasterFormats.bytesPerPixel(format);
+            this.tileSize = tileSize;
+            this.pool = pool;
+            tilesX = (width - 1) / tileSize + 1;
+            tilesY = (height - 1) / tileSize + 1;
+            hashes = new long[tilesX * tilesY];
+            changed = new boolean[tilesX * tilesY];
+            // Each run is a pair of tile indices and an index of the corresponding rect.
+            runs = new int[(tilesX + 1) / 2 * 3];
+            previousRuns = new int[runs.length];
+        }
+
+        /**
+         * Returns maximum number of rects produced by this detector.
+         * @return maximum number of rects
+         */
+        public int getMaxRectsCount() {
+            return (tilesX + 1) / 2 * tilesY;
+        }
+
+        /**
+         * Forgets the previous frame, so that the whole raster is reported as changed next time.
+         */
+        public void reset() {
+            reset = true;
+        }
+
+        /**
+         * Detects changes in the frame stored in native memory.
+         * @param pRaster native pointer to the raster, rows of {@code width} pixels follow each other without gaps
+         * @param rects buffer to store rects into, starting at its current position, which is not changed.
+         *              Each rect is a sequence of four integers: x, y, width, heigth.
+         *              Buffer must have room for {@link #getMaxRectsCount()} rects
+         * @return count of rects, 0 if nothing changed
+         */
+        public int detectChanges(long pRaster, IntBuffer rects) {
+            NativeMemory.ensureAvailable();
+            hash(pRaster, null);
+            return collectRects(rects);
+        }
+
+        /**
+         * Detects changes in the frame stored in a buffer, which is usually a direct one.
+         * @param raster raster, starting at index 0, rows of {@code width} pixels follow each other without gaps
+         * @param rects buffer to store rects into, starting at its current position, which is not changed.
+         *              Each rect is a sequence of four integers: x, y, width, heigth.
+         *              Buffer must have room for {@link #getMaxRectsCount()} rects
+         * @return count of rects, 0 if nothing changed
+         * @throws IllegalArgumentException if the raster buffer is too small
+         */
+        public int detectChanges(ByteBuffer raster, IntBuffer rects) {
+            if (raster.limit() < (long) width * height * bytesPerPixel) {
+                throw new IllegalArgumentException("Raster buffer is too small");
+            }
+            hash(0, raster);
+            return collectRects(rects);
+        }
+
+        private void hash(long address, ByteBuffer buffer) {
+            if (pool != null && tilesY > 1) pool.invoke(new HashTask(address, buffer, 0, tilesY));
+            else hashRows(address, buffer, 0, tilesY);
+            reset = false;
+        }
+
+        private void hashRows(long address, ByteBuffer buffer, int fromRow, int toRow) {
+            for (int ty = fromRow; ty < toRow; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int i = ty * tilesX + tx;
+                    long h = hashTile(address, buffer, tx * tileSize, ty * tileSize);
+                    changed[i] = reset || h != hashes[i];
+                    hashes[i] = h;
+                }
+            }
+        }
+
+        private long hashTile(long address, ByteBuffer buffer, int x, int y) {
+            int rowBytes = (Math.min(x + tileSize, width) - x) * bytesPerPixel, y1 = Math.min(y + tileSize, height);
+            long h = SEED;
+            for (; y < y1; y++) {
+                long offset = ((long) y * width + x) * bytesPerPixel;
+                int i = 0;
+                for (; i <= rowBytes - 8; i += 8) {
+                    long v = buffer == null ? NativeMemory.getLong(address + offset + i) : buffer.getLong((int) offset + i);
+                    h = Long.rotateLeft(h ^ v * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+                }
+                for (; i < rowBytes; i++) {
+                    long v = buffer == null ? NativeMemory.getByte(address + offset + i) : buffer.get((int) offset + i);
+                    h = Long.rotateLeft(h ^ v * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+                }
+            }
+            return h ^ (h >>> 29);
+        }
+
+        private int collectRects(IntBuffer rects) {
+            int base = rects.position(), count = 0, previousCount = 0;
+            for (int ty = 0; ty < tilesY; ty++) {
+                int runsCount = 0, p = 0;
+                for (int tx = 0; tx < tilesX; tx++) {
+                    if (!changed[ty * tilesX + tx]) continue;
+                    int start = tx;
+                    while (tx + 1 < tilesX && changed[ty * tilesX + tx + 1]) tx++;
+                    // Previous runs are sorted, so find the one with the same extent, if any.
+                    while (p < previousCount && previousRuns[p * 3] < start) p++;
+                    int rect;
+                    if (p < previousCount && previousRuns[p * 3] == start && previousRuns[p * 3 + 1] == tx) {
+                        rect = previousRuns[p * 3 + 2];
+                        int r = base + rect * 4;
+                        rects.put(r + 3, Math.min((ty + 1) * tileSize, height) - rects.get(r + 1));
+                    } else {
+                        rect = count++;
+                        int r = base + rect * 4, x = start * tileSize, y = ty * tileSize;
+                        rects.put(r, x).put(r + 1, y)
+                                .put(r + 2, Math.min((tx + 1) * tileSize, width) - x)
+                                .put(r + 3, Math.min(y + tileSize, height) - y);
+                    }
+                    runs[runsCount * 3] = start;
+                    runs[runsCount * 3 + 1] = tx;
+                    runs[runsCount * 3 + 2] = rect;
+                    runsCount++;
+                }
+                int[] t = previousRuns;
+                previousRuns = runs;
+                runs = t;
+                previousCount = runsCount;
+            }
+            return count;
+        }
+
+        @SuppressWarnings("serial")
+        private final class HashTask extends RecursiveAction {
+            private final long address;
+            private final ByteBuffer buffer;
+            private final int fromRow, toRow;
+
+            private HashTask(long address, ByteBuffer buffer, int fromRow, int toRow) {
+                this.address = address;
+                this.buffer = buffer;
+                this.fromRow = fromRow;
+                this.toRow = toRow;
+            }
+
+            @Override
+            protected void compute() {
+                if (toRow - fromRow <= 1) {
+                    hashRows(address, buffer, fromRow, toRow);
+                } else {
+                    int middle = (fromRow + toRow) >>> 1;
+                    invokeAll(new HashTask(address, buffer, fromRow, middle), new HashTask(address, buffer, middle, toRow));
+                }
+            }
+        }
+    }
+
+    /**
+     * Streaming target for loading frames at video rate, backed by a small ring of volatile images.
+     * Frames are loaded into an image which is not being painted, so the painter never sees a torn frame,
+     * and only after a frame is completely loaded it becomes available for painting.
+     * <p>
+     * When a frame comes with "dirty" rects, contents of the previous frame are first copied into the
+     * image, so that only changed pixels are loaded from the raster. Lost contents of images are
+     * restored internally from the raster, which always holds the whole frame.
+     * <p>
+     * Frames must be loaded from a single thread at a time, while painting may happen on any thread.
+     * With two images loading may wait for painting of the previous frame to finish, with three
+     * images it never waits. Painting never waits for loading.
+     */
+    final class StreamingTarget {
+        private final Object lock = new Object();
+        private final NativeRasterLoader loader;
+        private final GraphicsConfiguration gc;
+        private final int width, height;
+        private final VolatileImage[] images;
+        private final int[] readers;
+        private int latest = -1, loading = -1;
+
+        /**
+         * Creates streaming target.
+         * @param loader raster loader to load frames with
+         * @param gc graphics configuration to create volatile images for
+         * @param width width of frames in pixels
+         * @param height height of frames in pixels
+         * @param buffers number of volatile images, at least 2
+         * @throws IllegalArgumentException if frame size is not positive, or there are less than 2 buffers
+         */
+        public StreamingTarget(NativeRasterLoader loader, GraphicsConfiguration gc, int width, int height, int buffers) {
+            if (width <= 0 || height <= 0) throw new IllegalArgumentException("Frame size must be positive");
+            if (buffers < 2) throw new IllegalArgumentException("At least 2 buffers are required");
+            this.loader = loader;
+            this.gc = gc;
+            this.width = width;
+            this.height = height;
+            images = new VolatileImage[buffers];
+            readers = new int[buffers];
+        }
+
+        /**
+         * Loads a frame and makes it available for painting.
+         * @param pRaster native pointer image raster, rows of {@code width} pixels follow each other without gaps
+         * @param format raster format, one of {@code FORMAT_*} constants. Formats other than
+         *               {@link #FORMAT_INT_ARGB_PRE} require {@link Extensions#RASTER_FORMATS}
+         * @param pRects native pointer to array of "dirty" rects, each rect is a sequence of four 32-bit integers: x, y, width, heigth
+         * Note: can be null (then whole image used)
+         * @param rectsCount count of "dirty" rects (if 0 then whole image used)
+         * @throws InterruptedException if interrupted while waiting for a free image
+         */
+        public void loadFrame(long pRaster, int format, long pRects, int rectsCount) throws InterruptedException {
+            int target, source;
+            synchronized (lock) {
+                while ((target = findFreeImage()) == -1) lock.wait();
+                loading = target;
+                source = latest;
+                // Previous frame is read while it's copied, so that it isn't flushed meanwhile.
+                if (source != -1) readers[source]++;
+            }
+            boolean loaded = false;
+            try {
+                VolatileImage vi = images[target];
+                boolean whole = pRects == 0 || rectsCount <= 0;
+                do {
+                    if (vi == null || vi.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                        if (vi != null) vi.flush();
+                        vi = images[target] = gc.createCompatibleVolatileImage(width, height, Transparency.TRANSLUCENT);
+                    }
+                    if (!whole) whole = !copyFrame(source, vi);
+                    if (whole) load(vi, pRaster, format, 0, 0);
+                    else load(vi, pRaster, format, pRects, rectsCount);
+                    // Lost contents can't be patched with dirty rects anymore.
+                    whole = true;
+                } while (vi.contentsLost());
+                loaded = true;
+            } finally {
+                synchronized (lock) {
+                    loading = -1;
+                    if (source != -1) readers[source]--;
+                    // Publish only completely loaded frames.
+                    if (loaded) latest = target;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Paints the most recent completely loaded frame.
+         * @param g graphics to paint with
+         * @param x x coordinate of the frame
+         * @param y y coordinate of the frame
+         * @return true if the frame was painted, false if no frame is available or its contents were lost
+         */
+        public boolean paintFrame(Graphics g, int x, int y) {
+            int i;
+            synchronized (lock) {
+                i = latest;
+                if (i == -1) return false;
+                readers[i]++;
+            }
+            try {
+                VolatileImage vi = images[i];
+                if (vi.contentsLost()) return false;
+                g.drawImage(vi, x, y, null);
+                return !vi.contentsLost();
+            } finally {
+                synchronized (lock) {
+                    readers[i]--;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Releases volatile images. Target can still be used afterwards, images are recreated on demand.
+         */
+        public void flush() {
+            synchronized (lock) {
+                for (int i = 0; i < images.length; i++) {
+                    if (images[i] != null && i != loading && readers[i] == 0) {
+                        images[i].flush();
+                        images[i] = null;
+                        if (latest == i) latest = -1;
+                    }
+                }
+            }
+        }
+
+        private int findFreeImage() {
+            for (int i = 0; i < images.length; i++) {
+                int candidate = (latest + 1 + i) % images.length;
+                if (candidate != latest && readers[candidate] == 0) return candidate;
+            }
+            return -1;
+        }
+
+        private boolean copyFrame(int source, VolatileImage vi) {
+            if (source == -1) return false;
+            VolatileImage src = images[source];
+            if (src == null || src.contentsLost()) return false;
+            Graphics2D g = vi.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(src, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            return !src.contentsLost();
+        }
+
+        private void load(VolatileImage vi, long pRaster, int format, long pRects, int rectsCount) {
+            if (format == FORMAT_INT_ARGB_PRE) loader.loadNativeRaster(vi, pRaster, width, height, pRects, rectsCount);
+            else loader.loadNativeRaster(vi, pRaster, width, height, format, pRects, rectsCount);
+        }
+    }
+
+    /**
+     * Upload statistics: number of calls, loaded rects and bytes, time spent and a histogram of call latencies.
+     * Statistics are collected by a loader returned from {@link #instrument(NativeRasterLoader)},
+     * so that they can be enabled only where needed and work with any loader implementation.
+     * <p>
+     * Time of a synchronous call is measured until it returns, time of an asynchronous call -
+     * until its fence completes. Only successful calls are counted. Statistics can be updated and read
+     * from any thread, but values read one by one don't necessarily belong to the same moment.
+     * <p>
+     * When JFR is available (Java 11+), each call is also recorded as a {@code jetbrains.NativeRasterUpload}
+     * event with the number of rects and bytes, so uploads show up in standard flight recordings.
+     */
+    final class Statistics {
+        /**
+         * Number of latency histogram buckets.
+         * @see #getLatencyCount(int)
+         */
+        public static final int LATENCY_BUCKETS = 32;
+
+        private final LongAdder calls = new LongAdder(), rects = new LongAdder(),
+                bytes = new LongAdder(), nanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+        /**
+         * Creates empty statistics.
+         */
+        public Statistics() {}
+
+        /**
+         * Wraps a loader, so that each of its calls is recorded into these statistics.
+         * @param loader loader to instrument
+         * @return instrumented loader, which supports the same extensions as the original one
+         */
+        public NativeRasterLoader instrument(NativeRasterLoader loader) {
+            return new NativeRasterLoader_Instrumented(loader, this);
+        }
+
+        /**
+         * Number of calls.
+         * @return number of completed calls
+         */
+        public long getCalls() { return calls.sum(); }
+
+        /**
+         * Number of loaded rects, a call without "dirty" rects counts as a single rect.
+         * @return number of loaded rects
+         */
+        public long getRects() { return rects.sum(); }
+
+        /**
+         * Number of raster bytes loaded, taking rects clipped to the raster bounds into account.
+         * When native memory can't be accessed to read rects, whole rasters are counted.
+         * @return number of loaded bytes
+         */
+        public long getBytes() { return bytes.sum(); }
+
+        /**
+         * Total time spent in all calls.
+         * @return total time in nanoseconds
+         */
+        public long getTotalTimeNanos() { return nanos.sum(); }
+
+        /**
+         * Time spent in the slowest call.
+         * @return maximum time in nanoseconds
+         */
+        public long getMaxTimeNanos() { return maxNanos.get(); }
+
+        /**
+         * Number of calls in a latency histogram bucket. Bucket 0 counts calls which took less than 1 microsecond,
+         * bucket {@code i} counts calls which took from 2<sup>i-1</sup> to 2<sup>i</sup> microseconds,
+         * the last bucket also counts all slower calls.
+         * @param bucket bucket index from 0 to {@link #LATENCY_BUCKETS} - 1
+         * @return number of calls in the bucket
+         */
+        public long getLatencyCount(int bucket) { return latencies.get(bucket); }
+
+        /**
+         * Estimates latency percentile from the histogram, the result is accurate within a factor of 2.
+         * @param percentile percentile from 0 to 100
+         * @return upper bound of the latency percentile in nanoseconds, or 0 if no calls were recorded
+         */
+        public long getLatencyPercentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) total += latencies.get(i);
+            if (total == 0) return 0;
+            long threshold = (long) Math.ceil(total * Math.max(0.0, Math.min(percentile, 100.0)) / 100.0), count = 0;
+            for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+                count += latencies.get(i);
+                if (count >= threshold) return (1L << i) * 1000;
+            }
+            return Math.max(getMaxTimeNanos(), (1L << (LATENCY_BUCKETS - 2)) * 1000);
+        }
+
+        /**
+         * Resets all statistics to zero.
+         */
+        public void reset() {
+            calls.reset();
+            rects.reset();
+            bytes.reset();
+            nanos.reset();
+            maxNanos.set(0);
+            for (int i = 0; i < LATENCY_BUCKETS; i++) latencies.set(i, 0);
+        }
+
+        void record(int rectsCount, long bytesCount, long time) {
+            calls.increment();
+            rects.add(rectsCount);
+            bytes.add(bytesCount);
+            nanos.add(time);
+            maxNanos.accumulateAndGet(time, Math::max);
+            long micros = time / 1000;
+            latencies.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1));
+        }
+    }
+}
+
+final class NativeRasterLoader_Fallback implements NativeRasterLoader {
+    // Service instances are created on every lookup with extensions, so all of them share the worker,
+    // the upload queue and the staging image. Worker thread exits after a second without uploads.
+    private static final Object lock = new Object(), queueLock = new Object();
+    private static volatile Thread worker;
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "NativeRasterLoader");
+                t.setDaemon(true);
+                return worker = t;
+            });
+    // Guarded by queueLock.
+    private static CompletableFuture<Void> queue = CompletableFuture.completedFuture(null);
+    // Guarded by lock.
+    private static BufferedImage image;
+    private static int[] pixels;
+    private static short[] row = new short[0];
+
+    NativeRasterLoader_Fallback() {
+        NativeMemory.ensureAvailable();
+    }
+
+    @Override
+    public void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {
+        loadNativeRaster(vi, pRaster, width, height, FORMAT_INT_ARGB_PRE, pRects, rectsCount);
+    }
+
+    @Override
+    public void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {
+        RasterFormats.validate(format);
+        CompletableFuture<Void> queued;
+        synchronized (queueLock) {
+            queued = queue;
+        }
+        // Wait for queued uploads, unless we are called from the completion of one of them.
+        if (!queued.isDone() && Thread.currentThread() != worker) queued.handle((v, e) -> null).join();
+        load(vi, pRaster, width, height, format, pRects, rectsCount);
+    }
+
+    @Override
+    public CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {
+        return loadNativeRasterAsync(vi, pRaster, width, height, FORMAT_INT_ARGB_PRE, pRects, rectsCount);
+    }
+
+    @Override
+    public CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {
+        RasterFormats.validate(format);
+        synchronized (queueLock) {
+            queue = CompletableFuture.runAsync(() -> {
+                if (!load(vi, pRaster, width, height, format, pRects, rectsCount)) {
+                    throw new IllegalStateException("Contents of the image were lost");
+                }
+            }, executor);
+            // Don't let the caller complete our queue.
+            return queue.thenApply(Function.identity());
+        }
+    }
+
+    /**
+     * @return false if contents of the image were lost
+     */
+    private static boolean load(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {
+        if (width <= 0 || height <= 0) return !vi.contentsLost();
+        synchronized (lock) {
+            if (image == null || image.getWidth() < width || image.getHeight() < height) {
+                image = new BufferedImage(image == null ? width : Math.max(width, image.getWidth()),
+                        image == null ? height : Math.max(height, image.getHeight()), BufferedImage.TYPE_INT_ARGB_PRE);
+                pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            }
+            Graphics2D g = vi.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                if (pRects == 0 || rectsCount <= 0) {
+                    loadRect(g, pRaster, width, height, format, 0, 0, width, height);
+                } else {
+                    for (int i = 0; i < rectsCount; i++) {
+                        long r = pRects + i * 16L;
+                        loadRect(g, pRaster, width, height, format, NativeMemory.getInt(r),
+                                NativeMemory.getInt(r + 4), NativeMemory.getInt(r + 8), NativeMemory.getInt(r + 12));
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+        return !vi.contentsLost();
+    }
+
+    private static void loadRect(Graphics2D g, long pRaster, int width, int height, int format, int x, int y, int w, int h) {
+        int x0 = Math.max(x, 0), y0 = Math.max(y, 0);
+        int x1 = (int) Math.min((long) x + w, width), y1 = (int) Math.min((long) y + h, height);
+        if (x0 >= x1 || y0 >= y1) return;
+        int stride = image.getWidth(), bpp = RasterFormats.bytesPerPixel(format);
+        // Copy whole rect at once when rows are contiguous in both source and destination.
+        int rowLength = x1 - x0, rows = 1;
+        if (rowLength == width && width == stride) {
+            rowLength *= y1 - y0;
+            rows = y1 - y0;
+        }
+        for (int i = y0; i < y1; i += rows) {
+            long src = pRaster + ((long) i * width + x0) * bpp;
+            int dst = i * stride + x0;
+            if (format == FORMAT_USHORT_565_RGB) {
+                if (row.length < rowLength) row = new short[rowLength];
+                NativeMemory.copy(src, row, 0, rowLength);
+                RasterFormats.convert(row, 0, pixels, dst, rowLength);
+            } else {
+                NativeMemory.copy(src, pixels, dst, rowLength);
+                RasterFormats.convert(format, pixels, dst, rowLength);
+            }
+        }
+        g.drawImage(image, x0, y0, x1, y1, x0, y0, x1, y1, null);
+    }
+}
+final class NativeRasterLoader_Instrumented implements NativeRasterLoader {
+    // Rects can't be read without native memory access, then the whole raster is counted.
+    private static final boolean NATIVE_MEMORY_AVAILABLE = isNativeMemoryAvailable();
+    private static final JfrEventType UPLOAD_EVENT = JfrEventType.define("jetbrains.NativeRasterUpload",
+            "Native Raster Upload", "Upload of a native raster into a volatile image, timed until its fence completes",
+            new String[] {"rects", "bytes", "async"}, new Class<?>[] {int.class, long.class, boolean.class},
+            new int[] {JfrEventType.PLAIN, JfrEventType.DATA_AMOUNT, JfrEventType.PLAIN});
+
+    private final NativeRasterLoader loader;
+    private final Statistics statistics;
+
+    NativeRasterLoader_Instrumented(NativeRasterLoader loader, Statistics statistics) {
+        this.loader = loader;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {
+        long bytes = countBytes(width, height, FORMAT_INT_ARGB_PRE, pRects, rectsCount), start = System.nanoTime();
+        Object event = UPLOAD_EVENT.begin();
+        loader.loadNativeRaster(vi, pRaster, width, height, pRects, rectsCount);
+        record(event, countRects(pRects, rectsCount), bytes, start, false);
+    }
+
+    @Override
+    public void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {
+        long bytes = countBytes(width, height, format, pRects, rectsCount), start = System.nanoTime();
+        Object event = UPLOAD_EVENT.begin();
+        loader.loadNativeRaster(vi, pRaster, width, height, format, pRects, rectsCount);
+        record(event, countRects(pRects, rectsCount), bytes, start, false);
+    }
+
+    @Override
+    public CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {
+        long bytes = countBytes(width, height, FORMAT_INT_ARGB_PRE, pRects, rectsCount), start = System.nanoTime();
+        Object event = UPLOAD_EVENT.begin();
+        return record(loader.loadNativeRasterAsync(vi, pRaster, width, height, pRects, rectsCount),
+                event, countRects(pRects, rectsCount), bytes, start);
+    }
+
+    @Override
+    public CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {
+        long bytes = countBytes(width, height, format, pRects, rectsCount), start = System.nanoTime();
+        Object event = UPLOAD_EVENT.begin();
+        return record(loader.loadNativeRasterAsync(vi, pRaster, width, height, format, pRects, rectsCount),
+                event, countRects(pRects, rectsCount), bytes, start);
+    }
+
+    private CompletionStage<Void> record(CompletionStage<Void> fence, Object event, int rects, long bytes, long start) {
+        return fence.whenComplete((v, e) -> {
+            if (e == null) record(event, rects, bytes, start, true);
+        });
+    }
+
+    private void record(Object event, int rects, long bytes, long start, boolean async) {
+        statistics.record(rects, bytes, System.nanoTime() - start);
+        JfrEventType.commit(event, rects, bytes, async);
+    }
+
+    private static boolean isNativeMemoryAvailable() {
+        try {
+            NativeMemory.ensureAvailable();
+            return true;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static int countRects(long pRects, int rectsCount) {
+        return pRects == 0 || rectsCount <= 0 ? 1 : rectsCount;
+    }
+
+    private static long countBytes(int width, int height, int format, long pRects, int rectsCount) {
+        if (width <= 0 || height <= 0) return 0;
+        long pixels = 0;
+        if (pRects == 0 || rectsCount <= 0 || !NATIVE_MEMORY_AVAILABLE) pixels = (long) width * height;
+        else {
+            for (int i = 0; i < rectsCount; i++) {
+                long r = pRects + i * 16L;
+                int x = NativeMemory.getInt(r), y = NativeMemory.getInt(r + 4);
+                long w = Math.min((long) x + NativeMemory.getInt(r + 8), width) - Math.max(x, 0);
+                long h = Math.min((long) y + NativeMemory.getInt(r + 12), height) - Math.max(y, 0);
+                if (w > 0 && h > 0) pixels += w * h;
+            }
+        }
+        return pixels * RasterFormats.bytesPerPixel(format);
+    }
+}
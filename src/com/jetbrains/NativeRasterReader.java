@@ -0,0 +1,158 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Direct raster reading from VolatileImage, the reverse of {@link NativeRasterLoader}.
+ * Unlike {@link java.awt.image.VolatileImage#getSnapshot()}, pixels are written into memory supplied by the caller,
+ * so that contents can be read back every frame without allocating new images.
+ * <p>
+ * To read back contents of a window, read its back buffer, which is usually a volatile image.
+ */
+@Service
+@Provided
+@Fallback(NativeRasterReader_Fallback.class)
+public interface NativeRasterReader {
+
+    /**
+     * Reads contents of VolatileImage into native image raster.
+     * Pixels are written in {@link NativeRasterLoader#FORMAT_INT_ARGB_PRE} format,
+     * pixels of the raster outside given rects are left untouched.
+     *
+     * @param vi volatile image
+     * @param pRaster native pointer to image raster, rows of {@code width} pixels follow each other without gaps
+     * @param width width of raster in pixels
+     * @param height height of raster in pixels
+     * @param pRects native pointer to array of rects to read, each rect is a sequence of four 32-bit integers: x, y, width, heigth
+     * Note: can be null (then whole image used)
+     * @param rectsCount count of rects (if 0 then whole image used)
+     * @return true if pixels were read, false if contents of the image were lost
+     */
+    boolean readNativeRaster(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount);
+
+    /**
+     * Reads contents of VolatileImage into a buffer, like {@link #readNativeRaster(VolatileImage, long, int, int, long, int)} does.
+     * Pixels are written starting at the current position of the buffer in its byte order, position is not changed.
+     *
+     * @param vi volatile image
+     * @param raster buffer to write pixels to, rows of {@code width} pixels follow each other without gaps
+     * @param width width of raster in pixels
+     * @param height height of raster in pixels
+     * @param rects buffer of rects to read starting at its current position, each rect is a sequence of four integers: x, y, width, heigth
+     * Note: can be null (then whole image used)
+     * @param rectsCount count of rects (if 0 then whole image used)
+     * @return true if pixels were read, false if contents of the image were lost
+     * @throws IndexOutOfBoundsException if the raster doesn't fit into the buffer
+     */
+    boolean readNativeRaster(VolatileImage vi, ByteBuffer raster, int width, int height, IntBuffer rects, int rectsCount);
+}
+
+final class NativeRasterReader_Fallback implements NativeRasterReader {
+    private BufferedImage image;
+    private int[] pixels;
+
+    NativeRasterReader_Fallback() {
+        NativeMemory.ensureAvailable();
+    }
+
+    @Override
+    public boolean readNativeRaster(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {
+        if (width <= 0 || height <= 0) return !vi.contentsLost();
+        synchronized (this) {
+            Graphics2D g = prepare(vi, width, height);
+            try {
+                if (pRects == 0 || rectsCount <= 0) {
+                    readRect(g, vi, pRaster, null, width, height, 0, 0, width, height);
+                } else {
+                    for (int i = 0; i < rectsCount; i++) {
+                        long r = pRects + i * 16L;
+                        readRect(g, vi, pRaster, null, width, height, NativeMemory.getInt(r),
+                                NativeMemory.getInt(r + 4), NativeMemory.getInt(r + 8), NativeMemory.getInt(r + 12));
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+        return !vi.contentsLost();
+    }
+
+    @Override
+    public boolean readNativeRaster(VolatileImage vi, ByteBuffer raster, int width, int height, IntBuffer rects, int rectsCount) {
+        if (width <= 0 || height <= 0) return !vi.contentsLost();
+        if ((long) width * height * 4 > raster.remaining()) throw new IndexOutOfBoundsException("Raster doesn't fit into the buffer");
+        synchronized (this) {
+            Graphics2D g = prepare(vi, width, height);
+            try {
+                if (rects == null || rectsCount <= 0) {
+                    readRect(g, vi, 0, raster, width, height, 0, 0, width, height);
+                } else {
+                    for (int i = 0, r = rects.position(); i < rectsCount; i++, r += 4) {
+                        readRect(g, vi, 0, raster, width, height, rects.get(r), rects.get(r + 1), rects.get(r + 2), rects.get(r + 3));
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+        return !vi.contentsLost();
+    }
+
+    private Graphics2D prepare(VolatileImage vi, int width, int height) {
+        if (image == null || image.getWidth() < width || image.getHeight() < height) {
+            image = new BufferedImage(image == null ? width : Math.max(width, image.getWidth()),
+                    image == null ? height : Math.max(height, image.getHeight()), BufferedImage.TYPE_INT_ARGB_PRE);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        return g;
+    }
+
+    private void readRect(Graphics2D g, VolatileImage vi, long pRaster, ByteBuffer raster,
+                          int width, int height, int x, int y, int w, int h) {
+        int x0 = Math.max(x, 0), y0 = Math.max(y, 0);
+        int x1 = (int) Math.min((long) x + w, Math.min(width, vi.getWidth())),
+                y1 = (int) Math.min((long) y + h, Math.min(height, vi.getHeight()));
+        if (x0 >= x1 || y0 >= y1) return;
+        g.drawImage(vi, x0, y0, x1, y1, x0, y0, x1, y1, null);
+        int stride = image.getWidth(), rowLength = x1 - x0;
+        if (raster == null) {
+            // Copy whole rect at once when rows are contiguous in both source and destination.
+            int rows = 1;
+            if (rowLength == width && width == stride) {
+                rowLength *= y1 - y0;
+                rows = y1 - y0;
+            }
+            for (int i = y0; i < y1; i += rows) {
+                NativeMemory.copy(pixels, i * stride + x0, rowLength, pRaster + ((long) i * width + x0) * 4);
+            }
+        } else {
+            for (int i = y0; i < y1; i++) {
+                int src = i * stride + x0, dst = raster.position() + (i * width + x0) * 4;
+                for (int j = 0; j < rowLength; j++) raster.putInt(dst + j * 4, pixels[src + j]);
+            }
+        }
+    }
+}
@@ -17,6 +17,20 @@
 package com.jetbrains;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -29,6 +43,7 @@ public interface ProjectorUtils {
     /**
      * Override {@link GraphicsEnvironment#getLocalGraphicsEnvironment()}
      * with custom provider. Provider is called only once, returned value is cached.
+     * Use {@link SessionGraphicsEnvironment} to have different environments on different threads.
      * Calling this method after {@link GraphicsEnvironment} initialization (e.g.
      * after {@link GraphicsEnvironment#getLocalGraphicsEnvironment()} was called)
      * will have no effect.
@@ -45,4 +60,730 @@ public interface ProjectorUtils {
      * @param overriddenGE new GraphicsEnvironment
      */
     void overrideGraphicsEnvironment(GraphicsEnvironment overriddenGE);
+
+    /**
+     * {@link GraphicsEnvironment} which dispatches every call to the environment of the current
+     * {@link GraphicsSession}, so that multiple sessions with their own environments can share one process.
+     * As {@link GraphicsEnvironment#getLocalGraphicsEnvironment()} returns the same instance to everyone,
+     * it must be installed once with {@link #overrideGraphicsEnvironment(GraphicsEnvironment)}, sessions are
+     * then switched without any global state.
+     * <p>
+     * Session is bound to a thread with {@link #setCurrentSession(GraphicsSession)} and is not implicitly
+     * inherited by threads created by that thread, as pooled threads, like the common fork-join pool, may
+     * outlive their session or be shared between sessions. Session is handed to other threads explicitly:
+     * threads created by {@link GraphicsSession#wrapThreadFactory(ThreadFactory)} run in the session for their whole life,
+     * and tasks wrapped with {@link GraphicsSession#wrap(Runnable)} or similar methods run in the session
+     * for the duration of the task. Threads without a session use the default environment.
+     * <p>
+     * Every call to this environment resolves the session through a thread-local lookup, so code which
+     * makes many calls should resolve the environment once and keep it: graphics returned by
+     * {@link #createGraphics(BufferedImage)} are created by the session environment directly, and
+     * components, which are usually painted on a thread shared by all sessions, should use
+     * {@link #getEnvironment(Component)} once per paint. Component lookups don't take locks, so painting
+     * of different sessions doesn't contend.
+     */
+    final class SessionGraphicsEnvironment extends GraphicsEnvironment {
+        private final GraphicsEnvironment defaultEnvironment;
+        private final ThreadLocal<GraphicsSession> currentSession = new ThreadLocal<>();
+        private final Object lock = new Object();
+        // Copy-on-write, replaced under lock.
+        private volatile ComponentSessions componentSessions = new ComponentSessions(null, null, null);
+
+        /**
+         * Creates graphics environment.
+         * @param defaultEnvironment environment for threads without a session
+         */
+        public SessionGraphicsEnvironment(GraphicsEnvironment defaultEnvironment) {
+            this.defaultEnvironment = defaultEnvironment;
+        }
+
+        /**
+         * Returns session bound to the current thread.
+         * @return current session or null
+         */
+        public GraphicsSession getCurrentSession() {
+            return currentSession.get();
+        }
+
+        /**
+         * Binds session to the current thread.
+         * @param session session to bind, or null to unbind
+         * @return previously bound session or null, which should be restored afterwards
+         */
+        public GraphicsSession setCurrentSession(GraphicsSession session) {
+            GraphicsSession previous = currentSession.get();
+            if (session == null) currentSession.remove();
+            else currentSession.set(session);
+            return previous;
+        }
+
+        /**
+         * Returns environment of the current session.
+         * @return environment of the current session, or the default one if there is no session
+         */
+        public GraphicsEnvironment getCurrentEnvironment() {
+            GraphicsSession session = currentSession.get();
+            return session == null ? defaultEnvironment : session.getEnvironment();
+        }
+
+        /**
+         * Binds session to the component and its descendants, which takes precedence over the session
+         * of the thread. Component is referenced weakly.
+         * @param component component to bind session to
+         * @param session session to bind, or null to unbind
+         */
+        public void setSession(Component component, GraphicsSession session) {
+            synchronized (lock) {
+                componentSessions = new ComponentSessions(componentSessions, component, session);
+            }
+        }
+
+        /**
+         * Returns session of the component, which is the session bound to the component or its nearest
+         * ancestor with {@link #setSession(Component, GraphicsSession)}, or the session of the current thread.
+         * Lookup doesn't take locks and doesn't allocate.
+         * @param component component
+         * @return session of the component or null
+         */
+        public GraphicsSession getSession(Component component) {
+            ComponentSessions sessions = componentSessions;
+            if (sessions.size != 0) {
+                for (Component c = component; c != null; c = c.getParent()) {
+                    GraphicsSession session = sessions.get(c);
+                    if (session != null) return session;
+                }
+            }
+            return currentSession.get();
+        }
+
+        /**
+         * Returns environment of the component's session.
+         * @param component component
+         * @return environment of the {@linkplain #getSession(Component) component's session},
+         *         or the default one if there is no session
+         */
+        public GraphicsEnvironment getEnvironment(Component component) {
+            GraphicsSession session = getSession(component);
+            return session == null ? defaultEnvironment : session.getEnvironment();
+        }
+
+        @Override
+        public GraphicsDevice[] getScreenDevices() throws HeadlessException {
+            return getCurrentEnvironment().getScreenDevices();
+        }
+
+        @Override
+        public GraphicsDevice getDefaultScreenDevice() throws HeadlessException {
+            return getCurrentEnvironment().getDefaultScreenDevice();
+        }
+
+        @Override
+        public Graphics2D createGraphics(BufferedImage img) {
+            return getCurrentEnvironment().createGraphics(img);
+        }
+
+        @Override
+        public Font[] getAllFonts() {
+            return getCurrentEnvironment().getAllFonts();
+        }
+
+        @Override
+        public String[] getAvailableFontFamilyNames() {
+            return getCurrentEnvironment().getAvailableFontFamilyNames();
+        }
+
+        @Override
+        public String[] getAvailableFontFamilyNames(Locale l) {
+            return getCurrentEnvironment().getAvailableFontFamilyNames(l);
+        }
+
+        @Override
+        public boolean isHeadlessInstance() {
+            return getCurrentEnvironment().isHeadlessInstance();
+        }
+
+        @Override
+        public boolean registerFont(Font font) {
+            return getCurrentEnvironment().registerFont(font);
+        }
+
+        @Override
+        public void preferLocaleFonts() {
+            getCurrentEnvironment().preferLocaleFonts();
+        }
+
+        @Override
+        public void preferProportionalFonts() {
+            getCurrentEnvironment().preferProportionalFonts();
+        }
+
+        @Override
+        public Point getCenterPoint() throws HeadlessException {
+            return getCurrentEnvironment().getCenterPoint();
+        }
+
+        @Override
+        public Rectangle getMaximumWindowBounds() throws HeadlessException {
+            return getCurrentEnvironment().getMaximumWindowBounds();
+        }
+
+        // Immutable open addressing table of weakly referenced components, keyed by identity.
+        private static final class ComponentSessions {
+            private final WeakReference<Component>[] components;
+            private final GraphicsSession[] sessions;
+            private final int size;
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            private ComponentSessions(ComponentSessions previous, Component component, GraphicsSession session) {
+                int size = session != null ? 1 : 0;
+                if (previous != null) {
+                    for (int i = 0; i < previous.components.length; i++) {
+                        Component c = previous.components[i] == null ? null : previous.components[i].get();
+                        if (c != null && c != component) size++;
+                    }
+                }
+                int length = Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+                components = new WeakReference[length];
+                sessions = new GraphicsSession[length];
+                this.size = size;
+                if (session != null) put(new WeakReference<>(component), component, session);
+                if (previous != null) {
+                    // Components which were garbage collected are dropped.
+                    for (int i = 0; i < previous.components.length; i++) {
+                        Component c = previous.components[i] == null ? null : previous.components[i].get();
+                        if (c != null && c != component) put(previous.components[i], c, previous.sessions[i]);
+                    }
+                }
+            }
+
+            private void put(WeakReference<Component> reference, Component component, GraphicsSession session) {
+                int mask = components.length - 1;
+                int i = System.identityHashCode(component) & mask;
+                while (components[i] != null) i = (i + 1) & mask;
+                components[i] = reference;
+                sessions[i] = session;
+            }
+
+            private GraphicsSession get(Component component) {
+                int mask = components.length - 1;
+                for (int i = System.identityHashCode(component) & mask; components[i] != null; i = (i + 1) & mask) {
+                    if (components[i].get() == component) return sessions[i];
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Session of {@link SessionGraphicsEnvironment}, which holds the environment used by its threads
+     * and components. Environment can be replaced at any time, threads and components of the session
+     * see the change immediately.
+     */
+    final class GraphicsSession {
+        private final SessionGraphicsEnvironment owner;
+        private volatile GraphicsEnvironment environment;
+
+        /**
+         * Creates session.
+         * @param owner environment dispatching to this session
+         * @param environment environment of this session
+         */
+        public GraphicsSession(SessionGraphicsEnvironment owner, GraphicsEnvironment environment) {
+            this.owner = owner;
+            this.environment = environment;
+        }
+
+        /**
+         * Returns environment of this session.
+         * @return environment of this session
+         */
+        public GraphicsEnvironment getEnvironment() {
+            return environment;
+        }
+
+        /**
+         * Replaces environment of this session.
+         * @param environment new environment
+         */
+        public void setEnvironment(GraphicsEnvironment environment) {
+            this.environment = environment;
+        }
+
+        /**
+         * Wraps task, so that it runs in this session regardless of the thread running it.
+         * @param task task to wrap
+         * @return wrapped task
+         */
+        public Runnable wrap(Runnable task) {
+            return () -> {
+                GraphicsSession previous = owner.setCurrentSession(this);
+                try {
+                    task.run();
+                } finally {
+                    owner.setCurrentSession(previous);
+                }
+            };
+        }
+
+        /**
+         * Wraps task, so that it runs in this session regardless of the thread running it.
+         * @param task task to wrap
+         * @param <T> type of the result
+         * @return wrapped task
+         */
+        public <T> Callable<T> wrap(Callable<T> task) {
+            return () -> {
+                GraphicsSession previous = owner.setCurrentSession(this);
+                try {
+                    return task.call();
+                } finally {
+                    owner.setCurrentSession(previous);
+                }
+            };
+        }
+
+        /**
+         * Wraps executor, so that all tasks submitted through the returned one run in this session.
+         * @param executor executor to wrap
+         * @return wrapped executor
+         */
+        public Executor wrap(Executor executor) {
+            return task -> executor.execute(wrap(task));
+        }
+
+        /**
+         * Wraps thread factory, so that threads created by the returned one run in this session for their whole life.
+         * Use it for threads owned by the session, pooled threads shared between sessions should run wrapped tasks instead.
+         * @param factory thread factory to wrap
+         * @return wrapped thread factory
+         */
+        public ThreadFactory wrapThreadFactory(ThreadFactory factory) {
+            return task -> factory.newThread(wrap(task));
+        }
+    }
+
+    /**
+     * Frame scheduler of a remote session, which coalesces paint requests into frames sent at most
+     * at the configured rate. Rate is further reduced to match the rate at which client acknowledges frames:
+     * frames are spaced by at least half of the smoothed acknowledgement latency, and no more than
+     * two frames are sent before the client acknowledges one of them, unless no acknowledgement comes
+     * within a second. So a slow client or network gets fewer, larger frames instead of a growing backlog.
+     * <p>
+     * Typical frame callback takes the next frame from {@link RecordingGraphicsEnvironment#nextFrame()}
+     * and sends it with the frame number, which client sends back as acknowledgement once the frame is
+     * shown. Callback runs on the executor given to the constructor, and the next frame is not started
+     * before it returns. If frames must be produced on another thread, like the event dispatch thread,
+     * the callback should wait for that, so that time spent producing frames is accounted for.
+     * Scheduler is thread-safe.
+     */
+    final class FrameScheduler {
+        private static final int MAX_UNACKNOWLEDGED_FRAMES = 2;
+        private static final long ACKNOWLEDGEMENT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final Object lock = new Object();
+        private final ScheduledExecutorService executor;
+        private final LongConsumer frame;
+        private final long[] sendTimes = new long[64];
+        private long minIntervalNanos, latencyNanos, lastFrameTime, totalFrameTimeNanos;
+        private long nextFrame, lastAcknowledged = -1, scheduledTask;
+        private long requests, coalescedRequests, frames, acknowledgedFrames, throttledFrames;
+        private ScheduledFuture<?> scheduled;
+        private boolean running, requestedWhileRunning, waitingForAcknowledgement, closed;
+
+        /**
+         * Creates frame scheduler.
+         * @param executor executor to run frames on, can be shared by multiple sessions
+         * @param frame frame callback accepting frame number, frames are numbered sequentially from 0
+         * @param maxFrameRate maximum number of frames per second
+         */
+        public FrameScheduler(ScheduledExecutorService executor, LongConsumer frame, int maxFrameRate) {
+            this.executor = executor;
+            this.frame = frame;
+            setMaxFrameRate(maxFrameRate);
+        }
+
+        /**
+         * Changes maximum frame rate.
+         * @param maxFrameRate maximum number of frames per second
+         */
+        public void setMaxFrameRate(int maxFrameRate) {
+            if (maxFrameRate <= 0) throw new IllegalArgumentException("Frame rate must be positive");
+            synchronized (lock) {
+                minIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxFrameRate;
+            }
+        }
+
+        /**
+         * Requests a frame. Requests made before the frame starts are coalesced into it.
+         */
+        public void requestFrame() {
+            synchronized (lock) {
+                requests++;
+                if (closed) return;
+                if (running) {
+                    if (requestedWhileRunning) coalescedRequests++;
+                    requestedWhileRunning = true;
+                } else if (scheduled != null) coalescedRequests++;
+                else schedule();
+            }
+        }
+
+        /**
+         * Acknowledges frames received by the client.
+         * @param frameNumber number of the last received frame, all previous frames are acknowledged too
+         */
+        public void acknowledge(long frameNumber) {
+            synchronized (lock) {
+                if (frameNumber <= lastAcknowledged || frameNumber >= nextFrame) return;
+                acknowledgedFrames += frameNumber - lastAcknowledged;
+                lastAcknowledged = frameNumber;
+                if (nextFrame - frameNumber <= sendTimes.length) {
+                    long latency = System.nanoTime() - sendTimes[(int) (frameNumber % sendTimes.length)];
+                    // Exponential moving average, like smoothed round-trip time of TCP.
+                    latencyNanos = latencyNanos == 0 ? latency : latencyNanos + (latency - latencyNanos) / 8;
+                }
+                // Task may have already started and be waiting for the lock, in which case cancel still succeeds,
+                // so it is superseded by the rescheduled one rather than relying on the result of cancel.
+                if (waitingForAcknowledgement && scheduled != null) {
+                    scheduled.cancel(false);
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * Stops scheduling frames, frame in progress is allowed to complete.
+         */
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+                if (scheduled != null) scheduled.cancel(false);
+                scheduled = null;
+            }
+        }
+
+        /**
+         * Number of requested frames.
+         * @return number of {@link #requestFrame()} calls
+         */
+        public long getRequests() { synchronized (lock) { return requests; } }
+
+        /**
+         * Number of requests, which were coalesced into frames requested earlier.
+         * @return number of coalesced requests
+         */
+        public long getCoalescedRequests() { synchronized (lock) { return coalescedRequests; } }
+
+        /**
+         * Number of completed frames.
+         * @return number of frames
+         */
+        public long getFrames() { synchronized (lock) { return frames; } }
+
+        /**
+         * Number of frames acknowledged by the client.
+         * @return number of acknowledged frames
+         */
+        public long getAcknowledgedFrames() { synchronized (lock) { return acknowledgedFrames; } }
+
+        /**
+         * Number of frames delayed because too many previous frames were not acknowledged yet.
+         * @return number of throttled frames
+         */
+        public long getThrottledFrames() { synchronized (lock) { return throttledFrames; } }
+
+        /**
+         * Total time spent in the frame callback.
+         * @return total time in nanoseconds
+         */
+        public long getTotalFrameTimeNanos() { synchronized (lock) { return totalFrameTimeNanos; } }
+
+        /**
+         * Smoothed time between sending a frame and receiving its acknowledgement.
+         * @return acknowledgement latency in nanoseconds, or 0 if nothing was acknowledged yet
+         */
+        public long getLatencyNanos() { synchronized (lock) { return latencyNanos; } }
+
+        /**
+         * Current minimum time between frames, taking both frame rate and latency into account.
+         * @return frame interval in nanoseconds
+         */
+        public long getFrameIntervalNanos() { synchronized (lock) { return frameInterval(); } }
+
+        private long frameInterval() {
+            return Math.max(minIntervalNanos, Math.min(latencyNanos / MAX_UNACKNOWLEDGED_FRAMES, ACKNOWLEDGEMENT_TIMEOUT_NANOS));
+        }
+
+        private void schedule() {
+            long now = System.nanoTime(), time = lastFrameTime + frameInterval();
+            waitingForAcknowledgement = nextFrame - 1 - lastAcknowledged >= MAX_UNACKNOWLEDGED_FRAMES;
+            if (waitingForAcknowledgement) {
+                throttledFrames++;
+                time = Math.max(time, lastFrameTime + ACKNOWLEDGEMENT_TIMEOUT_NANOS);
+            }
+            long task = ++scheduledTask;
+            scheduled = executor.schedule(() -> runFrame(task), frames == 0 ? 0 : Math.max(time - now, 0), TimeUnit.NANOSECONDS);
+        }
+
+        private void runFrame(long task) {
+            long number, start = System.nanoTime();
+            synchronized (lock) {
+                if (closed || task != scheduledTask) return;
+                scheduled = null;
+                running = true;
+                number = nextFrame++;
+                lastFrameTime = start;
+                sendTimes[(int) (number % sendTimes.length)] = start;
+            }
+            try {
+                frame.accept(number);
+            } finally {
+                synchronized (lock) {
+                    running = false;
+                    frames++;
+                    totalFrameTimeNanos += System.nanoTime() - start;
+                    if (requestedWhileRunning && !closed) {
+                        requestedWhileRunning = false;
+                        schedule();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link GraphicsEnvironment} with a single virtual screen, which records all drawing on that screen
+     * into a compact binary command stream for remote clients. It can be installed with
+     * {@link #overrideGraphicsEnvironment(GraphicsEnvironment)}. Fonts and drawing into buffered images are
+     * delegated to another environment.
+     * <p>
+     * Stream is split into frames, each frame starts with a format version byte, currently 1,
+     * followed by definitions of new objects and then by commands:
+     * <ul>
+     *     <li>integers are encoded as zigzag varints, floating-point numbers as 8-byte big-endian doubles,
+     *     colors and pixels as 4-byte big-endian ARGB, strings as varint length followed by UTF-8 bytes</li>
+     *     <li>object definition is byte 127 followed by varint id, type byte and payload. Objects like fonts,
+     *     shapes, images and paints are defined once per distinct contents and then referenced by id, where 0
+     *     means null. An image whose pixels changed is defined again under a new id. Buffered images are
+     *     encoded once and considered changed only when graphics are created for them with
+     *     {@link #createGraphics(BufferedImage)}, which {@link BufferedImage#createGraphics()} does when this
+     *     environment is installed, or when reported with {@link #imageChanged(Image)}. Byte 122 followed by
+     *     varint id removes the definition, the id may be reused afterwards</li>
+     *     <li>command is an opcode byte followed by arguments of the corresponding {@link Graphics2D} method</li>
+     * </ul>
+     * Each {@link Graphics2D} instance is a separate context, which is created by {@code CREATE parent, id}
+     * (parent -1 meaning the screen) and made current by {@code SELECT id}, all other commands apply to the
+     * current context. Id of a disposed context may be reused by the next created one. Opcodes and their arguments (I - int, D - double, O - object id, P - polygon,
+     * which is varint count followed by x and then y coordinates):
+     * <pre>
+     *  0 SELECT I           1 CREATE II          2 DISPOSE            3 CONSTRAIN DDDD
+     *  4 SET_COLOR O        5 SET_PAINT O        6 SET_FONT O         7 SET_STROKE O
+     *  8 SET_COMPOSITE O    9 SET_PAINT_MODE    10 SET_XOR_MODE O    11 SET_BACKGROUND O
+     * 12 SET_HINT OO       13 SET_HINTS O       14 ADD_HINTS O       15 TRANSLATE II
+     * 16 TRANSLATE DD      17 ROTATE D          18 ROTATE DDD        19 SCALE DD
+     * 20 SHEAR DD          21 TRANSFORM O       22 SET_TRANSFORM O   23 CLIP_RECT IIII
+     * 24 SET_CLIP IIII     25 SET_CLIP O        26 CLIP O            27 COPY_AREA IIIIII
+     * 28 DRAW_LINE IIII    29 FILL_RECT IIII    30 DRAW_RECT IIII    31 CLEAR_RECT IIII
+     * 32 DRAW_ROUND_RECT IIIIII                 33 FILL_ROUND_RECT IIIIII
+     * 34 DRAW_OVAL IIII    35 FILL_OVAL IIII    36 DRAW_ARC IIIIII   37 FILL_ARC IIIIII
+     * 38 DRAW_POLYLINE P   39 DRAW_POLYGON P    40 FILL_POLYGON P    41 DRAW_STRING OII
+     * 42 DRAW_STRING ODD   43 DRAW_STRING OII   44 DRAW_STRING ODD   45 DRAW_GLYPHS ODD
+     * 46 DRAW_IMAGE OOII (image, background)    47 DRAW_IMAGE OOIIII
+     * 48 DRAW_IMAGE OOIIIIIIII                  49 DRAW_IMAGE OO (image, transform)
+     * 50 DRAW_IMAGE OOII (image, op)            51 DRAW_RENDERED_IMAGE OO
+     * 52 DRAW_RENDERABLE_IMAGE OO               53 DRAW O            54 FILL O
+     * </pre>
+     * Context ids are absolute, except inside fragments. Fragment is a cached sub-tree of commands, starting
+     * with creation of a context and ending with its disposal, which is sent once and then referenced
+     * every time the same commands are recorded again, for example when an unchanged component is repainted:
+     * <pre>
+     * 126 FRAGMENT slot CC ... 123 END   define fragment in given cache slot and execute it
+     * 125 REPLAY slot CC                 execute cached fragment
+     * 124 EVICT slot                     remove fragment from the cache, slot may be reused afterwards
+     * </pre>
+     * Slot is a varint, the two context arguments are the parent and the root context of the fragment,
+     * like in {@code CREATE}. Contexts created inside a fragment are local to it and are all disposed by its end.
+     * They are numbered in order of their creation, and commands inside a fragment refer to them relative
+     * to its root, so the root itself is 0, and {@code CREATE} of the root is implied. Arguments of a nested
+     * fragment refer to contexts of the enclosing one the same way, while a fragment outside of any other one
+     * has the absolute id of its parent and root, which client doesn't need to keep after the fragment.
+     * Fragments may contain nested fragments, replays
+     * and evictions, which are processed as they appear. Client must store each fragment with its nested
+     * fragments inlined, so that evicting one doesn't affect others. Total size of cached fragments,
+     * measured in bytes of their plain encoding without nested fragments, never exceeds the cache size
+     * given to the constructor by more than the size of fragments being defined.
+     * <p>
+     * Object definitions are evicted in least recently used order when their total size, measured in bytes
+     * of type and payload, exceeds the cache size, but not less than 1 MB. Objects used by the current frame
+     * are never evicted. Fragments referencing an evicted object are evicted before it.
+     * <p>
+     * Object types: 0 - other object (class name and string representation, used for rendering hints),
+     * 1 - color, 2 - string, 3 - font (name, style, size), 4 - basic stroke, 5 - alpha composite (rule, alpha),
+     * 6 - transform (6 matrix elements), 7 - shape (winding rule, segments terminated by 255),
+     * 8 - image (width, height, pixels), 9 - gradient, 10 - linear gradient, 11 - radial gradient,
+     * 12 - texture, 13 - rendering hints, 14 - glyph vector (font, count, codes, positions).
+     * <p>
+     * Recording and reading frames must happen on the same thread, usually the event dispatch thread.
+     */
+    final class RecordingGraphicsEnvironment extends GraphicsEnvironment {
+        private final GraphicsEnvironment delegate;
+        private final GraphicsDevice device;
+        private final GraphicsUtils.DisplayList list = new GraphicsUtils.DisplayList();
+        private final DrawCommandEncoder encoder;
+
+        /**
+         * Creates graphics environment with 16 MB fragment cache.
+         * @param delegate environment to take fonts from and to draw into buffered images with
+         * @param width width of the virtual screen
+         * @param height height of the virtual screen
+         */
+        public RecordingGraphicsEnvironment(GraphicsEnvironment delegate, int width, int height) {
+            this(delegate, width, height, 16 << 20);
+        }
+
+        /**
+         * Creates graphics environment.
+         * @param delegate environment to take fonts from and to draw into buffered images with
+         * @param width width of the virtual screen
+         * @param height height of the virtual screen
+         * @param cacheSize maximum total size of fragments cached by the client in bytes, 0 disables fragments
+         */
+        public RecordingGraphicsEnvironment(GraphicsEnvironment delegate, int width, int height, int cacheSize) {
+            this.delegate = delegate;
+            device = new ProjectorUtils_ScreenDevice(width, height);
+            encoder = new DrawCommandEncoder(list, cacheSize);
+        }
+
+        /**
+         * Creates graphics for drawing on the virtual screen, which is recorded into the command stream.
+         * @return recording graphics
+         */
+        public Graphics2D createScreenGraphics() {
+            Graphics2D prototype = delegate.createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+            try {
+                return new DisplayListGraphics(list, prototype, device.getDefaultConfiguration());
+            } finally {
+                prototype.dispose();
+            }
+        }
+
+        /**
+         * Encodes commands recorded since the previous frame.
+         * @return read-only view of the frame, which is valid until the next call
+         */
+        public ByteBuffer nextFrame() {
+            return encoder.encode();
+        }
+
+        // Virtual screen is available even in headless JVM, where drawing is still recorded.
+        @Override
+        public GraphicsDevice[] getScreenDevices() {
+            return new GraphicsDevice[] {device};
+        }
+
+        @Override
+        public GraphicsDevice getDefaultScreenDevice() {
+            return device;
+        }
+
+        /**
+         * Reports that pixels of the image were changed other than by drawing with graphics created by
+         * {@link #createGraphics(BufferedImage)}, for example by {@link BufferedImage#setRGB(int, int, int)},
+         * so that it is defined again when drawn next time. Can be called from any thread.
+         * @param image changed image
+         */
+        public void imageChanged(Image image) {
+            encoder.imageChanged(image);
+        }
+
+        @Override
+        public Graphics2D createGraphics(BufferedImage img) {
+            encoder.imageChanged(img);
+            return delegate.createGraphics(img);
+        }
+
+        @Override
+        public Font[] getAllFonts() {
+            return delegate.getAllFonts();
+        }
+
+        @Override
+        public String[] getAvailableFontFamilyNames() {
+            return delegate.getAvailableFontFamilyNames();
+        }
+
+        @Override
+        public String[] getAvailableFontFamilyNames(Locale l) {
+            return delegate.getAvailableFontFamilyNames(l);
+        }
+    }
+}
+
+final class ProjectorUtils_ScreenDevice extends GraphicsDevice {
+    private final GraphicsConfiguration configuration;
+
+    ProjectorUtils_ScreenDevice(int width, int height) {
+        configuration = new ProjectorUtils_ScreenConfiguration(this, width, height);
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_RASTER_SCREEN;
+    }
+
+    @Override
+    public String getIDstring() {
+        return "Recording screen";
+    }
+
+    @Override
+    public GraphicsConfiguration[] getConfigurations() {
+        return new GraphicsConfiguration[] {configuration};
+    }
+
+    @Override
+    public GraphicsConfiguration getDefaultConfiguration() {
+        return configuration;
+    }
+}
+
+final class ProjectorUtils_ScreenConfiguration extends GraphicsConfiguration {
+    private final GraphicsDevice device;
+    private final int width, height;
+
+    ProjectorUtils_ScreenConfiguration(GraphicsDevice device, int width, int height) {
+        this.device = device;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public GraphicsDevice getDevice() {
+        return device;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return ColorModel.getRGBdefault();
+    }
+
+    @Override
+    public ColorModel getColorModel(int transparency) {
+        return transparency == Transparency.OPAQUE ? new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF) : getColorModel();
+    }
+
+    @Override
+    public AffineTransform getDefaultTransform() {
+        return new AffineTransform();
+    }
+
+    @Override
+    public AffineTransform getNormalizingTransform() {
+        return new AffineTransform();
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        return new Rectangle(0, 0, width, height);
+    }
 }
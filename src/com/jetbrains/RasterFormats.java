@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetbrains;
+
+import static com.jetbrains.NativeRasterLoader.*;
+
+/**
+ * Conversion of {@link NativeRasterLoader} raster formats into {@link NativeRasterLoader#FORMAT_INT_ARGB_PRE}.
+ * Color components are processed in parallel inside a single integer (SWAR),
+ * so that each pixel costs a couple of multiplications at most.
+ */
+final class RasterFormats {
+
+    private RasterFormats() {}
+
+    /**
+     * Checks that the format is known.
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    static void validate(int format) {
+        bytesPerPixel(format);
+    }
+
+    static int bytesPerPixel(int format) {
+        switch (format) {
+            case FORMAT_INT_ARGB_PRE:
+            case FORMAT_INT_ARGB:
+            case FORMAT_INT_ABGR_PRE:
+            case FORMAT_INT_ABGR:
+                return 4;
+            case FORMAT_USHORT_565_RGB:
+                return 2;
+            default:
+                throw new IllegalArgumentException("Unknown raster format: " + format);
+        }
+    }
+
+    /**
+     * Converts integer pixels in place.
+     */
+    static void convert(int format, int[] pixels, int offset, int length) {
+        int end = offset + length;
+        switch (format) {
+            case FORMAT_INT_ARGB_PRE:
+                break;
+            case FORMAT_INT_ARGB:
+                for (int i = offset; i < end; i++) pixels[i] = premultiply(pixels[i]);
+                break;
+            case FORMAT_INT_ABGR_PRE:
+                for (int i = offset; i < end; i++) pixels[i] = swapRB(pixels[i]);
+                break;
+            case FORMAT_INT_ABGR:
+                for (int i = offset; i < end; i++) pixels[i] = premultiply(swapRB(pixels[i]));
+                break;
+            default:
+                throw new IllegalArgumentException("Not an integer raster format: " + format);
+        }
+    }
+
+    /**
+     * Converts {@link NativeRasterLoader#FORMAT_USHORT_565_RGB} pixels.
+     */
+    static void convert(short[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int p = src[srcOffset + i];
+            // Spread 5-6-5 components into their bytes, then replicate high bits into the low ones.
+            int rb = ((p & 0xF800) << 8) | ((p & 0x001F) << 3);
+            int g = (p & 0x07E0) << 5;
+            dst[dstOffset + i] = 0xFF000000 | rb | ((rb >>> 5) & 0x070007) | g | ((g >>> 6) & 0x0300);
+        }
+    }
+
+    static int swapRB(int p) {
+        return (p & 0xFF00FF00) | ((p >>> 16) & 0xFF) | ((p & 0xFF) << 16);
+    }
+
+    static int premultiply(int p) {
+        int a = p >>> 24;
+        if (a == 0xFF) return p;
+        if (a == 0) return 0;
+        // Multiply red and blue at once, then divide each product by 255 with rounding.
+        int rb = (p & 0xFF00FF) * a + 0x800080;
+        rb = ((rb + ((rb >>> 8) & 0xFF00FF)) >>> 8) & 0xFF00FF;
+        int g = (p & 0xFF00) * a + 0x8000;
+        g = ((g + ((g >>> 8) & 0xFF00)) >>> 8) & 0xFF00;
+        return (a << 24) | rb | g;
+    }
+}
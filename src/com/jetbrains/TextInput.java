@@ -16,6 +16,18 @@
 
 package com.jetbrains;
 
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This is a JBR API for text-input related functionality for applications that implement custom text components.
  * <p>
@@ -46,6 +58,9 @@ package com.jetbrains;
  * This assumes that {@code CustomTextComponent} has a method called {@code select}, that selects a text range,
  * similar to the {@link java.awt.TextComponent#select(int, int)} and {@link javax.swing.text.JTextComponent#select(int, int)}.
  * See {@link TextInput.SelectTextRangeEvent} for more information.
+ * <p>
+ * Applications with many text components can use {@link TextInput.EventRouter} as the global listener
+ * to register listeners per component instead.
  */
 @Service
 @Provided
@@ -110,4 +125,183 @@ public interface TextInput {
      * @param listener listener
      */
     void setGlobalEventListener(EventListener listener);
+
+    /**
+     * Global event listener delivering events to listeners registered per component.
+     * Components are held weakly and compared by identity, so registration doesn't prevent
+     * them from being garbage collected and doesn't depend on their {@code equals}.
+     * Events for components without a listener are delivered to the default listener, if any.
+     * <p>
+     * With coalescing enabled, only the last {@link SelectTextRangeEvent} for each component is delivered,
+     * either at the end of the current EDT cycle, or right before the next key or input method event
+     * is dispatched, so that the range is always selected before text is inserted in its place.
+     * <pre>
+     * {@code
+     * var router = new TextInput.EventRouter(true);
+     * router.install(JBR.getTextInput());
+     * router.addListener(editor, event -> editor.select(event.getBegin(), event.getBegin() + event.getLength()));
+     * }
+     * </pre>
+     */
+    final class EventRouter implements EventListener {
+        private final Object lock = new Object();
+        private final boolean coalesce;
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        private final Map<ComponentKey, EventListener> listeners = new HashMap<>();
+        private final Map<Object, SelectTextRangeEvent> pending = new IdentityHashMap<>();
+        private final AWTEventListener flusher = e -> flush();
+        private volatile EventListener defaultListener;
+        private boolean flushScheduled;
+        private TextInput installed;
+
+        /**
+         * Creates router.
+         *
+         * @param coalesce whether to coalesce bursts of events for the same component
+         */
+        public EventRouter(boolean coalesce) {
+            this.coalesce = coalesce;
+        }
+
+        /**
+         * Sets this router as the global event listener, replacing the previous one.
+         *
+         * @param textInput text input service
+         */
+        public void install(TextInput textInput) {
+            synchronized (lock) {
+                if (installed != null) return;
+                installed = textInput;
+            }
+            if (coalesce) {
+                Toolkit.getDefaultToolkit().addAWTEventListener(flusher,
+                        AWTEvent.KEY_EVENT_MASK | AWTEvent.INPUT_METHOD_EVENT_MASK);
+            }
+            textInput.setGlobalEventListener(this);
+        }
+
+        /**
+         * Removes the global event listener set by {@link #install(TextInput)}.
+         * Coalesced events received before this call are still delivered.
+         */
+        public void uninstall() {
+            TextInput textInput;
+            synchronized (lock) {
+                textInput = installed;
+                if (textInput == null) return;
+                installed = null;
+            }
+            textInput.setGlobalEventListener(null);
+            if (coalesce) Toolkit.getDefaultToolkit().removeAWTEventListener(flusher);
+        }
+
+        /**
+         * Registers listener for events targeting the component, replacing the previous one.
+         *
+         * @param component target component
+         * @param listener listener
+         */
+        public void addListener(Object component, EventListener listener) {
+            if (component == null || listener == null) throw new NullPointerException();
+            synchronized (lock) {
+                expunge();
+                listeners.put(new ComponentKey(component, queue), listener);
+            }
+        }
+
+        /**
+         * Removes listener for events targeting the component.
+         *
+         * @param component target component
+         */
+        public void removeListener(Object component) {
+            synchronized (lock) {
+                expunge();
+                listeners.remove(new ComponentKey(component, null));
+            }
+        }
+
+        /**
+         * Sets listener for events targeting components without their own listener.
+         * Passing null will remove the listener.
+         *
+         * @param listener listener
+         */
+        public void setDefaultListener(EventListener listener) {
+            defaultListener = listener;
+        }
+
+        private void expunge() {
+            Object key;
+            while ((key = queue.poll()) != null) listeners.remove(key);
+        }
+
+        private EventListener getListener(Object component) {
+            if (component != null) {
+                synchronized (lock) {
+                    expunge();
+                    EventListener listener = listeners.get(new ComponentKey(component, null));
+                    if (listener != null) return listener;
+                }
+            }
+            return defaultListener;
+        }
+
+        /**
+         * Delivers the event to the listener of its target component, or coalesces it.
+         * Must be called on the EDT.
+         *
+         * @param event the {@link SelectTextRangeEvent} object
+         */
+        @Override
+        public void handleSelectTextRangeEvent(SelectTextRangeEvent event) {
+            if (!coalesce) {
+                deliver(event);
+                return;
+            }
+            pending.put(event.getSource(), event);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                EventQueue.invokeLater(this::flush);
+            }
+        }
+
+        /**
+         * Delivers coalesced events immediately. Must be called on the EDT.
+         */
+        public void flush() {
+            flushScheduled = false;
+            if (pending.isEmpty()) return;
+            List<SelectTextRangeEvent> events = new ArrayList<>(pending.values());
+            pending.clear();
+            for (SelectTextRangeEvent event : events) deliver(event);
+        }
+
+        private void deliver(SelectTextRangeEvent event) {
+            EventListener listener = getListener(event.getSource());
+            if (listener != null) listener.handleSelectTextRangeEvent(event);
+        }
+
+        private static final class ComponentKey extends WeakReference<Object> {
+            private final int hash;
+
+            private ComponentKey(Object component, ReferenceQueue<Object> queue) {
+                super(component, queue);
+                hash = System.identityHashCode(component);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (this == obj) return true;
+                if (!(obj instanceof ComponentKey)) return false;
+                Object component = get();
+                return component != null && component == ((ComponentKey) obj).get();
+            }
+        }
+    }
 }
@@ -30,4 +30,5 @@ module jetbrains.runtime.api {
     exports com.jetbrains;
 
     requires static transitive java.desktop;
+    requires static java.management;
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * @test
+ * @summary Verifies GraphicsUtils utilities
+ * @run main GraphicsUtilsTest
+ */
+
+import com.jetbrains.GraphicsUtils;
+import com.jetbrains.ProjectorUtils;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class GraphicsUtilsTest {
+
+    private static final int SIZE = 64;
+
+    public static void main(String[] args) {
+        testDisplayListReplay();
+        testDisplayListConstrain();
+        testDisplayListXORMode();
+        testDisplayListContextReuse();
+        testConstraintStack();
+        testConstrainAllocation();
+        testDirtyRegion();
+    }
+
+    private static void paint(Graphics2D g) {
+        g.setColor(Color.RED);
+        g.fillRect(2, 2, 20, 10);
+        g.translate(5, 5);
+        Graphics2D child = (Graphics2D) g.create();
+        child.clipRect(0, 0, 20, 20);
+        child.setPaint(new GradientPaint(0, 0, Color.BLUE, 20, 20, Color.GREEN));
+        child.fill(new Ellipse2D.Double(5, 5, 30, 30));
+        child.dispose();
+        g.setStroke(new BasicStroke(3));
+        g.drawLine(0, 40, 50, 40);
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+        g.fillPolygon(new int[] {30, 50, 40}, new int[] {0, 0, 20}, 3);
+        g.setClip(null);
+        g.setColor(Color.MAGENTA);
+        g.drawRect(40, 30, 10, 10);
+    }
+
+    private static BufferedImage render(Consumer<Graphics2D> painter, Consumer<Graphics2D> setup) {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        setup.accept(g);
+        painter.accept(g);
+        g.dispose();
+        return image;
+    }
+
+    private static void compare(BufferedImage expected, BufferedImage actual, String name) {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    throw new RuntimeException(name + ": unexpected pixel at (" + x + ", " + y + "): " +
+                            Integer.toHexString(actual.getRGB(x, y)) + ", expected: " + Integer.toHexString(expected.getRGB(x, y)));
+                }
+            }
+        }
+    }
+
+    private static void testDisplayListReplay() {
+        GraphicsUtils.DisplayList list = new GraphicsUtils.DisplayList();
+        if (!list.isEmpty()) throw new RuntimeException("New display list is not empty");
+        Graphics2D recorder = list.createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics());
+        if (!(recorder instanceof GraphicsUtils.ConstrainableGraphics2D) ||
+            ((GraphicsUtils.ConstrainableGraphics2D) recorder).getDestination() != list) {
+            throw new RuntimeException("Recording graphics is not constrainable into the display list");
+        }
+        paint(recorder);
+        if (!recorder.getTransform().equals(java.awt.geom.AffineTransform.getTranslateInstance(5, 5))) {
+            throw new RuntimeException("Recording graphics doesn't track its transform");
+        }
+        recorder.dispose();
+        // Replay is relative to transform of the target, and can be repeated.
+        Consumer<Graphics2D> setup = g -> g.translate(3, 4);
+        BufferedImage expected = render(GraphicsUtilsTest::paint, setup);
+        compare(expected, render(list::replay, setup), "replay");
+        compare(expected, render(list::replay, setup), "second replay");
+        // Clip of the target can't be extended, even with setClip(null).
+        BufferedImage clipped = render(list::replay, g -> g.clipRect(0, 0, 10, 10));
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                if ((x >= 10 || y >= 10) && clipped.getRGB(x, y) != 0) {
+                    throw new RuntimeException("Replay painted outside of the clip at (" + x + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    private static void testDisplayListConstrain() {
+        GraphicsUtils.DisplayList list = new GraphicsUtils.DisplayList();
+        Graphics2D recorder = list.createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics());
+        recorder.translate(100, 100);
+        ((GraphicsUtils.ConstrainableGraphics2D) recorder).constrain(10, 10, 20, 20);
+        if (!recorder.getTransform().isIdentity() || !new Rectangle(0, 0, 20, 20).equals(recorder.getClipBounds())) {
+            throw new RuntimeException("Unexpected state after constrain: " + recorder.getTransform() + ", " + recorder.getClipBounds());
+        }
+        recorder.setColor(Color.BLUE);
+        recorder.setClip(null);
+        recorder.fillRect(-5, -5, 50, 50);
+        recorder.dispose();
+        BufferedImage actual = render(list::replay, g -> g.translate(2, 2));
+        BufferedImage expected = render(g -> {
+            g.setColor(Color.BLUE);
+            g.fillRect(12, 12, 20, 20);
+        }, g -> {});
+        compare(expected, actual, "constrain");
+    }
+
+    private static void testDisplayListXORMode() {
+        GraphicsUtils.DisplayList list = new GraphicsUtils.DisplayList();
+        Graphics2D recorder = list.createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics());
+        Consumer<Graphics2D> painter = g -> {
+            g.setColor(Color.RED);
+            g.fillRect(0, 0, 20, 20);
+            g.setXORMode(Color.WHITE);
+            g.fillRect(10, 10, 20, 20);
+        };
+        painter.accept(recorder);
+        Graphics2D real = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        real.setXORMode(Color.WHITE);
+        if (recorder.getComposite().getClass() != real.getComposite().getClass()) {
+            throw new RuntimeException("Unexpected composite in XOR mode: " + recorder.getComposite());
+        }
+        recorder.setPaintMode();
+        if (recorder.getComposite() != AlphaComposite.SrcOver) throw new RuntimeException("Paint mode is not restored");
+        recorder.dispose();
+        compare(render(painter, g -> {}), render(list::replay, g -> {}), "XOR mode");
+    }
+
+    private static void testDisplayListContextReuse() {
+        GraphicsUtils.DisplayList list = new GraphicsUtils.DisplayList();
+        Graphics2D recorder = list.createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics());
+        // Each child reuses the id of the previous one, which was current when it was disposed.
+        Consumer<Graphics2D> painter = g -> {
+            for (int i = 0; i < 1000; i++) {
+                Graphics2D child = (Graphics2D) g.create();
+                child.translate(i % 60, i / 60 * 3);
+                child.setColor(new Color(i * 4099 | 0xFF000000));
+                child.fillRect(0, 0, 2, 2);
+                child.dispose();
+            }
+            g.setColor(Color.BLACK);
+            g.drawLine(0, 60, 60, 60);
+        };
+        painter.accept(recorder);
+        recorder.dispose();
+        compare(render(painter, g -> {}), render(list::replay, g -> {}), "context reuse");
+    }
+
+    private static void testConstrainAllocation() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ProjectorUtils.RecordingGraphicsEnvironment env = new ProjectorUtils.RecordingGraphicsEnvironment(
+                GraphicsEnvironment.getLocalGraphicsEnvironment(), 640, 480);
+        Graphics2D g = env.createScreenGraphics();
+        GraphicsUtils.ConstrainableGraphics2D constrainable = (GraphicsUtils.ConstrainableGraphics2D) g;
+        long allocated = 0;
+        // Frames are consumed, so that the recording buffers reach their size and are reused.
+        for (int frame = 0; frame < 4; frame++) {
+            long start = bean.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 1000; i++) constrainable.constrain(0, 0, 600 - (i & 1), 400);
+            allocated = bean.getCurrentThreadAllocatedBytes() - start;
+            if (!new Rectangle(0, 0, 599, 400).equals(g.getClipBounds())) {
+                throw new RuntimeException("Unexpected clip: " + g.getClipBounds());
+            }
+            env.nextFrame();
+        }
+        if (allocated > 1000) throw new RuntimeException("Integer constrain allocates: " + allocated + " bytes per 1000 calls");
+
+        // Clip is still available after integer constraints.
+        Graphics2D child = (Graphics2D) g.create();
+        ((GraphicsUtils.ConstrainableGraphics2D) child).constrain(5, 5, 10, 10);
+        child.translate(2, 2);
+        if (!new Rectangle(-2, -2, 10, 10).equals(child.getClipBounds())) {
+            throw new RuntimeException("Unexpected clip after constrain: " + child.getClipBounds());
+        }
+        child.setClip(null);
+        if (!new Rectangle(-2, -2, 10, 10).equals(child.getClipBounds())) {
+            throw new RuntimeException("Constraint is extended by setClip(null): " + child.getClipBounds());
+        }
+        child.dispose();
+        g.dispose();
+    }
+
+    private static void checkStack(GraphicsUtils.ConstraintStack stack, double originX, double originY, Rectangle clip) {
+        Rectangle actual = stack.getClipBounds(new Rectangle());
+        if (stack.getOriginX() != originX || stack.getOriginY() != originY || !actual.equals(clip)) {
+            throw new RuntimeException("Unexpected constraint: origin (" + stack.getOriginX() + ", " + stack.getOriginY() +
+                    "), clip " + actual + ", expected: origin (" + originX + ", " + originY + "), clip " + clip);
+        }
+    }
+
+    private static void testConstraintStack() {
+        GraphicsUtils.ConstraintStack stack = new GraphicsUtils.ConstraintStack();
+        if (stack.size() != 0 || stack.isClipEmpty() || !stack.intersects(-1000, -1000, 1, 1)) {
+            throw new RuntimeException("Unexpected empty stack state");
+        }
+        stack.push(10, 20, 100, 50);
+        checkStack(stack, 10, 20, new Rectangle(0, 0, 100, 50));
+        // Child sticks out of the parent at the bottom-right corner.
+        stack.push(90, 40, 30, 30);
+        checkStack(stack, 100, 60, new Rectangle(0, 0, 10, 10));
+        if (!stack.isIntegral() || !stack.intersects(5, 5, 1, 1) || stack.intersects(10, 0, 5, 5)) {
+            throw new RuntimeException("Unexpected intersection with integer constraint");
+        }
+        for (int i = 0; i < 100; i++) stack.push(1, 1, 100, 100); // Grow beyond the initial capacity.
+        if (!stack.isClipEmpty() || stack.size() != 102) throw new RuntimeException("Deep constraint is not empty");
+        for (int i = 0; i < 100; i++) stack.pop();
+        checkStack(stack, 100, 60, new Rectangle(0, 0, 10, 10));
+        stack.push(new Rectangle2D.Double(0.5, 0.5, 5, 5));
+        if (stack.isIntegral()) throw new RuntimeException("Fractional constraint is integral");
+        checkStack(stack, 100.5, 60.5, new Rectangle(0, 0, 5, 5));
+        stack.push(1, 1, 100, 100);
+        checkStack(stack, 101.5, 61.5, new Rectangle(0, 0, 4, 4));
+        stack.pop();
+        stack.pop();
+        stack.push(new Rectangle2D.Double(1, 1, 2, 2));
+        if (!stack.isIntegral()) throw new RuntimeException("Whole-number constraint is not integral");
+        stack.clear();
+        try {
+            stack.pop();
+            throw new RuntimeException("Popped empty stack");
+        } catch (IllegalStateException ignore) {}
+    }
+
+    private static void testDirtyRegion() {
+        GraphicsUtils.DirtyRegion region = new GraphicsUtils.DirtyRegion(100);
+        if (!region.isEmpty()) throw new RuntimeException("New dirty region is not empty");
+        // A burst of adjacent small repaints, e.g. from a highlighting pass.
+        for (int i = 0; i < 200; i++) region.add(10 + i % 20, 10 + i / 20, 1, 1);
+        region.add(50, 50, 0, 10);
+        // A distant repaint, which is cheaper to paint separately.
+        region.add(200, 200, 10, 10);
+        List<Rectangle> clips = new ArrayList<>();
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        int painted = region.paint(g, r -> {
+            clips.add(r.getClipBounds());
+            r.setColor(Color.RED);
+            r.fillRect(0, 0, 300, 300);
+        });
+        g.dispose();
+        if (painted != 2 || !region.isEmpty()) throw new RuntimeException("Unexpected number of painted regions: " + painted);
+        if (!clips.contains(new Rectangle(10, 10, 20, 10)) || !clips.contains(new Rectangle(200, 200, 10, 10))) {
+            throw new RuntimeException("Unexpected painted regions: " + clips);
+        }
+        if (image.getRGB(9, 9) != 0 || image.getRGB(10, 10) == 0 || image.getRGB(100, 100) != 0) {
+            throw new RuntimeException("Painted outside of the dirty region");
+        }
+        if (region.paint(g, r -> { throw new RuntimeException("Painted empty region"); }) != 0) {
+            throw new RuntimeException("Empty region painted");
+        }
+
+        // Constrainable graphics gets a permanent constraint, which painter can't escape with setClip.
+        GraphicsUtils.DisplayList list = new GraphicsUtils.DisplayList();
+        Graphics2D recorder = list.createGraphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics());
+        recorder.translate(5, 5);
+        region.add(0, 0, 10, 10);
+        region.paint(recorder, r -> {
+            r.setClip(null);
+            r.setColor(Color.RED);
+            r.fillRect(0, 0, 300, 300);
+        });
+        recorder.dispose();
+        image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+        list.replay(g);
+        g.dispose();
+        if (image.getRGB(4, 4) != 0 || image.getRGB(5, 5) == 0 || image.getRGB(14, 14) == 0 || image.getRGB(15, 15) != 0) {
+            throw new RuntimeException("Constrained painting escaped the dirty region");
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * @test
+ * @summary Verifies Jstack info utilities
+ * @run main JstackInfoTest
+ */
+
+import com.jetbrains.Jstack;
+
+import java.awt.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class JstackInfoTest {
+
+    public static void main(String[] args) throws Exception {
+        testInfoSuppliers();
+        testInfoWriters();
+        testStackSampler();
+        testStackSamplerEviction();
+        testFreezeWatchdog();
+        testContentionSampler();
+        testContentionSamplerBounds();
+    }
+
+    private static void check(String actual, String expected) {
+        if (!actual.equals(expected)) throw new RuntimeException("Unexpected info: \"" + actual + "\", expected: \"" + expected + "\"");
+    }
+
+    private static void testInfoSuppliers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Jstack.InfoSuppliers suppliers = new Jstack.InfoSuppliers(200, 300, TimeUnit.MILLISECONDS);
+        check(suppliers.get(), "");
+        suppliers.add("first", () -> "first info");
+        suppliers.add("nothing", () -> null);
+        suppliers.add("failing", () -> { throw new IllegalStateException("broken"); });
+        suppliers.add("slow", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {}
+            return "slow info";
+        });
+        suppliers.add("second", () -> "second info");
+
+        long start = System.nanoTime();
+        String info = suppliers.get();
+        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (time > 1000) throw new RuntimeException("Suppliers took too long: " + time + " ms");
+        String[] lines = info.split("\n");
+        if (lines.length != 4 || !lines[0].equals("first info") || !lines[3].equals("second info") ||
+                !lines[1].equals("failing: failed with java.lang.IllegalStateException: broken") ||
+                !lines[2].startsWith("slow: timed out after ")) {
+            throw new RuntimeException("Unexpected info: " + info);
+        }
+
+        // Stuck supplier is not invoked again.
+        check(suppliers.get(), "first info\nfailing: failed with java.lang.IllegalStateException: broken\n" +
+                "slow: still running since previous dump\nsecond info");
+
+        release.countDown();
+        suppliers.remove("failing");
+        Thread.sleep(100);
+        check(suppliers.get(), "first info\nslow info\nsecond info");
+    }
+
+    private static void testInfoWriters() {
+        Jstack.InfoSuppliers text = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS, Jstack.InfoSuppliers.FORMAT_TEXT, 40);
+        text.addWriter("records", w -> {
+            w.append("Header\n");
+            w.field("id", 1).field("name", "a").endRecord();
+            w.field("id", 2).field("name", "b");
+        });
+        text.addWriter("large", w -> {
+            for (int i = 0; i < 100; i++) w.append("line ").append(Integer.toString(i)).append('\n');
+        });
+        check(text.get(), "Header\nid=1 name=a\nid=2 name=b\n" +
+                "line 0\nline 1\nline 2\nline 3\nline 4\nline \n... truncated");
+
+        Jstack.InfoSuppliers json = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS, Jstack.InfoSuppliers.FORMAT_JSON_LINES, 100);
+        json.add("plain", () -> "first \"line\"\nsecond\tline");
+        json.addWriter("records", w -> w.field("id", 1).field("ok", true).field("value", null).field("nan", Double.NaN));
+        json.addWriter("large", w -> {
+            for (int i = 0; i < 100; i++) w.field("i", i).endRecord();
+        });
+        json.add("failing", () -> { throw new IllegalStateException(); });
+        check(json.get(), "{\"section\":\"plain\",\"text\":\"first \\\"line\\\"\"}\n" +
+                "{\"section\":\"plain\",\"text\":\"second\\tline\"}\n" +
+                "{\"section\":\"records\",\"id\":1,\"ok\":true,\"value\":null,\"nan\":\"NaN\"}\n" +
+                "{\"section\":\"large\",\"i\":0}\n{\"section\":\"large\",\"i\":1}\n{\"section\":\"large\",\"i\":2}\n" +
+                "{\"section\":\"large\",\"truncated\":true}\n" +
+                "{\"section\":\"failing\",\"error\":\"failed with java.lang.IllegalStateException\"}");
+    }
+
+    private static volatile boolean spinning = true;
+
+    private static void spin() {
+        while (spinning) Thread.onSpinWait();
+    }
+
+    private static void testStackSampler() throws Exception {
+        Thread worker = new Thread(JstackInfoTest::spin, "Sampled worker");
+        worker.start();
+        Jstack.StackSampler sampler = new Jstack.StackSampler(2, TimeUnit.MILLISECONDS, 50, "Sampled");
+        try {
+            sampler.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sampler.getTotalSamples() < 100 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            if (sampler.getTotalSamples() < 100) throw new RuntimeException("Too few samples: " + sampler.getTotalSamples());
+        } finally {
+            sampler.stop();
+            spinning = false;
+            worker.join();
+        }
+
+        Jstack.InfoSuppliers text = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS);
+        text.addWriter("samples", sampler.summary(1, TimeUnit.MINUTES));
+        int total = 0;
+        for (String line : text.get().split("\n")) {
+            if (!line.startsWith("Sampled worker;java.lang.Thread.run;")) throw new RuntimeException("Unexpected stack: " + line);
+            total += Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        // Only the last samples are kept.
+        if (total != 50) throw new RuntimeException("Unexpected number of samples: " + total);
+        if (!text.get().contains(";JstackInfoTest.spin")) throw new RuntimeException("Spinning method not sampled");
+
+        Jstack.InfoSuppliers json = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS, Jstack.InfoSuppliers.FORMAT_JSON_LINES, 1 << 20);
+        json.addWriter("samples", sampler.summary(1, TimeUnit.MINUTES));
+        if (!json.get().startsWith("{\"section\":\"samples\",\"stack\":\"Sampled worker;")) {
+            throw new RuntimeException("Unexpected summary: " + json.get());
+        }
+        Thread.sleep(20);
+        text.addWriter("samples", sampler.summary(10, TimeUnit.MILLISECONDS));
+        check(text.get(), "");
+    }
+
+    private static void testStackSamplerEviction() throws Exception {
+        Jstack.StackSampler sampler = new Jstack.StackSampler(1, TimeUnit.SECONDS, 50);
+        Method record = Jstack.StackSampler.class.getDeclaredMethod("record", long.class, String.class, StackTraceElement[].class);
+        record.setAccessible(true);
+        // Far more distinct stacks and frames than intern tables hold, recent ones must still be distinct.
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            StackTraceElement[] trace = {new StackTraceElement("Generated", "method" + i, null, 1)};
+            record.invoke(sampler, System.nanoTime(), "Sampled", trace);
+        }
+        Jstack.InfoSuppliers text = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS);
+        text.addWriter("samples", sampler.summary(1, TimeUnit.MINUTES));
+        String[] lines = text.get().split("\n");
+        if (lines.length != 50) throw new RuntimeException("Unexpected number of stacks: " + lines.length);
+        for (String line : lines) {
+            int method = Integer.parseInt(line.substring(line.indexOf(".method") + 7, line.lastIndexOf(' ')));
+            if (!line.startsWith("Sampled;Generated.method") || !line.endsWith(" 1") || method < count - 50) {
+                throw new RuntimeException("Unexpected stack: " + line);
+            }
+        }
+        Field frames = Jstack.StackSampler.class.getDeclaredField("frames");
+        frames.setAccessible(true);
+        int size = ((List<?>) frames.get(sampler)).size();
+        if (size > 65536) throw new RuntimeException("Intern tables are not bounded: " + size);
+    }
+
+    private static final Object FREEZE_LOCK = new Object();
+
+    private static void freeze() {
+        synchronized (FREEZE_LOCK) {
+            FREEZE_LOCK.notifyAll();
+        }
+    }
+
+    private static void testFreezeWatchdog() throws Exception {
+        Jstack.FreezeWatchdog watchdog = new Jstack.FreezeWatchdog(50, TimeUnit.MILLISECONDS, 2);
+        watchdog.install();
+        watchdog.start();
+        try {
+            // Fast events are not freezes.
+            for (int i = 0; i < 10; i++) EventQueue.invokeAndWait(() -> {});
+            if (watchdog.getTotalFreezes() != 0) throw new RuntimeException("Unexpected freeze");
+
+            CountDownLatch locked = new CountDownLatch(1);
+            Thread holder = new Thread(() -> {
+                synchronized (FREEZE_LOCK) {
+                    locked.countDown();
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException ignore) {}
+                }
+            }, "Lock holder");
+            holder.start();
+            locked.await();
+            EventQueue.invokeAndWait(JstackInfoTest::freeze);
+            holder.join();
+            Thread.sleep(100);
+        } finally {
+            watchdog.stop();
+        }
+
+        List<Jstack.Freeze> freezes = watchdog.getFreezes();
+        if (freezes.size() != 1) throw new RuntimeException("Unexpected freezes: " + freezes.size());
+        Jstack.Freeze freeze = freezes.get(0);
+        if (!freeze.isFinished() || freeze.getDurationMillis() < 300 || freeze.getCaptures().size() < 3) {
+            throw new RuntimeException("Unexpected freeze: " + freeze.getDurationMillis() + " ms, " + freeze.getCaptures().size() + " captures");
+        }
+        if (!freeze.getEvent().equals("java.awt.event.InvocationEvent")) throw new RuntimeException("Unexpected event: " + freeze.getEvent());
+        long previous = -1;
+        for (Jstack.Freeze.Capture capture : freeze.getCaptures()) {
+            if (capture.getTimeMillis() <= previous) throw new RuntimeException("Captures are not ordered");
+            previous = capture.getTimeMillis();
+            if (!Arrays.toString(capture.getStackTrace()).contains("JstackInfoTest.freeze")) {
+                throw new RuntimeException("Frozen method not captured");
+            }
+            if (!"Lock holder".equals(capture.getLockOwnerName()) ||
+                    !Arrays.toString(capture.getLockOwnerStackTrace()).contains("java.lang.Thread.sleep")) {
+                throw new RuntimeException("Lock owner not captured: " + capture.getLockOwnerName());
+            }
+        }
+        // Intervals between captures grow.
+        List<Jstack.Freeze.Capture> captures = freeze.getCaptures();
+        if (captures.get(2).getTimeMillis() - captures.get(1).getTimeMillis() <= captures.get(1).getTimeMillis() - captures.get(0).getTimeMillis()) {
+            throw new RuntimeException("Capture intervals don't grow");
+        }
+
+        Jstack.InfoSuppliers text = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS);
+        text.addWriter("freezes", watchdog.history());
+        String info = text.get();
+        if (!info.startsWith("EDT freeze of ") || !info.contains("owned by \"Lock holder\"") || !info.contains("JstackInfoTest.freeze(")) {
+            throw new RuntimeException("Unexpected history: " + info);
+        }
+    }
+
+    private static final Object CONTENDED_MONITOR = new Object();
+    private static final ReentrantLock CONTENDED_LOCK = new ReentrantLock();
+
+    private static void contendMonitor() {
+        synchronized (CONTENDED_MONITOR) {
+            CONTENDED_MONITOR.notifyAll();
+        }
+    }
+
+    private static void contendLock() {
+        CONTENDED_LOCK.lock();
+        CONTENDED_LOCK.unlock();
+    }
+
+    private static void testContentionSampler() throws Exception {
+        Jstack.ContentionSampler sampler = new Jstack.ContentionSampler(5, TimeUnit.MILLISECONDS, 10);
+        Jstack.InfoSuppliers text = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS);
+        text.addWriter("contention", sampler.report());
+        sampler.start();
+        try {
+            CountDownLatch locked = new CountDownLatch(1);
+            Thread holder = new Thread(() -> {
+                CONTENDED_LOCK.lock();
+                try {
+                    synchronized (CONTENDED_MONITOR) {
+                        locked.countDown();
+                        Thread.sleep(300);
+                    }
+                } catch (InterruptedException ignore) {
+                } finally {
+                    CONTENDED_LOCK.unlock();
+                }
+            }, "Contention holder");
+            holder.start();
+            locked.await();
+            Thread[] waiters = {
+                    new Thread(JstackInfoTest::contendMonitor, "Monitor waiter 1"),
+                    new Thread(JstackInfoTest::contendMonitor, "Monitor waiter 2"),
+                    new Thread(JstackInfoTest::contendLock, "Lock waiter")
+            };
+            for (Thread waiter : waiters) waiter.start();
+            holder.join();
+            for (Thread waiter : waiters) waiter.join();
+
+            String report = text.get();
+            String[] lines = report.split("\n");
+            if (!lines[0].startsWith("Lock contention in last ") || !report.contains("(monitor): ~") ||
+                    !report.contains("ReentrantLock$NonfairSync") || !report.contains("(synchronizer): ~") ||
+                    !report.contains("max 2 waiters") || !report.contains("owners: \"Contention holder\" stack ") ||
+                    !report.contains("JstackInfoTest.contendMonitor(") || !report.contains("JstackInfoTest.contendLock(")) {
+                throw new RuntimeException("Unexpected report: " + report);
+            }
+            // Report starts a new period.
+            if (text.get().split("\n").length != 1) throw new RuntimeException("Contention is not reset");
+        } finally {
+            sampler.stop();
+        }
+    }
+
+    private static void testContentionSamplerBounds() throws Exception {
+        Jstack.ContentionSampler sampler = new Jstack.ContentionSampler(1, TimeUnit.SECONDS, 2);
+        Method record = Jstack.ContentionSampler.class.getDeclaredMethod("record", String.class, String.class, int.class,
+                StackTraceElement[].class, String.class, StackTraceElement[].class);
+        record.setAccessible(true);
+        // Frequently contended lock must survive a flood of distinct locks and stacks.
+        StackTraceElement[] hot = { new StackTraceElement("Hot", "waiter", "Hot.java", 1) };
+        for (int i = 0; i < 100; i++) record.invoke(sampler, "hot", "monitor", 1, hot, "owner", hot);
+        for (int i = 0; i < 100000; i++) {
+            StackTraceElement[] stack = { new StackTraceElement("Cold", "waiter" + i, "Cold.java", i) };
+            record.invoke(sampler, "cold@" + i, "monitor", 1, stack, "owner " + i, stack);
+        }
+        Field contentions = Jstack.ContentionSampler.class.getDeclaredField("contentions");
+        contentions.setAccessible(true);
+        int locks = ((Map<?, ?>) contentions.get(sampler)).size();
+        if (locks > 8) throw new RuntimeException("Contended locks are not bounded: " + locks);
+        Field stacks = Jstack.ContentionSampler.class.getDeclaredField("stacks");
+        stacks.setAccessible(true);
+        int size = ((List<?>) stacks.get(sampler)).size();
+        if (size > 64) throw new RuntimeException("Stacks are not bounded: " + size);
+
+        Jstack.InfoSuppliers text = new Jstack.InfoSuppliers(1, 1, TimeUnit.SECONDS);
+        text.addWriter("contention", sampler.report());
+        String report = text.get();
+        if (!report.split("\n")[1].startsWith("hot (monitor): ~100000 ms waited") || !report.contains("\tat Hot.waiter(")) {
+            throw new RuntimeException("Unexpected report: " + report);
+        }
+    }
+}
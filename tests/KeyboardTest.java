@@ -0,0 +1,274 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * @test
+ * @summary Verifies Java-side Keyboard utilities
+ * @run main KeyboardTest
+ */
+
+import com.jetbrains.Keyboard;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class KeyboardTest {
+
+    /**
+     * Keyboard with layouts controlled by the test.
+     */
+    private static class TestKeyboard implements Keyboard {
+        String currentLayout = "us";
+        List<String> enabledLayouts = new ArrayList<>(Arrays.asList("us", "de"));
+        LayoutListener listener;
+        int queries, tableQueries;
+        long arrivalTime;
+
+        void switchLayout(String layout) {
+            currentLayout = layout;
+            if (listener != null) listener.keyboardLayoutChanged(currentLayout, enabledLayouts);
+        }
+
+        @Override public int getKeyEventUSKeyCode(KeyEvent event) { throw new UnsupportedOperationException(); }
+        @Override public int getKeyEventDeadKeyCode(KeyEvent event) { throw new UnsupportedOperationException(); }
+        @Override public int getKeyEventDeadKeyStroke(KeyEvent event) { throw new UnsupportedOperationException(); }
+        @Override public String getKeyEventCharacters(KeyEvent event) { throw new UnsupportedOperationException(); }
+        @Override public int getKeyEventCodePoint(KeyEvent event) { throw new UnsupportedOperationException(); }
+        @Override public int getKeyEventCharacters(KeyEvent event, char[] dst, int offset) { throw new UnsupportedOperationException(); }
+        @Override public int getKeyEventCharacters(KeyEvent event, StringBuilder dst) { throw new UnsupportedOperationException(); }
+        @Override public void setReportNationalKeyCodes(boolean value) {}
+        @Override public void setConvertDeadKeyCodesToNormal(boolean value) {}
+        @Override public void setKeyboardLayoutListener(LayoutListener listener) { this.listener = listener; }
+        @Override public int getKeyEventScanCode(KeyEvent event) { throw new UnsupportedOperationException(); }
+        @Override public long getKeyEventArrivalTime(KeyEvent event) { return arrivalTime; }
+
+        @Override
+        public int[] getKeyboardLayoutTable(int table) {
+            tableQueries++;
+            // Scan code 1 is 'Q' on "us", 'A' on "fr", scan code 2 is a dead circumflex with Shift on "fr".
+            boolean fr = "fr".equals(currentLayout);
+            switch (table) {
+                case LAYOUT_TABLE_US_KEY_CODES:
+                    return new int[] {KeyEvent.VK_UNDEFINED, KeyEvent.VK_Q, KeyEvent.VK_OPEN_BRACKET};
+                case LAYOUT_TABLE_DEAD_KEY_CODES:
+                    return new int[] {KeyEvent.VK_UNDEFINED, KeyEvent.VK_UNDEFINED,
+                            fr ? KeyEvent.VK_DEAD_CIRCUMFLEX : KeyEvent.VK_UNDEFINED};
+                case LAYOUT_TABLE_DEAD_KEY_STROKES:
+                    int[] strokes = new int[3 * Keyboard.LayoutTables.LEVELS];
+                    Arrays.fill(strokes, KeyEvent.VK_UNDEFINED);
+                    if (fr) strokes[2 * Keyboard.LayoutTables.LEVELS + 1] = KeyEvent.VK_DEAD_CIRCUMFLEX;
+                    return strokes;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        @Override
+        public String getCurrentKeyboardLayout() {
+            queries++;
+            return currentLayout;
+        }
+
+        @Override
+        public List<String> getEnabledKeyboardLayouts() {
+            queries++;
+            return new ArrayList<>(enabledLayouts);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        testLayoutCache();
+        testLayoutTables();
+        testLatencyHistogram();
+        testLatencyMonitor();
+        testLatencyEvents();
+    }
+
+    private static void check(Object actual, Object expected) {
+        if (!expected.equals(actual)) throw new RuntimeException("Unexpected value: " + actual + ", expected: " + expected);
+    }
+
+    private static void testLayoutCache() {
+        TestKeyboard keyboard = new TestKeyboard();
+        Keyboard.LayoutCache cache = new Keyboard.LayoutCache(keyboard);
+        if (keyboard.listener != cache) throw new RuntimeException("Cache is not registered");
+        check(cache.getCurrentLayout(), "us");
+        check(cache.getEnabledLayouts(), Arrays.asList("us", "de"));
+
+        List<String> notifications = new ArrayList<>();
+        cache.addListener((current, enabled) -> notifications.add(current));
+        int queries = keyboard.queries;
+        keyboard.switchLayout("de");
+        keyboard.enabledLayouts.add("fr");
+        check(cache.getCurrentLayout(), "de");
+        // Cached list is a snapshot.
+        check(cache.getEnabledLayouts(), Arrays.asList("us", "de"));
+        keyboard.switchLayout("fr");
+        check(cache.getEnabledLayouts(), Arrays.asList("us", "de", "fr"));
+        check(notifications, Arrays.asList("de", "fr"));
+        check(keyboard.queries, queries);
+        try {
+            cache.getEnabledLayouts().add("ru");
+            throw new RuntimeException("Cached list is modifiable");
+        } catch (UnsupportedOperationException ignore) {}
+    }
+
+    private static void testLayoutTables() {
+        TestKeyboard keyboard = new TestKeyboard();
+        Keyboard.LayoutCache cache = new Keyboard.LayoutCache(keyboard);
+        Keyboard.LayoutTables tables = cache.getLayoutTables();
+        check(tables.getLayout(), "us");
+        check(tables.getUSKeyCode(1), KeyEvent.VK_Q);
+        check(tables.getUSKeyCode(-1), KeyEvent.VK_UNDEFINED);
+        check(tables.getUSKeyCode(100), KeyEvent.VK_UNDEFINED);
+        check(tables.getDeadKeyCode(2), KeyEvent.VK_UNDEFINED);
+        int queries = keyboard.tableQueries;
+        if (cache.getLayoutTables() != tables) throw new RuntimeException("Tables are rebuilt without layout change");
+        check(keyboard.tableQueries, queries);
+
+        keyboard.switchLayout("fr");
+        tables = cache.getLayoutTables();
+        check(tables.getLayout(), "fr");
+        check(tables.getDeadKeyCode(2), KeyEvent.VK_DEAD_CIRCUMFLEX);
+        check(tables.getDeadKeyStroke(2, KeyEvent.SHIFT_DOWN_MASK), KeyEvent.VK_DEAD_CIRCUMFLEX);
+        check(tables.getDeadKeyStroke(2, 0), KeyEvent.VK_UNDEFINED);
+        check(tables.getDeadKeyStroke(2, KeyEvent.SHIFT_DOWN_MASK | KeyEvent.ALT_GRAPH_DOWN_MASK), KeyEvent.VK_UNDEFINED);
+        check(tables.getDeadKeyStroke(3, KeyEvent.SHIFT_DOWN_MASK), KeyEvent.VK_UNDEFINED);
+        check(Keyboard.LayoutTables.level(KeyEvent.SHIFT_DOWN_MASK | KeyEvent.ALT_GRAPH_DOWN_MASK), 3);
+        boolean mac = System.getProperty("os.name").startsWith("Mac");
+        check(Keyboard.LayoutTables.level(KeyEvent.ALT_DOWN_MASK), mac ? 2 : 0);
+        if (cache.getLayoutTables() != tables) throw new RuntimeException("Tables are rebuilt without layout change");
+
+        // Tables are cached when layout is unknown too.
+        keyboard.switchLayout(null);
+        tables = cache.getLayoutTables();
+        if (tables.getLayout() != null) throw new RuntimeException("Unexpected layout: " + tables.getLayout());
+        queries = keyboard.tableQueries;
+        if (cache.getLayoutTables() != tables) throw new RuntimeException("Tables are rebuilt for unknown layout");
+        check(keyboard.tableQueries, queries);
+    }
+
+    private static void testLatencyHistogram() {
+        Keyboard.LatencyHistogram histogram = new Keyboard.LatencyHistogram(1_000_000_000L, 7);
+        check(histogram.getValueAtPercentile(50), 0L);
+        for (long i = 1; i <= 1000; i++) histogram.record(i * 1000);
+        histogram.record(-1);
+        check(histogram.getTotalCount(), 1001L);
+        check(histogram.getMin(), 0L);
+        check(histogram.getMax(), 1_000_000L);
+        checkApprox(histogram.getValueAtPercentile(50), 500_000);
+        checkApprox(histogram.getValueAtPercentile(99), 990_000);
+        check(histogram.getValueAtPercentile(100), 1_000_000L);
+        // Small values are exact.
+        Keyboard.LatencyHistogram exact = new Keyboard.LatencyHistogram(1000, 7);
+        for (int i = 0; i < 100; i++) exact.record(i);
+        check(exact.getValueAtPercentile(50), 49L);
+        exact.record(5000);
+        check(exact.getMax(), 5000L);
+        long[] counts = new long[exact.getBucketCount()];
+        exact.getCounts(counts);
+        check(counts[counts.length - 1], 1L);
+        check(exact.getBucketUpperBound(counts.length - 1), Long.MAX_VALUE);
+        long total = 0, previous = -1;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            if (exact.getBucketUpperBound(i) <= previous) throw new RuntimeException("Buckets are not ordered");
+            previous = exact.getBucketUpperBound(i);
+        }
+        check(total, 101L);
+        histogram.reset();
+        check(histogram.getTotalCount(), 0L);
+        check(histogram.getMax(), 0L);
+    }
+
+    private static void checkApprox(long actual, long expected) {
+        if (Math.abs(actual - expected) > expected / 50) {
+            throw new RuntimeException("Unexpected value: " + actual + ", expected about: " + expected);
+        }
+    }
+
+    private static void testLatencyMonitor() {
+        TestKeyboard keyboard = new TestKeyboard();
+        Keyboard.LatencyMonitor monitor = new Keyboard.LatencyMonitor(keyboard);
+        Component source = new Component() {};
+        KeyEvent event = new KeyEvent(source, KeyEvent.KEY_PRESSED, System.currentTimeMillis(), 0, KeyEvent.VK_A, 'a');
+        keyboard.arrivalTime = System.nanoTime() - 5_000_000L;
+        monitor.keyEventDispatched(event);
+        monitor.keyEventDispatched(event);
+        check(monitor.getDispatchLatency().getTotalCount(), 2L);
+        if (monitor.getDispatchLatency().getMin() < 5_000_000L) throw new RuntimeException("Arrival time is not used");
+        check(monitor.getPaintLatency().getTotalCount(), 0L);
+        monitor.framePainted();
+        monitor.framePainted();
+        check(monitor.getPaintLatency().getTotalCount(), 2L);
+        check(monitor.getTotalLatency().getTotalCount(), 2L);
+        if (monitor.getTotalLatency().getMin() < monitor.getDispatchLatency().getMin()) {
+            throw new RuntimeException("Total latency is less than dispatch latency");
+        }
+
+        // Estimated from event time when arrival time is not available.
+        Keyboard.LatencyMonitor estimated = new Keyboard.LatencyMonitor(null);
+        estimated.keyEventDispatched(new KeyEvent(source, KeyEvent.KEY_PRESSED,
+                System.currentTimeMillis() - 20, 0, KeyEvent.VK_A, 'a'));
+        if (estimated.getDispatchLatency().getMax() < 19_000_000L) throw new RuntimeException("Event time is not used");
+        estimated.reset();
+        estimated.framePainted();
+        check(estimated.getTotalLatency().getTotalCount(), 0L);
+        if (!monitor.toString().contains("total: count=2")) throw new RuntimeException("Unexpected summary: " + monitor);
+    }
+
+    private static void testLatencyEvents() throws Exception {
+        TestKeyboard keyboard = new TestKeyboard();
+        Keyboard.LatencyMonitor monitor = new Keyboard.LatencyMonitor(keyboard);
+        KeyEvent event = new KeyEvent(new Component() {}, KeyEvent.KEY_PRESSED, System.currentTimeMillis(), 0, KeyEvent.VK_A, 'a');
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("jetbrains.TypingLatency");
+            recording.start();
+            keyboard.arrivalTime = System.nanoTime() - 5_000_000L;
+            monitor.keyEventDispatched(event);
+            monitor.keyEventDispatched(event);
+            monitor.framePainted();
+            recording.stop();
+            Path file = Files.createTempFile("KeyboardTest", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.delete(file);
+            }
+        }
+        int count = 0;
+        for (RecordedEvent e : events) {
+            if (!e.getEventType().getName().equals("jetbrains.TypingLatency")) continue;
+            count++;
+            Duration dispatch = e.getDuration("dispatchLatency"), total = e.getDuration("totalLatency");
+            if (dispatch.toNanos() < 5_000_000L || total.compareTo(dispatch.plus(e.getDuration("paintLatency"))) != 0) {
+                throw new RuntimeException("Unexpected event: " + e);
+            }
+        }
+        if (count != 2) throw new RuntimeException("Unexpected number of events: " + count);
+    }
+}
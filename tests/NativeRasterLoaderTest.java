@@ -0,0 +1,409 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * @test
+ * @summary Verifies NativeRasterLoader raster loading and utilities
+ * @run main NativeRasterLoaderTest
+ */
+
+import com.jetbrains.Extensions;
+import com.jetbrains.JBR;
+import com.jetbrains.NativeRasterLoader;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import sun.misc.Unsafe;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+public class NativeRasterLoaderTest {
+
+    private static final int SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        testCoalesceOverlapping();
+        testCoalesceAdjacent();
+        testCoalesceDistant();
+        testCoalesceToBounds();
+        testCoalesceEmpty();
+        testCoalesceBuffer();
+        testChangeDetector(null);
+        testChangeDetector(ForkJoinPool.commonPool());
+        testStatistics();
+
+        if (!JBR.isNativeRasterLoaderSupported()) {
+            throw new RuntimeException("JBR NativeRasterLoader API is not available");
+        }
+        if (GraphicsEnvironment.isHeadless()) return; // Volatile images are not available.
+        NativeRasterLoader loader = JBR.getNativeRasterLoader(Extensions.ASYNC_RASTER_LOADING, Extensions.RASTER_FORMATS);
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        Unsafe unsafe = (Unsafe) field.get(null);
+        long pRaster = unsafe.allocateMemory(SIZE * SIZE * 4), pRects = unsafe.allocateMemory(16);
+        try {
+            testLoad(loader, unsafe, pRaster, pRects);
+            testLoadFormats(loader, unsafe, pRaster);
+            testLoadAsync(loader, unsafe, pRaster);
+            testSharedWorker(unsafe, pRaster);
+            testStreamingTarget(loader, unsafe, pRaster, pRects);
+        } finally {
+            unsafe.freeMemory(pRaster);
+            unsafe.freeMemory(pRects);
+        }
+    }
+
+    private static void testChangeDetector(ForkJoinPool pool) {
+        int width = 100, height = 70;
+        ByteBuffer raster = ByteBuffer.allocateDirect(width * height * 4);
+        NativeRasterLoader.ChangeDetector detector =
+                new NativeRasterLoader.ChangeDetector(width, height, NativeRasterLoader.FORMAT_INT_ARGB_PRE, 16, pool);
+        IntBuffer rects = IntBuffer.allocate(detector.getMaxRectsCount() * 4);
+        checkRects(rects, detector.detectChanges(raster, rects), 0, 0, 100, 70);
+        checkRects(rects, detector.detectChanges(raster, rects));
+
+        // Two changes in the same tile column, one in the partial bottom-right tile.
+        raster.putInt((20 * width + 40) * 4, 1);
+        raster.putInt((40 * width + 40) * 4, 1);
+        raster.putInt((69 * width + 99) * 4, 1);
+        checkRects(rects, detector.detectChanges(raster, rects), 32, 16, 16, 32, 96, 64, 4, 6);
+        checkRects(rects, detector.detectChanges(raster, rects));
+
+        for (int y = 0; y < 40; y++) raster.putInt((y * width + y) * 4, 2);
+        raster.putInt(50 * 4, 2);
+        checkRects(rects, detector.detectChanges(raster, rects), 0, 0, 16, 16, 48, 0, 16, 16,
+                16, 16, 16, 16, 32, 32, 16, 16);
+
+        // Runs of the same extent in consecutive rows are joined.
+        for (int y = 0; y < 48; y++) raster.putInt((y * width + 20) * 4, 3).putInt((y * width + 5) * 4, 3);
+        checkRects(rects, detector.detectChanges(raster, rects), 0, 0, 32, 48);
+
+        detector.reset();
+        checkRects(rects, detector.detectChanges(raster, rects), 0, 0, 100, 70);
+    }
+
+    private static void checkRects(IntBuffer buffer, int count, int... expected) {
+        int[] rects = new int[count * 4];
+        buffer.get(0, rects);
+        checkRects(rects, count, expected);
+    }
+
+    private static int pixel(int x, int y) {
+        return 0xFF000000 | (x * 16 << 16) | (y * 16 << 8) | 0x40;
+    }
+
+    private static VolatileImage createImage() {
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        VolatileImage vi = gc.createCompatibleVolatileImage(SIZE, SIZE, Transparency.TRANSLUCENT);
+        vi.validate(gc);
+        Graphics2D g = vi.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, SIZE, SIZE);
+        g.dispose();
+        return vi;
+    }
+
+    private static void fillRaster(Unsafe unsafe, long pRaster) {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) unsafe.putInt(pRaster + (y * SIZE + x) * 4L, pixel(x, y));
+        }
+    }
+
+    private static void checkImage(VolatileImage vi, Rectangle rect, int expectedOutside) {
+        BufferedImage snapshot = vi.getSnapshot();
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int expected = rect.contains(x, y) ? pixel(x, y) : expectedOutside;
+                int actual = snapshot.getRGB(x, y);
+                if (actual != expected) {
+                    throw new RuntimeException("Unexpected pixel at (" + x + ", " + y + "): " +
+                            Integer.toHexString(actual) + ", expected: " + Integer.toHexString(expected));
+                }
+            }
+        }
+    }
+
+    private static void testLoad(NativeRasterLoader loader, Unsafe unsafe, long pRaster, long pRects) {
+        fillRaster(unsafe, pRaster);
+        Rectangle rect = new Rectangle(2, 3, 4, 5);
+        unsafe.putInt(pRects, rect.x);
+        unsafe.putInt(pRects + 4, rect.y);
+        unsafe.putInt(pRects + 8, rect.width);
+        unsafe.putInt(pRects + 12, rect.height);
+        VolatileImage vi = createImage();
+        loader.loadNativeRaster(vi, pRaster, SIZE, SIZE, pRects, 1);
+        checkImage(vi, rect, 0xFF000000);
+        loader.loadNativeRaster(vi, pRaster, SIZE, SIZE, 0, 0);
+        checkImage(vi, new Rectangle(0, 0, SIZE, SIZE), 0);
+    }
+
+    private static void testLoadFormats(NativeRasterLoader loader, Unsafe unsafe, long pRaster) {
+        Rectangle all = new Rectangle(0, 0, SIZE, SIZE);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int p = pixel(x, y);
+                unsafe.putInt(pRaster + (y * SIZE + x) * 4L,
+                        (p & 0xFF00FF00) | ((p >>> 16) & 0xFF) | ((p & 0xFF) << 16));
+            }
+        }
+        VolatileImage vi = createImage();
+        loader.loadNativeRaster(vi, pRaster, SIZE, SIZE, NativeRasterLoader.FORMAT_INT_ABGR_PRE, 0, 0);
+        checkImage(vi, all, 0);
+        vi = createImage();
+        loader.loadNativeRaster(vi, pRaster, SIZE, SIZE, NativeRasterLoader.FORMAT_INT_ABGR, 0, 0);
+        checkImage(vi, all, 0);
+
+        // 565 components chosen to be represented exactly after expansion: 0x1F -> 0xFF, 0x3F -> 0xFF, 0 -> 0.
+        for (int i = 0; i < SIZE * SIZE; i++) unsafe.putShort(pRaster + i * 2L, (short) 0xF81F);
+        vi = createImage();
+        loader.loadNativeRaster(vi, pRaster, SIZE, SIZE, NativeRasterLoader.FORMAT_USHORT_565_RGB, 0, 0);
+        int actual = vi.getSnapshot().getRGB(SIZE / 2, SIZE / 2);
+        if (actual != 0xFFFF00FF) throw new RuntimeException("Unexpected 565 pixel: " + Integer.toHexString(actual));
+
+        try {
+            loader.loadNativeRaster(vi, pRaster, SIZE, SIZE, -1, 0, 0);
+            throw new RuntimeException("Unknown format accepted");
+        } catch (IllegalArgumentException ignore) {}
+    }
+
+    private static void testLoadAsync(NativeRasterLoader loader, Unsafe unsafe, long pRaster) throws Exception {
+        fillRaster(unsafe, pRaster);
+        VolatileImage vi = createImage();
+        loader.loadNativeRasterAsync(vi, pRaster, SIZE, SIZE, 0, 0).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        // The fence has signaled, so the raster can be reused right away.
+        unsafe.setMemory(pRaster, SIZE * SIZE * 4, (byte) 0);
+        checkImage(vi, new Rectangle(0, 0, SIZE, SIZE), 0);
+    }
+
+    private static void testSharedWorker(Unsafe unsafe, long pRaster) throws Exception {
+        fillRaster(unsafe, pRaster);
+        VolatileImage vi = createImage();
+        CompletableFuture<?> last = null;
+        // Every lookup creates a new service instance, all of them must share one worker thread.
+        for (int i = 0; i < 10; i++) {
+            NativeRasterLoader loader = JBR.getNativeRasterLoader(Extensions.ASYNC_RASTER_LOADING);
+            last = loader.loadNativeRasterAsync(vi, pRaster, SIZE, SIZE, 0, 0).toCompletableFuture();
+        }
+        // Synchronous load through another instance waits for queued uploads into the same image.
+        JBR.getNativeRasterLoader(Extensions.ASYNC_RASTER_LOADING).loadNativeRaster(vi, pRaster, SIZE, SIZE, 0, 0);
+        if (!last.isDone()) throw new RuntimeException("Synchronous load didn't wait for queued uploads");
+        long workers = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("NativeRasterLoader")).count();
+        if (workers > 1) throw new RuntimeException("Too many worker threads: " + workers);
+    }
+
+    private static void testStreamingTarget(NativeRasterLoader loader, Unsafe unsafe, long pRaster, long pRects) throws Exception {
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        NativeRasterLoader.StreamingTarget target = new NativeRasterLoader.StreamingTarget(loader, gc, SIZE, SIZE, 2);
+        BufferedImage frame = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+        if (target.paintFrame(frame.createGraphics(), 0, 0)) throw new RuntimeException("Painted frame before loading");
+        fillRaster(unsafe, pRaster);
+        target.loadFrame(pRaster, NativeRasterLoader.FORMAT_INT_ARGB_PRE, 0, 0);
+        // Each next frame goes into another image, which must be brought up to date with the previous frame.
+        for (int i = 0; i < 3; i++) {
+            unsafe.putInt(pRaster + i * 4L, 0xFFFFFFFF);
+            unsafe.putInt(pRects, i);
+            unsafe.putInt(pRects + 4, 0);
+            unsafe.putInt(pRects + 8, 1);
+            unsafe.putInt(pRects + 12, 1);
+            target.loadFrame(pRaster, NativeRasterLoader.FORMAT_INT_ARGB_PRE, pRects, 1);
+        }
+        if (!target.paintFrame(frame.createGraphics(), 0, 0)) throw new RuntimeException("Frame was not painted");
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int expected = y == 0 && x < 3 ? 0xFFFFFFFF : pixel(x, y);
+                int actual = frame.getRGB(x, y);
+                if (actual != expected) {
+                    throw new RuntimeException("Unexpected frame pixel at (" + x + ", " + y + "): " +
+                            Integer.toHexString(actual) + ", expected: " + Integer.toHexString(expected));
+                }
+            }
+        }
+        target.flush();
+    }
+
+    private static void testStatistics() throws Exception {
+        NativeRasterLoader stub = new NativeRasterLoader() {
+            @Override
+            public void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {}
+            @Override
+            public void loadNativeRaster(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {}
+            @Override
+            public CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, long pRects, int rectsCount) {
+                return CompletableFuture.completedFuture(null);
+            }
+            @Override
+            public CompletionStage<Void> loadNativeRasterAsync(VolatileImage vi, long pRaster, int width, int height, int format, long pRects, int rectsCount) {
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        Unsafe unsafe = (Unsafe) field.get(null);
+        long pRects = unsafe.allocateMemory(32);
+        try {
+            // Second rect is half outside the raster.
+            int[] rects = {0, 0, 4, 4, SIZE - 2, 0, 4, 4};
+            for (int i = 0; i < rects.length; i++) unsafe.putInt(pRects + i * 4L, rects[i]);
+            NativeRasterLoader.Statistics statistics = new NativeRasterLoader.Statistics();
+            NativeRasterLoader loader = statistics.instrument(stub);
+            if (statistics.getLatencyPercentileNanos(50) != 0) throw new RuntimeException("Latency recorded before any call");
+            List<RecordedEvent> events;
+            try (Recording recording = new Recording()) {
+                recording.enable("jetbrains.NativeRasterUpload");
+                recording.start();
+                loader.loadNativeRaster(null, 0, SIZE, SIZE, 0, 0);
+                loader.loadNativeRaster(null, 0, SIZE, SIZE, NativeRasterLoader.FORMAT_USHORT_565_RGB, pRects, 2);
+                loader.loadNativeRasterAsync(null, 0, SIZE, SIZE, pRects, 1).toCompletableFuture().get(10, TimeUnit.SECONDS);
+                recording.stop();
+                Path file = Files.createTempFile("NativeRasterLoaderTest", ".jfr");
+                try {
+                    recording.dump(file);
+                    events = RecordingFile.readAllEvents(file);
+                } finally {
+                    Files.delete(file);
+                }
+            }
+            long expectedBytes = SIZE * SIZE * 4 + (16 + 8) * 2 + 16 * 4;
+            if (statistics.getCalls() != 3 || statistics.getRects() != 4 || statistics.getBytes() != expectedBytes) {
+                throw new RuntimeException("Unexpected statistics: calls=" + statistics.getCalls() +
+                        ", rects=" + statistics.getRects() + ", bytes=" + statistics.getBytes());
+            }
+            // Same values are recorded as JFR events.
+            long eventBytes = 0, eventRects = 0, asyncEvents = 0;
+            for (RecordedEvent event : events) {
+                if (!event.getEventType().getName().equals("jetbrains.NativeRasterUpload")) continue;
+                eventBytes += event.getLong("bytes");
+                eventRects += event.getInt("rects");
+                if (event.getBoolean("async")) asyncEvents++;
+            }
+            if (eventBytes != expectedBytes || eventRects != 4 || asyncEvents != 1) {
+                throw new RuntimeException("Unexpected events: " + events);
+            }
+            long histogram = 0;
+            for (int i = 0; i < NativeRasterLoader.Statistics.LATENCY_BUCKETS; i++) histogram += statistics.getLatencyCount(i);
+            if (histogram != 3) throw new RuntimeException("Unexpected histogram count: " + histogram);
+            if (statistics.getMaxTimeNanos() > statistics.getTotalTimeNanos() ||
+                statistics.getLatencyPercentileNanos(100) < statistics.getMaxTimeNanos()) {
+                throw new RuntimeException("Inconsistent latencies");
+            }
+            statistics.reset();
+            if (statistics.getCalls() != 0 || statistics.getBytes() != 0 || statistics.getMaxTimeNanos() != 0) {
+                throw new RuntimeException("Statistics were not reset");
+            }
+        } finally {
+            unsafe.freeMemory(pRects);
+        }
+    }
+
+    private static void testCoalesceOverlapping() {
+        int[] rects = {
+                10, 10, 20, 20,
+                12, 12, 5, 5,
+                10, 15, 20, 20
+        };
+        checkRects(rects, NativeRasterLoader.coalesceDirtyRects(rects, 3, 0), 10, 10, 20, 25);
+    }
+
+    private static void testCoalesceAdjacent() {
+        int[] rects = {
+                0, 0, 10, 1,
+                0, 2, 10, 1,
+                0, 1, 10, 1,
+                10, 0, 5, 3
+        };
+        checkRects(rects, NativeRasterLoader.coalesceDirtyRects(rects, 4, 0), 0, 0, 15, 3);
+    }
+
+    private static void testCoalesceDistant() {
+        int[] rects = {
+                0, 0, 10, 10,
+                100, 100, 10, 10
+        };
+        checkRects(rects, NativeRasterLoader.coalesceDirtyRects(rects, 2, 0),
+                0, 0, 10, 10, 100, 100, 10, 10);
+    }
+
+    private static void testCoalesceToBounds() {
+        int[] rects = new int[4 * 100];
+        for (int i = 0; i < 100; i++) {
+            rects[i * 4] = (i % 10) * 10;
+            rects[i * 4 + 1] = (i / 10) * 10;
+            rects[i * 4 + 2] = 1;
+            rects[i * 4 + 3] = 1;
+        }
+        if (NativeRasterLoader.coalesceDirtyRects(rects.clone(), 100, 0) != 100) {
+            throw new RuntimeException("Sparse rects must not be merged without rect cost");
+        }
+        if (NativeRasterLoader.coalesceDirtyRects(rects.clone(), 100, 100) != 10) {
+            throw new RuntimeException("Sparse rects must be merged into rows");
+        }
+        checkRects(rects, NativeRasterLoader.coalesceDirtyRects(rects, 100, 1000), 0, 0, 91, 91);
+    }
+
+    private static void testCoalesceEmpty() {
+        int[] rects = {
+                0, 0, 0, 10,
+                5, 5, 10, 10,
+                0, 0, 10, -1
+        };
+        checkRects(rects, NativeRasterLoader.coalesceDirtyRects(rects, 3, 0), 5, 5, 10, 10);
+        if (NativeRasterLoader.coalesceDirtyRects(rects, 0, 0) != 0) {
+            throw new RuntimeException("Unexpected rects count");
+        }
+    }
+
+    private static void testCoalesceBuffer() {
+        IntBuffer buffer = IntBuffer.allocate(16);
+        buffer.put(new int[] {
+                -1, -1, -1, -1,
+                0, 0, 10, 10,
+                5, 0, 10, 10,
+                -1, -1, -1, -1
+        });
+        buffer.position(4);
+        int count = NativeRasterLoader.coalesceDirtyRects(buffer, 2, 0);
+        if (buffer.position() != 4) throw new RuntimeException("Buffer position changed");
+        int[] rects = new int[count * 4];
+        buffer.get(rects);
+        checkRects(rects, count, 0, 0, 15, 10);
+        if (buffer.get(0) != -1 || buffer.get(12) != -1) throw new RuntimeException("Rects out of range modified");
+    }
+
+    private static void checkRects(int[] rects, int count, int... expected) {
+        int[] actual = Arrays.copyOf(rects, count * 4);
+        if (!Arrays.equals(actual, expected)) {
+            throw new RuntimeException("Unexpected rects: " + Arrays.toString(actual) +
+                    ", expected: " + Arrays.toString(expected));
+        }
+    }
+}
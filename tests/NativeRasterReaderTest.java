@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * @test
+ * @summary Verifies NativeRasterReader reads VolatileImage contents into caller-supplied memory
+ * @run main NativeRasterReaderTest
+ */
+
+import com.jetbrains.JBR;
+import com.jetbrains.NativeRasterReader;
+import sun.misc.Unsafe;
+
+import java.awt.*;
+import java.awt.image.VolatileImage;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+public class NativeRasterReaderTest {
+
+    private static final int SIZE = 16;
+    private static final int UNTOUCHED = 0x12345678;
+
+    public static void main(String[] args) throws Exception {
+        if (!JBR.isNativeRasterReaderSupported()) {
+            throw new RuntimeException("JBR NativeRasterReader API is not available");
+        }
+        if (GraphicsEnvironment.isHeadless()) return; // Volatile images are not available.
+        NativeRasterReader reader = JBR.getNativeRasterReader();
+        VolatileImage vi = createImage();
+        Rectangle rect = new Rectangle(2, 3, 4, 5);
+        testReadPointer(reader, vi, rect);
+        testReadBuffer(reader, vi, rect);
+    }
+
+    private static int pixel(int x, int y) {
+        return 0xFF000000 | (x * 16 << 16) | (y * 16 << 8) | 0x40;
+    }
+
+    private static VolatileImage createImage() {
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        VolatileImage vi = gc.createCompatibleVolatileImage(SIZE, SIZE, Transparency.TRANSLUCENT);
+        vi.validate(gc);
+        Graphics2D g = vi.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                g.setColor(new Color(pixel(x, y), true));
+                g.fillRect(x, y, 1, 1);
+            }
+        }
+        g.dispose();
+        return vi;
+    }
+
+    private static void checkPixel(int x, int y, Rectangle rect, int actual) {
+        int expected = rect.contains(x, y) ? pixel(x, y) : UNTOUCHED;
+        if (actual != expected) {
+            throw new RuntimeException("Unexpected pixel at (" + x + ", " + y + "): " +
+                    Integer.toHexString(actual) + ", expected: " + Integer.toHexString(expected));
+        }
+    }
+
+    private static void testReadPointer(NativeRasterReader reader, VolatileImage vi, Rectangle rect) throws Exception {
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        Unsafe unsafe = (Unsafe) field.get(null);
+        long pRaster = unsafe.allocateMemory(SIZE * SIZE * 4), pRects = unsafe.allocateMemory(16);
+        try {
+            for (int i = 0; i < SIZE * SIZE; i++) unsafe.putInt(pRaster + i * 4L, UNTOUCHED);
+            unsafe.putInt(pRects, rect.x);
+            unsafe.putInt(pRects + 4, rect.y);
+            unsafe.putInt(pRects + 8, rect.width);
+            unsafe.putInt(pRects + 12, rect.height);
+            if (!reader.readNativeRaster(vi, pRaster, SIZE, SIZE, pRects, 1)) return; // Contents lost, nothing to check.
+            for (int y = 0; y < SIZE; y++) {
+                for (int x = 0; x < SIZE; x++) checkPixel(x, y, rect, unsafe.getInt(pRaster + (y * SIZE + x) * 4L));
+            }
+        } finally {
+            unsafe.freeMemory(pRaster);
+            unsafe.freeMemory(pRects);
+        }
+    }
+
+    private static void testReadBuffer(NativeRasterReader reader, VolatileImage vi, Rectangle rect) {
+        ByteBuffer raster = ByteBuffer.allocateDirect(SIZE * SIZE * 4 + 4).order(ByteOrder.nativeOrder());
+        raster.position(4);
+        for (int i = 4; i < raster.capacity(); i += 4) raster.putInt(i, UNTOUCHED);
+        IntBuffer rects = IntBuffer.wrap(new int[] {0, 0, 0, 0, rect.x, rect.y, rect.width, rect.height});
+        rects.position(4);
+        if (!reader.readNativeRaster(vi, raster, SIZE, SIZE, rects, 1)) return; // Contents lost, nothing to check.
+        if (raster.position() != 4 || rects.position() != 4) throw new RuntimeException("Buffer position changed");
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) checkPixel(x, y, rect, raster.getInt(4 + (y * SIZE + x) * 4));
+        }
+        try {
+            reader.readNativeRaster(vi, ByteBuffer.allocate(4), SIZE, SIZE, null, 0);
+            throw new RuntimeException("Small buffer accepted");
+        } catch (IndexOutOfBoundsException ignore) {}
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * @test
+ * @summary Verifies ProjectorUtils utilities
+ * @run main ProjectorUtilsTest
+ */
+
+import com.jetbrains.ProjectorUtils;
+
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ProjectorUtilsTest {
+
+    public static void main(String[] args) throws Exception {
+        testRecordingGraphicsEnvironment();
+        testFragments();
+        testShapeFragments();
+        testFragmentEviction();
+        testObjectInterning();
+        testSessions();
+        testFrameScheduler();
+        testFrameSchedulerReschedule();
+    }
+
+    private static boolean contains(byte[] frame, int b) {
+        for (byte value : frame) {
+            if (value == (byte) b) return true;
+        }
+        return false;
+    }
+
+    private static void paint(Graphics2D g, int x) {
+        Graphics2D parent = (Graphics2D) g.create();
+        parent.setColor(Color.BLUE);
+        parent.fillRect(x, 0, 10, 10);
+        Graphics2D child = (Graphics2D) parent.create();
+        child.translate(5, 5);
+        child.setColor(Color.GREEN);
+        child.fillRect(1, 2, 3, 4);
+        child.drawLine(0, 0, 20, 20);
+        child.dispose();
+        parent.dispose();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        if (!buffer.isReadOnly()) throw new RuntimeException("Frame buffer is writable");
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void checkFrame(ByteBuffer frame, int... expected) {
+        byte[] actual = bytes(frame), bytes = new byte[expected.length];
+        for (int i = 0; i < expected.length; i++) bytes[i] = (byte) expected[i];
+        if (!Arrays.equals(actual, bytes)) {
+            throw new RuntimeException("Unexpected frame: " + Arrays.toString(actual) + ", expected: " + Arrays.toString(bytes));
+        }
+    }
+
+    private static void testRecordingGraphicsEnvironment() {
+        ProjectorUtils.RecordingGraphicsEnvironment env = new ProjectorUtils.RecordingGraphicsEnvironment(
+                GraphicsEnvironment.getLocalGraphicsEnvironment(), 640, 480);
+        // Virtual screen is available in headless JVM too.
+        Rectangle bounds = env.getDefaultScreenDevice().getDefaultConfiguration().getBounds();
+        if (!bounds.equals(new Rectangle(0, 0, 640, 480))) throw new RuntimeException("Unexpected screen bounds: " + bounds);
+        if (env.getScreenDevices().length != 1) throw new RuntimeException("Unexpected screen devices");
+        if (env.getAllFonts().length == 0) throw new RuntimeException("Fonts are not delegated");
+
+        Graphics2D g = env.createScreenGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 10, 10);
+        byte[] first = bytes(env.nextFrame());
+        if (first[0] != 1) throw new RuntimeException("Unexpected format version: " + first[0]);
+        if (first[1] != 127) throw new RuntimeException("Objects are not defined in the first frame");
+
+        // Plain commands: version, FILL_RECT with zigzag varint coordinates.
+        g.fillRect(1, -2, 3, 100);
+        checkFrame(env.nextFrame(), 1, 29, 2, 3, 6, 200, 1);
+
+        // Nothing recorded.
+        checkFrame(env.nextFrame(), 1);
+
+        // New color is defined once and then only referenced.
+        g.setColor(new Color(0x12345678, true));
+        g.setColor(Color.RED);
+        byte[] defined = bytes(env.nextFrame());
+        if (defined[1] != 127 || defined[3] != 1 || defined[4] != 0x12 || defined[7] != 0x78) {
+            throw new RuntimeException("Unexpected color definition: " + Arrays.toString(defined));
+        }
+        int id = defined[2];
+        if (defined.length != 12 || defined[8] != 4 || defined[9] != id || defined[10] != 4) {
+            throw new RuntimeException("Unexpected color commands: " + Arrays.toString(defined));
+        }
+        g.setColor(new Color(0x12345678, true));
+        g.dispose();
+        checkFrame(env.nextFrame(), 1, 4, id, 2);
+    }
+
+    private static void testFragments() {
+        ProjectorUtils.RecordingGraphicsEnvironment env = new ProjectorUtils.RecordingGraphicsEnvironment(
+                GraphicsEnvironment.getLocalGraphicsEnvironment(), 640, 480);
+        Graphics2D g = env.createScreenGraphics();
+        paint(g, 0);
+        byte[] first = bytes(env.nextFrame());
+        if (!contains(first, 126)) throw new RuntimeException("Fragment is not defined: " + Arrays.toString(first));
+
+        // Unchanged sub-tree is only referenced.
+        paint(g, 0);
+        byte[] replay = bytes(env.nextFrame());
+        if (replay.length > 6 || replay[1] != 125) throw new RuntimeException("Fragment is not replayed: " + Arrays.toString(replay));
+
+        // Changed parent is sent again, but its unchanged child is referenced.
+        paint(g, 20);
+        byte[] changed = bytes(env.nextFrame());
+        if (changed[1] != 126 || !contains(changed, 125) || changed.length >= first.length) {
+            throw new RuntimeException("Unchanged child is not replayed: " + Arrays.toString(changed));
+        }
+
+        checkFrame(env.nextFrame(), 1);
+        g.dispose();
+    }
+
+    private static void paintPath(Graphics2D g) {
+        Graphics2D component = (Graphics2D) g.create();
+        component.translate(10, 10);
+        component.setColor(Color.ORANGE);
+        // New shape instance on every paint, like components usually do.
+        Path2D path = new Path2D.Double();
+        path.moveTo(0, 0);
+        path.quadTo(20, 0, 20, 20);
+        path.closePath();
+        component.fill(path);
+        component.setStroke(new BasicStroke(2));
+        component.draw(path);
+        component.drawString("Label", 0, 40);
+        component.fillRect(0, 45, 40, 2);
+        component.dispose();
+    }
+
+    private static void testShapeFragments() {
+        ProjectorUtils.RecordingGraphicsEnvironment env = new ProjectorUtils.RecordingGraphicsEnvironment(
+                GraphicsEnvironment.getLocalGraphicsEnvironment(), 640, 480);
+        Graphics2D g = env.createScreenGraphics();
+        env.nextFrame();
+        paintPath(g);
+        byte[] first = bytes(env.nextFrame());
+        if (!contains(first, 126)) throw new RuntimeException("Fragment is not defined: " + Arrays.toString(first));
+        for (int i = 0; i < 3; i++) {
+            paintPath(g);
+            byte[] replay = bytes(env.nextFrame());
+            if (replay.length > 6 || replay[1] != 125) {
+                throw new RuntimeException("Unchanged shape component is not replayed: " + Arrays.toString(replay));
+            }
+        }
+        g.dispose();
+    }
+
+    private static void testFragmentEviction() {
+        ProjectorUtils.RecordingGraphicsEnvironment env = new ProjectorUtils.RecordingGraphicsEnvironment(
+                GraphicsEnvironment.getLocalGraphicsEnvironment(), 640, 480, 256);
+        Graphics2D g = env.createScreenGraphics();
+        env.nextFrame();
+        boolean evicted = false;
+        for (int i = 0; i < 20 && !evicted; i++) {
+            Graphics2D child = (Graphics2D) g.create();
+            child.fillRect(i, 0, 10, 10);
+            child.drawRect(i, 0, 10, 10);
+            child.drawLine(i, 0, 10, 10);
+            child.dispose();
+            byte[] frame = bytes(env.nextFrame());
+            if (frame[1] == 124) {
+                evicted = true;
+                // Freed slot is reused.
+                if (frame[2] != frame[4]) throw new RuntimeException("Slot is not reused: " + Arrays.toString(frame));
+            } else if (frame[1] != 126) throw new RuntimeException("Fragment is not defined: " + Arrays.toString(frame));
+        }
+        if (!evicted) throw new RuntimeException("Fragments are not evicted");
+        g.dispose();
+    }
+
+    private static BufferedImage image(int size, int rgb) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) image.setRGB(x, y, rgb);
+        }
+        return image;
+    }
+
+    private static void testObjectInterning() {
+        ProjectorUtils.RecordingGraphicsEnvironment env = new ProjectorUtils.RecordingGraphicsEnvironment(
+                GraphicsEnvironment.getLocalGraphicsEnvironment(), 640, 480, 0);
+        Graphics2D g = env.createScreenGraphics();
+        env.nextFrame();
+
+        // Shapes without value equality are interned by contents.
+        for (int i = 0; i < 3; i++) {
+            Path2D path = new Path2D.Double();
+            path.moveTo(0, 0);
+            path.lineTo(10, 5);
+            path.lineTo(0, 10);
+            path.closePath();
+            g.fill(path);
+            byte[] frame = bytes(env.nextFrame());
+            if ((i == 0) != (frame[1] == 127)) throw new RuntimeException("Unexpected shape definition: " + Arrays.toString(frame));
+        }
+
+        // Ids of disposed contexts are reused, so repainting doesn't change the stream.
+        byte[] previous = null;
+        for (int i = 0; i < 100; i++) {
+            Graphics2D child = (Graphics2D) g.create();
+            child.fillRect(0, 0, 5, 5);
+            child.dispose();
+            byte[] frame = bytes(env.nextFrame());
+            if (i > 1 && !Arrays.equals(frame, previous)) {
+                throw new RuntimeException("Context ids are not reused: " + Arrays.toString(frame) + ", " + Arrays.toString(previous));
+            }
+            previous = frame;
+        }
+
+        // Image is read once and defined again when it is reported as changed.
+        int[] reads = new int[1];
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB) {
+            @Override
+            public int[] getRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+                reads[0]++;
+                return super.getRGB(startX, startY, w, h, rgbArray, offset, scansize);
+            }
+        };
+        image.setRGB(0, 0, 0xFF102030);
+        g.drawImage(image, 0, 0, null);
+        byte[] first = bytes(env.nextFrame());
+        int firstReads = reads[0];
+        for (int i = 0; i < 3; i++) {
+            g.drawImage(image, 0, 0, null);
+            if (bytes(env.nextFrame())[1] == 127) throw new RuntimeException("Unchanged image is defined again");
+        }
+        if (reads[0] != firstReads) throw new RuntimeException("Unchanged image is read again");
+        image.setRGB(1, 1, 0xFF405060);
+        env.imageChanged(image);
+        g.drawImage(image, 0, 0, null);
+        byte[] changed = bytes(env.nextFrame());
+        if (changed[1] != 127 || changed[2] == first[2]) throw new RuntimeException("Changed image is not defined: " + changed[1]);
+        // Drawing into the image through the environment marks it as changed.
+        Graphics2D ig = env.createGraphics(image);
+        ig.setColor(Color.WHITE);
+        ig.fillRect(0, 0, 2, 2);
+        ig.dispose();
+        g.drawImage(image, 0, 0, null);
+        if (bytes(env.nextFrame())[1] != 127) throw new RuntimeException("Image drawn into is not defined again");
+
+        // Least recently used objects are evicted when the table is full.
+        int[] colors = {0xFF010101, 0xFF020202, 0xFF030303, 0xFF040404};
+        boolean evicted = false;
+        for (int color : colors) {
+            g.drawImage(image(300, color), 0, 0, null);
+            byte[] frame = bytes(env.nextFrame());
+            if (frame[1] == 122) evicted = true;
+            else if (frame[1] != 127) throw new RuntimeException("Image is not defined: " + frame[1]);
+        }
+        if (!evicted) throw new RuntimeException("Objects are not evicted");
+        g.drawImage(image(300, colors[0]), 0, 0, null);
+        byte[] redefined = bytes(env.nextFrame());
+        if (redefined[1] != 122 && redefined[1] != 127) throw new RuntimeException("Evicted image is not defined again");
+        g.dispose();
+    }
+
+    private static void checkEnvironment(GraphicsEnvironment actual, GraphicsEnvironment expected) {
+        if (actual != expected) throw new RuntimeException("Unexpected environment: " + actual + ", expected: " + expected);
+    }
+
+    private static void testSessions() throws Exception {
+        GraphicsEnvironment local = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        GraphicsEnvironment first = new ProjectorUtils.RecordingGraphicsEnvironment(local, 100, 100),
+                second = new ProjectorUtils.RecordingGraphicsEnvironment(local, 200, 200);
+        ProjectorUtils.SessionGraphicsEnvironment env = new ProjectorUtils.SessionGraphicsEnvironment(local);
+        ProjectorUtils.GraphicsSession firstSession = new ProjectorUtils.GraphicsSession(env, first),
+                secondSession = new ProjectorUtils.GraphicsSession(env, second);
+        checkEnvironment(env.getCurrentEnvironment(), local);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            if (env.setCurrentSession(firstSession) != null) throw new RuntimeException("Unexpected previous session");
+            checkEnvironment(env.getCurrentEnvironment(), first);
+
+            // New threads, including pooled ones, don't inherit the session.
+            AtomicReference<GraphicsEnvironment> inherited = new AtomicReference<>();
+            Thread thread = new Thread(() -> inherited.set(env.getCurrentEnvironment()));
+            thread.start();
+            thread.join();
+            checkEnvironment(inherited.get(), local);
+            checkEnvironment(executor.submit(env::getCurrentEnvironment).get(), local);
+
+            // Wrapped tasks run in their session, pooled thread is left unbound afterwards.
+            checkEnvironment(executor.submit(secondSession.wrap(env::getCurrentEnvironment)).get(), second);
+            checkEnvironment(executor.submit(env::getCurrentEnvironment).get(), local);
+            AtomicReference<GraphicsEnvironment> executed = new AtomicReference<>();
+            secondSession.wrap(executor).execute(() -> executed.set(env.getCurrentEnvironment()));
+            executor.submit(() -> {}).get();
+            checkEnvironment(executed.get(), second);
+
+            // Threads of a wrapped factory run in the session for their whole life.
+            AtomicReference<GraphicsEnvironment> owned = new AtomicReference<>();
+            Thread ownedThread = secondSession.wrapThreadFactory(Executors.defaultThreadFactory())
+                    .newThread(() -> owned.set(env.getCurrentEnvironment()));
+            ownedThread.start();
+            ownedThread.join();
+            checkEnvironment(owned.get(), second);
+
+            // Bound ancestor takes precedence over the thread, unbound components use the current thread's session.
+            Container root = new Container(), unbound = new Container();
+            Component child = new Component() {}, unboundChild = new Component() {};
+            root.add(child);
+            unbound.add(unboundChild);
+            env.setSession(root, secondSession);
+            if (env.getSession(child) != secondSession) throw new RuntimeException("Unexpected component session");
+            checkEnvironment(env.getEnvironment(child), second);
+            if (env.getSession(unboundChild) != firstSession) throw new RuntimeException("Unexpected component session");
+            env.setCurrentSession(null);
+            checkEnvironment(env.getEnvironment(unboundChild), local);
+            checkEnvironment(executor.submit(() -> env.getEnvironment(child)).get(), second);
+            checkEnvironment(executor.submit(secondSession.wrap(() -> env.getEnvironment(unboundChild))).get(), second);
+            // Binding many components keeps lookups working.
+            Component[] others = new Component[100];
+            for (int i = 0; i < others.length; i++) env.setSession(others[i] = new Container(), firstSession);
+            if (env.getSession(child) != secondSession || env.getSession(others[42]) != firstSession) {
+                throw new RuntimeException("Unexpected component session");
+            }
+            for (Component other : others) env.setSession(other, null);
+            env.setSession(root, null);
+            if (env.getSession(child) != null) throw new RuntimeException("Unexpected component session");
+            env.setCurrentSession(firstSession);
+
+            // Replaced environment is visible immediately.
+            firstSession.setEnvironment(second);
+            checkEnvironment(env.getCurrentEnvironment(), second);
+            checkEnvironment(env.getEnvironment(unboundChild), second);
+            if (env.setCurrentSession(null) != firstSession) throw new RuntimeException("Unexpected previous session");
+            checkEnvironment(env.getCurrentEnvironment(), local);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void checkFrame(BlockingQueue<Long> frames, long expected, long timeoutMillis) throws InterruptedException {
+        Long frame = frames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (frame == null || frame != expected) throw new RuntimeException("Unexpected frame: " + frame + ", expected: " + expected);
+    }
+
+    private static void testFrameScheduler() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        BlockingQueue<Long> frames = new LinkedBlockingQueue<>();
+        ProjectorUtils.FrameScheduler scheduler = new ProjectorUtils.FrameScheduler(executor, frames::add, 50);
+        try {
+            // Requests are coalesced into frames.
+            for (int i = 0; i < 100; i++) scheduler.requestFrame();
+            checkFrame(frames, 0, 5000);
+            for (int i = 0; i < 100; i++) scheduler.requestFrame();
+            checkFrame(frames, 1, 5000);
+            if (scheduler.getRequests() != 200 || scheduler.getCoalescedRequests() < 190) {
+                throw new RuntimeException("Requests are not coalesced: " + scheduler.getCoalescedRequests());
+            }
+
+            // Third frame waits for acknowledgement.
+            scheduler.requestFrame();
+            if (frames.poll(300, TimeUnit.MILLISECONDS) != null) throw new RuntimeException("Frame is not throttled");
+            scheduler.acknowledge(1);
+            checkFrame(frames, 2, 500);
+            if (scheduler.getAcknowledgedFrames() != 2 || scheduler.getThrottledFrames() != 1 || scheduler.getLatencyNanos() <= 0) {
+                throw new RuntimeException("Unexpected statistics");
+            }
+            if (scheduler.getFrameIntervalNanos() < TimeUnit.MILLISECONDS.toNanos(20)) {
+                throw new RuntimeException("Frame rate is not limited");
+            }
+
+            scheduler.close();
+            scheduler.requestFrame();
+            if (frames.poll(100, TimeUnit.MILLISECONDS) != null) throw new RuntimeException("Frame after close");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void testFrameSchedulerReschedule() throws Exception {
+        ScheduledExecutorService delegate = Executors.newSingleThreadScheduledExecutor();
+        AtomicBoolean armed = new AtomicBoolean();
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        // Holds the first task scheduled after arming right after it starts, before it gets to the frame.
+        ScheduledExecutorService executor = (ScheduledExecutorService) Proxy.newProxyInstance(
+                ProjectorUtilsTest.class.getClassLoader(), new Class<?>[] {ScheduledExecutorService.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("schedule") && args[0] instanceof Runnable) {
+                        Runnable task = (Runnable) args[0];
+                        boolean hold = armed.getAndSet(false);
+                        args[0] = (Runnable) () -> {
+                            if (hold) {
+                                started.countDown();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException ignore) {}
+                            }
+                            task.run();
+                        };
+                    }
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        BlockingQueue<Long> frames = new LinkedBlockingQueue<>();
+        ProjectorUtils.FrameScheduler scheduler = new ProjectorUtils.FrameScheduler(executor, frames::add, 50);
+        try {
+            scheduler.requestFrame();
+            checkFrame(frames, 0, 5000);
+            scheduler.requestFrame();
+            checkFrame(frames, 1, 5000);
+
+            // Throttled frame starts on acknowledgement timeout, acknowledgement comes at the same moment.
+            armed.set(true);
+            scheduler.requestFrame();
+            if (!started.await(5, TimeUnit.SECONDS)) throw new RuntimeException("Throttled frame did not start");
+            scheduler.acknowledge(1);
+            release.countDown();
+            checkFrame(frames, 2, 5000);
+            Long extra = frames.poll(300, TimeUnit.MILLISECONDS);
+            if (extra != null) throw new RuntimeException("Rescheduled frame is sent twice: " + extra);
+            if (scheduler.getFrames() != 3) throw new RuntimeException("Unexpected frames: " + scheduler.getFrames());
+        } finally {
+            scheduler.close();
+            delegate.shutdown();
+        }
+    }
+}
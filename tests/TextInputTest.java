@@ -0,0 +1,146 @@
+/*
+ * Copyright 2000-2024 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/*
+ * @test
+ * @summary Verifies per-component routing and coalescing of TextInput events
+ * @run main TextInputTest
+ */
+
+import com.jetbrains.TextInput;
+
+import java.awt.*;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TextInputTest {
+
+    private static final List<String> coalescedLog = new ArrayList<>();
+
+    private static class TestTextInput implements TextInput {
+        EventListener listener;
+
+        @Override
+        public void setGlobalEventListener(EventListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    private static class TestEvent implements TextInput.SelectTextRangeEvent {
+        final Object source;
+        final int begin, length;
+
+        TestEvent(Object source, int begin, int length) {
+            this.source = source;
+            this.begin = begin;
+            this.length = length;
+        }
+
+        @Override public Object getSource() { return source; }
+        @Override public int getBegin() { return begin; }
+        @Override public int getLength() { return length; }
+    }
+
+    /**
+     * Component with equals() matching any other instance, to check identity comparison.
+     */
+    private static class EqualComponent {
+        @Override public boolean equals(Object obj) { return obj instanceof EqualComponent; }
+        @Override public int hashCode() { return 0; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        EventQueue.invokeAndWait(TextInputTest::testRouting);
+        EventQueue.invokeAndWait(TextInputTest::testCoalescing);
+        // Coalesced events are delivered before events posted after them.
+        EventQueue.invokeAndWait(() -> check(coalescedLog, Arrays.asList("a:7+1")));
+        testWeakComponents();
+    }
+
+    private static void check(Object actual, Object expected) {
+        if (!expected.equals(actual)) throw new RuntimeException("Unexpected value: " + actual + ", expected: " + expected);
+    }
+
+    private static TextInput.EventListener recorder(List<String> log, String name) {
+        return event -> log.add(name + ":" + event.getBegin() + "+" + event.getLength());
+    }
+
+    private static void testRouting() {
+        TestTextInput textInput = new TestTextInput();
+        TextInput.EventRouter router = new TextInput.EventRouter(false);
+        router.install(textInput);
+        if (textInput.listener != router) throw new RuntimeException("Router is not installed");
+        List<String> log = new ArrayList<>();
+        Object a = new EqualComponent(), b = new EqualComponent();
+        router.addListener(a, recorder(log, "a"));
+        router.addListener(b, recorder(log, "b"));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 1, 2));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(b, 3, 4));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(new Object(), 5, 6));
+        check(log, Arrays.asList("a:1+2", "b:3+4"));
+
+        log.clear();
+        router.setDefaultListener(recorder(log, "default"));
+        router.removeListener(a);
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 1, 2));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(b, 3, 4));
+        check(log, Arrays.asList("default:1+2", "b:3+4"));
+        router.uninstall();
+        if (textInput.listener != null) throw new RuntimeException("Router is not uninstalled");
+    }
+
+    private static void testCoalescing() {
+        TestTextInput textInput = new TestTextInput();
+        TextInput.EventRouter router = new TextInput.EventRouter(true);
+        router.install(textInput);
+        List<String> log = new ArrayList<>();
+        Object a = new Object(), b = new Object();
+        router.addListener(a, recorder(log, "a"));
+        router.addListener(b, recorder(log, "b"));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 1, 0));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 1, 1));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(b, 3, 4));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 1, 2));
+        check(log, new ArrayList<>());
+        router.flush();
+        log.sort(null);
+        check(log, Arrays.asList("a:1+2", "b:3+4"));
+
+        // Delivered at the end of EDT cycle.
+        router.addListener(a, recorder(coalescedLog, "a"));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 7, 0));
+        textInput.listener.handleSelectTextRangeEvent(new TestEvent(a, 7, 1));
+        check(coalescedLog, new ArrayList<>());
+        router.uninstall();
+    }
+
+    private static void testWeakComponents() throws Exception {
+        TextInput.EventRouter router = new TextInput.EventRouter(false);
+        Object component = new Object();
+        WeakReference<Object> ref = new WeakReference<>(component);
+        router.addListener(component, event -> {});
+        component = null;
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        if (ref.get() != null) throw new RuntimeException("Component is retained by the router");
+        router.addListener(new Object(), event -> {});
+    }
+}